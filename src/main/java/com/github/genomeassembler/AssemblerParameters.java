@@ -1,17 +1,42 @@
 package com.github.genomeassembler;
 
+import com.github.genomeassembler.mapper.HitPolicy;
+
 import java.util.Objects;
 
 /**
  * Holds the genome assembler's settings
  */
 public class AssemblerParameters {
+
+    /**
+     * The read mapper used to map reads to the reference genome
+     */
+    public enum MappingEngine {
+        FM_INDEX, // BWReadMapper, which finds every mapping
+        MINIMIZER // MinimizerReadMapper, seed-and-verify
+    }
+
     private final int requiredContigOverlap;
     private final int minContigOutputLength;
     private final int mismatchToleranceLowerBound;
     private final int mismatchToleranceHigherBound;
     private final int mismatchToleranceStep;
     private final int kmerLength;
+    private final int suffixArraySamplingRate;
+    private final int kmerTableLength;
+    private final int indexThreads;
+    private final boolean stratifiedMapping;
+    private final boolean bothStrandIndex;
+    private final boolean seedFiltering;
+    private final boolean duplicateCollapsing;
+    private final HitPolicy hitPolicy;
+    private final MappingEngine mappingEngine;
+    private final int minimizerKmerLength;
+    private final int minimizerWindowLength;
+    private final String referenceIndexPath;
+    private final int readBatchSize;
+    private final int readQueueDepth;
 
     /**
      * Constructor following builder method
@@ -25,6 +50,20 @@ public class AssemblerParameters {
         private int mismatchToleranceHigherBound = 15;
         private int mismatchToleranceStep = 3;
         private int kmerLength = 30;
+        private int suffixArraySamplingRate = 16;
+        private int kmerTableLength = 10;
+        private int indexThreads = 1;
+        private boolean stratifiedMapping = false;
+        private boolean bothStrandIndex = false;
+        private boolean seedFiltering = false;
+        private boolean duplicateCollapsing = false;
+        private HitPolicy hitPolicy = HitPolicy.ALL;
+        private MappingEngine mappingEngine = MappingEngine.FM_INDEX;
+        private int minimizerKmerLength = 15;
+        private int minimizerWindowLength = 10;
+        private String referenceIndexPath = null;
+        private int readBatchSize = 1 << 16;
+        private int readQueueDepth = 8;
 
         public Builder requiredContigOverlap(int val) {
             requiredContigOverlap = val;
@@ -56,6 +95,76 @@ public class AssemblerParameters {
             return this;
         }
 
+        public Builder suffixArraySamplingRate(int val) {
+            suffixArraySamplingRate = val;
+            return this;
+        }
+
+        public Builder kmerTableLength(int val) {
+            kmerTableLength = val;
+            return this;
+        }
+
+        public Builder indexThreads(int val) {
+            indexThreads = val;
+            return this;
+        }
+
+        public Builder stratifiedMapping(boolean val) {
+            stratifiedMapping = val;
+            return this;
+        }
+
+        public Builder bothStrandIndex(boolean val) {
+            bothStrandIndex = val;
+            return this;
+        }
+
+        public Builder seedFiltering(boolean val) {
+            seedFiltering = val;
+            return this;
+        }
+
+        public Builder duplicateCollapsing(boolean val) {
+            duplicateCollapsing = val;
+            return this;
+        }
+
+        public Builder hitPolicy(HitPolicy val) {
+            hitPolicy = Objects.requireNonNull(val);
+            return this;
+        }
+
+        public Builder mappingEngine(MappingEngine val) {
+            mappingEngine = val;
+            return this;
+        }
+
+        public Builder minimizerKmerLength(int val) {
+            minimizerKmerLength = val;
+            return this;
+        }
+
+        public Builder minimizerWindowLength(int val) {
+            minimizerWindowLength = val;
+            return this;
+        }
+
+        public Builder referenceIndexPath(String val) {
+            referenceIndexPath = val;
+            return this;
+        }
+
+        public Builder readBatchSize(int val) {
+            readBatchSize = val;
+            return this;
+        }
+
+        public Builder readQueueDepth(int val) {
+            readQueueDepth = val;
+            return this;
+        }
+
         public AssemblerParameters build() {
             return new AssemblerParameters(this);
         }
@@ -68,6 +177,20 @@ public class AssemblerParameters {
         mismatchToleranceHigherBound = builder.mismatchToleranceHigherBound;
         mismatchToleranceStep = builder.mismatchToleranceStep;
         kmerLength = builder.kmerLength;
+        suffixArraySamplingRate = builder.suffixArraySamplingRate;
+        kmerTableLength = builder.kmerTableLength;
+        indexThreads = builder.indexThreads;
+        stratifiedMapping = builder.stratifiedMapping;
+        bothStrandIndex = builder.bothStrandIndex;
+        seedFiltering = builder.seedFiltering;
+        duplicateCollapsing = builder.duplicateCollapsing;
+        hitPolicy = builder.hitPolicy;
+        mappingEngine = builder.mappingEngine;
+        minimizerKmerLength = builder.minimizerKmerLength;
+        minimizerWindowLength = builder.minimizerWindowLength;
+        referenceIndexPath = builder.referenceIndexPath;
+        readBatchSize = builder.readBatchSize;
+        readQueueDepth = builder.readQueueDepth;
     }
 
     public int getRequiredContigOverlap() {
@@ -94,5 +217,61 @@ public class AssemblerParameters {
         return kmerLength;
     }
 
+    public int getSuffixArraySamplingRate() {
+        return suffixArraySamplingRate;
+    }
+
+    public int getKmerTableLength() {
+        return kmerTableLength;
+    }
+
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    public boolean isStratifiedMapping() {
+        return stratifiedMapping;
+    }
+
+    public boolean isBothStrandIndex() {
+        return bothStrandIndex;
+    }
+
+    public boolean isSeedFiltering() {
+        return seedFiltering;
+    }
+
+    public boolean isDuplicateCollapsing() {
+        return duplicateCollapsing;
+    }
+
+    public HitPolicy getHitPolicy() {
+        return hitPolicy;
+    }
+
+    public MappingEngine getMappingEngine() {
+        return mappingEngine;
+    }
+
+    public int getMinimizerKmerLength() {
+        return minimizerKmerLength;
+    }
+
+    public int getMinimizerWindowLength() {
+        return minimizerWindowLength;
+    }
+
+    public String getReferenceIndexPath() {
+        return referenceIndexPath;
+    }
+
+    public int getReadBatchSize() {
+        return readBatchSize;
+    }
+
+    public int getReadQueueDepth() {
+        return readQueueDepth;
+    }
+
 
 }
@@ -0,0 +1,320 @@
+package com.github.genomeassembler;
+
+import com.github.genomeassembler.mapper.BWReadMapper;
+import com.github.genomeassembler.mapper.ReadStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The distinct reads of a set of reads, each with the number of times it
+ * occurs. A read and its reverse complement count as the same read, stored
+ * as the lexicographically smaller of the two (its canonical form). The
+ * occurrences of each orientation are counted apart, so the reads can
+ * still be used as they were sequenced. A read holding a character other
+ * than A, C, G, or T is only collapsed with identical reads.
+ * The distinct reads are kept packed in a ReadStore, in order of their
+ * first occurrence, and found through an open-addressing hash table of
+ * their indices, hashed over their 2-bit words. Their counts are kept in
+ * int arrays parallel to the store, so no read is held as a String
+ */
+public class CollapsedReads {
+    private final static int EMPTY = -1;
+    private final static int BASES_PER_WORD = 32;
+
+    private final ReadStore reads; // The distinct reads, in canonical form
+    private final int numDistinctReads;
+    private final int numReads;
+    private int[] canonicalCounts; // Occurrences of each distinct read as itself
+    private int[] complementCounts; // Occurrences as its reverse complement
+    private int[] hashes; // The hash of each distinct read
+    private int[] table; // Indices of the distinct reads, or EMPTY
+    private byte[] candidate; // Holds a distinct read while it is compared
+
+    /**
+     * Collapses a set of reads
+     * @param reads The reads, including duplicates
+     */
+    public CollapsedReads(ReadStore reads) {
+        this.reads = new ReadStore();
+        this.canonicalCounts = new int[16];
+        this.complementCounts = new int[16];
+        this.hashes = new int[16];
+        this.table = new int[32];
+        Arrays.fill(this.table, EMPTY);
+        this.candidate = new byte[0];
+        byte[] canonical = new byte[0];
+        ReadStore.Cursor cursor = reads.cursor();
+        while (cursor.next()) {
+            int length = cursor.getLength();
+            if (canonical.length < length) {
+                canonical = new byte[Math.max(length, 2 * canonical.length)];
+            }
+            boolean complemented = getCanonical(cursor.getBases(), length, canonical);
+            int hash = hash(canonical, length);
+            int slot = findSlot(canonical, length, hash);
+            int read = this.table[slot];
+            if (read == EMPTY) {
+                read = this.reads.add(canonical, length);
+                ensureCapacity(read + 1);
+                this.hashes[read] = hash;
+                this.table[slot] = read;
+                if (2 * this.reads.size() > this.table.length) {
+                    rehash();
+                }
+            }
+            if (complemented) {
+                this.complementCounts[read]++;
+            } else {
+                this.canonicalCounts[read]++;
+            }
+        }
+        this.numDistinctReads = this.reads.size();
+        this.numReads = reads.size();
+        this.candidate = new byte[0];
+    }
+
+    /**
+     * Gets the canonical form of a read
+     * @param read The read
+     * @return The smaller of the read and its reverse complement, or the
+     *         read if it holds a character other than A, C, G, or T
+     */
+    public static String getCanonical(String read) {
+        for (int i = 0; i < read.length(); i++) {
+            char c = read.charAt(i);
+            if (c != 'A' && c != 'C' && c != 'G' && c != 'T') {
+                return read;
+            }
+        }
+        String complement = BWReadMapper.reverseComplement(read);
+        return (complement.compareTo(read) < 0) ? complement : read;
+    }
+
+    /**
+     * Writes the canonical form of a read given as indices in "ACGT", which
+     * orders the bases as their characters do
+     * @param bases The read, where -1 marks another character
+     * @param length The length of the read
+     * @param canonical The array receiving the canonical form
+     * @return True if the canonical form is the read's reverse complement
+     */
+    private static boolean getCanonical(byte[] bases, int length, byte[] canonical) {
+        int order = 0; // The sign of the complement compared with the read
+        for (int i = 0; i < length; i++) {
+            if (bases[i] == -1) {
+                order = 1;
+                break;
+            }
+            if (order == 0) {
+                order = Integer.compare(3 - bases[length - 1 - i], bases[i]);
+            }
+        }
+        if (order >= 0) {
+            System.arraycopy(bases, 0, canonical, 0, length);
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            canonical[i] = (byte) (3 - bases[length - 1 - i]);
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a read over its bases packed 2 bits each, 32 to a word
+     */
+    private static int hash(byte[] bases, int length) {
+        long hash = length;
+        long word = 0;
+        for (int i = 0; i < length; i++) {
+            word |= ((long) (bases[i] & 0x3)) << (2 * (i % BASES_PER_WORD));
+            if (i % BASES_PER_WORD == BASES_PER_WORD - 1 || i == length - 1) {
+                hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+                hash ^= hash >>> 29;
+                word = 0;
+            }
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Finds the slot of a read in the hash table
+     * @return The slot holding the read, or the empty slot it would go in
+     */
+    private int findSlot(byte[] bases, int length, int hash) {
+        int mask = this.table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int read = this.table[slot];
+            if (read == EMPTY || (this.hashes[read] == hash && matches(read, bases, length))) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean matches(int read, byte[] bases, int length) {
+        if (this.reads.getLength(read) != length) {
+            return false;
+        }
+        if (this.candidate.length < length) {
+            this.candidate = new byte[length];
+        }
+        this.reads.getBases(read, this.candidate);
+        for (int i = 0; i < length; i++) {
+            if (this.candidate[i] != bases[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > this.hashes.length) {
+            int capacity = 2 * this.hashes.length;
+            this.canonicalCounts = Arrays.copyOf(this.canonicalCounts, capacity);
+            this.complementCounts = Arrays.copyOf(this.complementCounts, capacity);
+            this.hashes = Arrays.copyOf(this.hashes, capacity);
+        }
+    }
+
+    /**
+     * Doubles the hash table, placing every read by its stored hash
+     */
+    private void rehash() {
+        this.table = new int[2 * this.table.length];
+        Arrays.fill(this.table, EMPTY);
+        int mask = this.table.length - 1;
+        for (int read = 0; read < this.reads.size(); read++) {
+            int slot = this.hashes[read] & mask;
+            while (this.table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = read;
+        }
+    }
+
+    /**
+     * Finds the distinct read a read was collapsed into
+     * @param bases The read, as indices in "ACGT" where -1 marks another
+     *              character
+     * @param length The length of the read
+     * @return The index in getDistinctReads of the read's canonical form,
+     *         or -1 if neither orientation occurs
+     */
+    public int indexOf(byte[] bases, int length) {
+        byte[] canonical = new byte[length];
+        getCanonical(bases, length, canonical);
+        return find(canonical, length);
+    }
+
+    /**
+     * Finds a distinct read
+     * @param read The read, in canonical form
+     * @return The index of the read in getDistinctReads, or -1 if it does
+     *         not occur in canonical form
+     */
+    private int indexOf(String read) {
+        return find(BWReadMapper.encodeRead(read, new byte[read.length()]), read.length());
+    }
+
+    private synchronized int find(byte[] bases, int length) { // The comparison buffer is shared
+        int index = this.table[findSlot(bases, length, hash(bases, length))];
+        return (index == EMPTY) ? -1 : index;
+    }
+
+    /**
+     * @return The distinct reads in canonical form, in order of their first
+     *         occurrence. The caller may append other reads, which have no
+     *         counts
+     */
+    public ReadStore getDistinctReads() {
+        return this.reads;
+    }
+
+    /**
+     * @return The distinct reads in canonical form, in order of their first
+     *         occurrence, unpacked into Strings
+     */
+    public List<String> getReads() {
+        List<String> reads = new ArrayList<>(this.numDistinctReads);
+        for (int read = 0; read < this.numDistinctReads; read++) {
+            reads.add(this.reads.get(read));
+        }
+        return reads;
+    }
+
+    /**
+     * Gets the number of occurrences of a distinct read in either orientation
+     * @param read The read's index in getDistinctReads
+     * @return The number of occurrences of the read or its reverse
+     *         complement, or 0 for a read appended later
+     */
+    public int getCount(int read) {
+        return getCanonicalCount(read) + getComplementCount(read);
+    }
+
+    /**
+     * Gets the number of occurrences of a distinct read identical to its
+     * canonical form
+     * @param read The read's index in getDistinctReads
+     * @return The number of occurrences, or 0 for a read appended later
+     */
+    public int getCanonicalCount(int read) {
+        return (read < this.numDistinctReads) ? this.canonicalCounts[read] : 0;
+    }
+
+    /**
+     * Gets the number of occurrences of a distinct read's reverse complement,
+     * which is 0 for a read that is its own reverse complement
+     * @param read The read's index in getDistinctReads
+     * @return The number of occurrences, or 0 for a read appended later
+     */
+    public int getComplementCount(int read) {
+        return (read < this.numDistinctReads) ? this.complementCounts[read] : 0;
+    }
+
+    /**
+     * Gets the number of occurrences of a read in either orientation
+     * @param read The read
+     * @return The number of occurrences of the read or its reverse complement
+     */
+    public int getCount(String read) {
+        int index = indexOf(getCanonical(read));
+        return (index == -1) ? 0 : getCount(index);
+    }
+
+    /**
+     * Gets the number of occurrences of a read identical to its canonical form
+     * @param canonicalRead The read in canonical form
+     * @return The number of occurrences
+     */
+    public int getCanonicalCount(String canonicalRead) {
+        int index = indexOf(canonicalRead);
+        return (index == -1) ? 0 : getCanonicalCount(index);
+    }
+
+    /**
+     * Gets the number of occurrences of a read's reverse complement, which is
+     * 0 for a read that is its own reverse complement
+     * @param canonicalRead The read in canonical form
+     * @return The number of occurrences of the reverse complement
+     */
+    public int getComplementCount(String canonicalRead) {
+        int index = indexOf(canonicalRead);
+        return (index == -1) ? 0 : getComplementCount(index);
+    }
+
+    /**
+     * @return The number of reads, including duplicates
+     */
+    public int getNumReads() {
+        return this.numReads;
+    }
+
+    /**
+     * @return The number of distinct reads
+     */
+    public int getNumDistinctReads() {
+        return this.numDistinctReads;
+    }
+}
@@ -4,30 +4,57 @@ import com.github.genomeassembler.debruijn.BasicDeBruijnGraph;
 import com.github.genomeassembler.debruijn.DeBruijnAnalyzer;
 import com.github.genomeassembler.debruijn.DeBruijnGraph;
 import com.github.genomeassembler.mapper.BWReadMapper;
+import com.github.genomeassembler.mapper.HitBuffer;
+import com.github.genomeassembler.mapper.HitPolicy;
+import com.github.genomeassembler.mapper.MappingStratum;
+import com.github.genomeassembler.mapper.MinimizerReadMapper;
 import com.github.genomeassembler.mapper.ReadMapper;
+import com.github.genomeassembler.mapper.ReadStore;
+import com.github.genomeassembler.mapper.SeedFilter;
+import com.github.genomeassembler.mapper.SequenceTable;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 public class GenomeAssembler {
 
     // Status messages
+    private final static String DISTINCT_READS_MSG = "Number of distinct reads: ";
     private final static String PROCESS_BEGIN_MSG = "Beginning processing of " +
             "reference genome...";
     private final static String PROCESS_FINISH_MSG = "Finished processing of " +
             "reference genome";
+    private final static String INDEX_OPENED_MSG = "Opened reference genome " +
+            "index: ";
+    private final static String INDEX_SAVED_MSG = "Saved reference genome " +
+            "index: ";
     private final static String MAPPING_MSG = "Mapping reads to reference " +
             "genome with mismatch tolerance: ";
     private final static String MAPPED_MSG = "Number of reads mapped to " +
             "reference genome: ";
+    private final static String SEED_REJECTED_MSG = "Number of reads rejected " +
+            "by seed filter: ";
+    private final static String REPEATS_MSG = "Number of reads reported as " +
+            "repeats: ";
     private final static String FORMING_CONTIGS_MSG = "Forming contigs...";
     private final static String CONTIGS_FORMED_MSG = "Number of contigs formed: ";
     private final static String REMAINING_READS_MSG = "Number of remaining " +
@@ -39,45 +66,140 @@ public class GenomeAssembler {
             "length below threshold: ";
     private final static String REMAINING_CONTIGS_MSG = "Number of remaining " +
             "contigs from graph: ";
+    private final static String STREAMING_MSG = "Mapping reads to reference " +
+            "genome as they are parsed...";
     private final static String FINISHED_MSG = "Contig generation " +
             "complete\nWriting to file...";
 
     private final static int NUM_THREADS = 4;
 
     private final ReadMapper referenceGenomeReadMapper;
-    private final int refGenomeLength;
+    private final SeedFilter seedFilter; // null if the mapper has no FM-index
+    private final SequenceTable referenceSequences;
+    private final long refGenomeLength;
     private final DeBruijnGraph deBruijnGraph;
-
-    private final List<String> unmappedReads;
-    private final Map<String, List<Integer>> mappedReads;
+    // Hits and bases each mapping thread reuses across reads
+    private final ThreadLocal<MappingScratch> mappingScratch =
+            ThreadLocal.withInitial(MappingScratch::new);
+
+    // Every read, or every distinct read if duplicates are collapsed
+    private ReadStore reads;
+    private CollapsedReads collapsedReads; // null unless duplicates are collapsed
+    private List<ReadSource> readSources; // null unless the reads are streamed
+
+    // Indices in reads of the reads not mapped yet, in order
+    private int[] unmappedReads;
+    private int numUnmappedReads;
+    // Indices in reads of the reads reported as repeats, which are not
+    // placed but still go to the de Bruijn graph, in order
+    private int[] repeatedReads;
+    private int numRepeatedReads;
+    private final Map<String, List<Long>> mappedReads;
 
     // Each correspond to a certain mismatch-tolerated mappedReads mapping
-    private final List<Map<String, Integer>> mappedContigSets;
+    private final List<Map<String, Long>> mappedContigSets;
 
     // Super contigs formed by mapped contig sets, then resolved by graph contigs
-    private final Map<Integer, String> superContigs;
+    private final Map<Long, String> superContigs;
 
     // Contigs formed by de Bruijn graph traversal
     private final List<String> graphContigs;
 
+    // Number of reads rejected by the seed filter at each mismatch tolerance
+    private final Map<Integer, Integer> seedFilterRejections;
+
+    // Number of reads reported as repeats at each mismatch tolerance
+    private final Map<Integer, Integer> repeatReads;
+
     // Settings
     private AssemblerParameters parameters;
 
     // Coverage
-    private final int coverage;
+    private int coverage;
 
 
     public GenomeAssembler(String referenceGenomeSequence, List<String> reads) {
+        this(referenceGenomeSequence, reads, new AssemblerParameters.Builder().build());
+    }
+
+    /**
+     * Processes the reference genome with the given settings
+     * @param referenceGenomeSequence The reference genome sequence
+     * @param reads The reads being assembled
+     * @param parameters The assembler's settings. Settings used to process
+     *                   the reference genome (such as the suffix array
+     *                   sampling rate) can only be given here
+     */
+    public GenomeAssembler(String referenceGenomeSequence, List<String> reads,
+                           AssemblerParameters parameters) {
+        this(Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME,
+                referenceGenomeSequence), reads, parameters);
+    }
+
+    /**
+     * Processes a reference genome made of several sequences, such as the
+     * records of a multi-record FASTA file. The sequences are concatenated in
+     * iteration order, and positions in the results are reported both within
+     * the concatenation and as a sequence name and offset
+     * @param referenceSequences The reference sequences, mapped from their names
+     * @param reads The reads being assembled
+     * @param parameters The assembler's settings
+     */
+    public GenomeAssembler(Map<String, String> referenceSequences, List<String> reads,
+                           AssemblerParameters parameters) {
+        this(referenceSequences, ReadStore.of(reads), parameters);
+    }
+
+    /**
+     * Processes a reference genome made of several sequences, taking the
+     * reads packed in a read store
+     * @param referenceSequences The reference sequences, mapped from their names
+     * @param reads The reads being assembled. The store is not modified
+     *              unless duplicates are collapsed, when it is no longer used
+     * @param parameters The assembler's settings
+     */
+    public GenomeAssembler(Map<String, String> referenceSequences, ReadStore reads,
+                           AssemblerParameters parameters) {
+        this(referenceSequences, reads, null, parameters);
+    }
+
+    /**
+     * Processes a reference genome made of several sequences, and streams the
+     * reads from their sources once the genome is assembled. The first
+     * mapping pass maps each batch of reads as soon as it is parsed, and
+     * only the reads it leaves unmapped are kept, so parsing overlaps with
+     * mapping and the whole read set is never held in memory
+     * @param referenceSequences The reference sequences, mapped from their names
+     * @param readSources The sources of the reads being assembled, which are
+     *                    parsed at the same time
+     * @param parameters The assembler's settings
+     * @return The assembler
+     */
+    public static GenomeAssembler fromReadSources(Map<String, String> referenceSequences,
+                                                  List<ReadSource> readSources,
+                                                  AssemblerParameters parameters) {
+        return new GenomeAssembler(referenceSequences, new ReadStore(),
+                new ArrayList<>(readSources), parameters);
+    }
+
+    private GenomeAssembler(Map<String, String> referenceSequences, ReadStore reads,
+                            List<ReadSource> readSources, AssemblerParameters parameters) {
         // Process genome
-        this.refGenomeLength = referenceGenomeSequence.length();
-        System.out.println("Length of genome: " + referenceGenomeSequence.length());
-        System.out.println("Total number of reads: " + reads.size());
+        this.referenceSequences = SequenceTable.of(referenceSequences);
+        this.refGenomeLength = this.referenceSequences.getTotalLength();
+        System.out.println("Length of genome: " + this.refGenomeLength);
+        System.out.println("Number of reference sequences: " +
+                this.referenceSequences.getNumSequences());
+        if (readSources == null) {
+            System.out.println("Total number of reads: " + reads.size());
+        }
         System.out.println(PROCESS_BEGIN_MSG);
-        this.referenceGenomeReadMapper = new BWReadMapper(referenceGenomeSequence);
+        this.referenceGenomeReadMapper = loadReadMapper(referenceSequences, parameters);
         System.out.println(PROCESS_FINISH_MSG);
-
-        // Initialize read data structures
-        this.unmappedReads = reads;
+        this.seedFilter = (this.referenceGenomeReadMapper instanceof BWReadMapper) ?
+                new SeedFilter((BWReadMapper) this.referenceGenomeReadMapper) : null;
+        this.seedFilterRejections = new TreeMap<>();
+        this.repeatReads = new TreeMap<>();
         this.mappedReads = new ConcurrentHashMap<>();
 
         // Initialize contig data structures
@@ -88,15 +210,120 @@ public class GenomeAssembler {
         // Initialize de Bruijn graph
         this.deBruijnGraph = new BasicDeBruijnGraph();
 
-        // Initialize default diagnostic information settings
-        this.parameters = new AssemblerParameters.Builder().build();
+        // Initialize diagnostic information settings
+        this.parameters = parameters;
+
+        // Initialize read data structures, once streamed reads are parsed
+        this.readSources = readSources;
+        if (readSources == null) {
+            initializeReads(reads, reads.size(), reads.getTotalLength());
+        } else {
+            this.reads = reads;
+            this.unmappedReads = new int[0];
+            this.numUnmappedReads = 0;
+            this.repeatedReads = new int[0];
+            this.numRepeatedReads = 0;
+        }
+    }
+
+    /**
+     * Sets the reads being assembled, none of which are mapped yet, and
+     * calculates the coverage
+     * @param reads The reads. The store is not modified unless duplicates
+     *              are collapsed, when it is no longer used
+     * @param firstRepeated The index of the first read that was already
+     *                      reported as a repeat, all of which follow the
+     *                      unmapped reads
+     * @param totalLength The number of bases of every read, including the
+     *                    streamed reads that were already mapped
+     */
+    private void initializeReads(ReadStore reads, int firstRepeated, long totalLength) {
+        if (this.parameters.isDuplicateCollapsing()) { // Each distinct read is mapped once
+            this.collapsedReads = new CollapsedReads(reads);
+            this.reads = this.collapsedReads.getDistinctReads();
+            System.out.println(DISTINCT_READS_MSG + this.reads.size());
+            // Duplicates share their mapping, so the first repeat is a new
+            // distinct read, and every distinct read after it is a repeat
+            if (firstRepeated < reads.size()) {
+                firstRepeated = this.collapsedReads.indexOf(
+                        reads.getBases(firstRepeated, new byte[reads.getLength(firstRepeated)]),
+                        reads.getLength(firstRepeated));
+            } else {
+                firstRepeated = this.reads.size();
+            }
+        } else {
+            this.collapsedReads = null;
+            this.reads = reads;
+        }
+        this.unmappedReads = new int[firstRepeated];
+        for (int r = 0; r < this.unmappedReads.length; r++) {
+            this.unmappedReads[r] = r;
+        }
+        this.numUnmappedReads = this.unmappedReads.length;
+        this.repeatedReads = new int[this.reads.size() - firstRepeated];
+        for (int j = 0; j < this.repeatedReads.length; j++) {
+            this.repeatedReads[j] = firstRepeated + j;
+        }
+        this.numRepeatedReads = this.repeatedReads.length;
 
         // Calculate coverage
-        int totalBp = 0;
-        for (String read : reads) {
-            totalBp += read.length();
+        this.coverage = (int) (totalLength / this.refGenomeLength);
+    }
+
+    /**
+     * Opens the reference genome's saved index if there is one, otherwise
+     * processes the reference genome and saves its index. A saved index is
+     * only used if it was built from the same sequences, as told by their
+     * digest, and with the same sampling rate, k-mer table length and
+     * strands; otherwise it is rebuilt and replaced. A minimizer index is not
+     * saved, so it is always built
+     * @param referenceSequences The reference sequences, mapped from their names
+     * @param parameters The assembler's settings
+     * @return The read mapper of the reference genome
+     */
+    private static ReadMapper loadReadMapper(Map<String, String> referenceSequences,
+                                             AssemblerParameters parameters) {
+        if (parameters.getMappingEngine() == AssemblerParameters.MappingEngine.MINIMIZER) {
+            return new MinimizerReadMapper(referenceSequences,
+                    parameters.getMinimizerKmerLength(), parameters.getMinimizerWindowLength());
+        }
+        String path = parameters.getReferenceIndexPath();
+        if (path == null || path.isEmpty()) {
+            return new BWReadMapper(referenceSequences,
+                    parameters.getSuffixArraySamplingRate(),
+                    parameters.getKmerTableLength(), parameters.isBothStrandIndex(),
+                    parameters.getIndexThreads());
         }
-        this.coverage = totalBp / referenceGenomeSequence.length();
+        Path indexPath = Paths.get(path);
+        if (Files.exists(indexPath)) {
+            try {
+                BWReadMapper mapper = BWReadMapper.open(indexPath);
+                if (mapper.getSequenceTable().equals(SequenceTable.of(referenceSequences)) &&
+                        mapper.getDigest() == BWReadMapper.computeDigest(referenceSequences) &&
+                        mapper.getSamplingRate() == parameters.getSuffixArraySamplingRate() &&
+                        mapper.getPreferredKmerTableLength() == parameters.getKmerTableLength() &&
+                        mapper.isBothStrands() == parameters.isBothStrandIndex()) {
+                    System.out.println(INDEX_OPENED_MSG + indexPath);
+                    return mapper;
+                }
+                System.out.println("Index does not match reference genome or " +
+                        "parameters: " + indexPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Error opening index: " + indexPath);
+            }
+        }
+        BWReadMapper mapper = new BWReadMapper(referenceSequences,
+                parameters.getSuffixArraySamplingRate(), parameters.getKmerTableLength(),
+                parameters.isBothStrandIndex(), parameters.getIndexThreads());
+        try {
+            mapper.save(indexPath);
+            System.out.println(INDEX_SAVED_MSG + indexPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error saving index: " + indexPath);
+        }
+        return mapper;
     }
 
     /**
@@ -108,6 +335,9 @@ public class GenomeAssembler {
      *              - Map all remaining reverse complementary reads that map to
      *                  to reference genome with at most x mismatches
      *              - Form contigs from these mapped reads
+     *          With stratified mapping, every read is instead mapped once and
+     *          placed with the smallest x it maps with. Streamed reads are
+     *          mapped in the first pass as they are parsed
      *      - Take the remaining reads and obtain remaining contigs by
      *          constructing a de Bruijn graph. Forms kmers based on configurable
      *          k
@@ -127,20 +357,29 @@ public class GenomeAssembler {
     public void assemble() {
         long startTime = System.currentTimeMillis();
         // Use reference genome to form contigs
-        int mismatchLowerBound = this.parameters.getMismatchToleranceLowerBound();
-        int mismatchUpperBound = this.parameters.getMismatchToleranceHigherBound();
-        int toleranceStep = this.parameters.getMismatchToleranceStep();
-        int mapped, contigs;
-        for (int numMismatches = mismatchLowerBound;
-             numMismatches < mismatchUpperBound; numMismatches += toleranceStep) {
-            System.out.println(MAPPING_MSG + numMismatches);
-            mapped = this.mapReads(numMismatches); // Tries mapping reads
-            System.out.println(MAPPED_MSG + mapped);
-            System.out.println(FORMING_CONTIGS_MSG);
-            contigs = this.formContigs(); // Forms contigs from reads
-            System.out.println(CONTIGS_FORMED_MSG + contigs);
+        List<Integer> tolerances = this.getMismatchTolerances();
+        if (this.readSources != null) { // Maps the reads as they are parsed
+            this.streamReads();
+            // The streamed pass maps with every tolerance if stratified
+            tolerances = this.parameters.isStratifiedMapping() ? Collections.emptyList() :
+                    tolerances.subList(Math.min(1, tolerances.size()), tolerances.size());
+        }
+        if (this.parameters.isStratifiedMapping()) {
+            if (!tolerances.isEmpty()) {
+                this.formContigsByStratum(); // Maps every read once
+            }
+        } else {
+            int mapped, contigs;
+            for (int numMismatches : tolerances) {
+                System.out.println(MAPPING_MSG + numMismatches);
+                mapped = this.mapReads(numMismatches); // Tries mapping reads
+                System.out.println(MAPPED_MSG + mapped);
+                System.out.println(FORMING_CONTIGS_MSG);
+                contigs = this.formContigs(); // Forms contigs from reads
+                System.out.println(CONTIGS_FORMED_MSG + contigs);
+            }
         }
-        System.out.println(REMAINING_READS_MSG + this.unmappedReads.size());
+        System.out.println(REMAINING_READS_MSG + this.numUnmappedReads);
         System.out.println(CONSTRUCTING_GRAPH_MSG);
 
         // Form contigs out of remaining reads using a de Bruijn graph
@@ -153,7 +392,7 @@ public class GenomeAssembler {
         System.out.println(REMAINING_CONTIGS_MSG + this.graphContigs.size());
 
         // Map graph contigs to reference and form contigs
-        this.unmappedReads.addAll(this.graphContigs);
+        this.addUnmappedReads(this.graphContigs);
         this.mapReads(0);
         this.formContigs();
 
@@ -161,13 +400,11 @@ public class GenomeAssembler {
         System.out.println(RESOLVING_MSG);
         this.resolveContigs();
 
-        // Use super contigs to write out assembled genome sequence with gaps
-        String assembledGenome = this.formSequence();
-
-        // Write assembly results in file
+        // Write assembly results in file, with the super contigs written out
+        // as the assembled genome sequence with gaps
         System.out.println(FINISHED_MSG);
         long endTime = System.currentTimeMillis();
-        this.writeResults(assembledGenome, endTime - startTime);
+        this.writeResults(endTime - startTime);
 
     }
 
@@ -177,13 +414,13 @@ public class GenomeAssembler {
     /**
      * Outputs N50, largest contig length, coverage, and contigs
      */
-    private void writeResults(String assembledGenome, long totalTime) {
-        int N50 = this.calculateN50();
+    private void writeResults(long totalTime) {
+        long N50 = this.calculateN50();
         int longestContigLength = this.getLongestContigSize();
         double allContigCoverage = this.calculateAllContigCoverage();
         double superContigCoverage = this.calculateSuperContigCoverage();
-        int numGaps = countChar(assembledGenome, 'N');
-        List<Integer> sortedIndices = getSortedIndices(this.superContigs);
+        long numGaps = this.countUnknownBases();
+        List<Long> sortedIndices = getSortedIndices(this.superContigs);
         try {
             String path = "src/main/resources/results.txt";
             BufferedWriter writer = new BufferedWriter(new FileWriter(path));
@@ -206,10 +443,13 @@ public class GenomeAssembler {
             writer.write("Number of unknown bases: " + numGaps + "\n");
             writer.write("\n");
             writer.write("======================Super Contigs======================\n");
-            for (int index : sortedIndices) {
+            for (long index : sortedIndices) {
                 String contig = this.superContigs.get(index);
                 int size = contig.length();
-                writer.write("Super Contig index: " + index + "\n");
+                int sequence = this.referenceSequences.getSequenceIndex(index);
+                writer.write("Super Contig index: " + index + " (" +
+                        this.referenceSequences.getName(sequence) + ":" +
+                        this.referenceSequences.getOffset(index) + ")\n");
                 writer.write("Super Contig length: " + size + "\n");
                 writer.write(contig + "\n");
             }
@@ -222,7 +462,8 @@ public class GenomeAssembler {
             }
             writer.write("\n");
             writer.write("======================Assembled Genome======================\n");
-            writer.write(assembledGenome + "\n");
+            this.writeSequence(writer);
+            writer.write("\n");
             writer.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -236,25 +477,46 @@ public class GenomeAssembler {
     }
 
     /**
-     * Uses the super contigs to form an assembled sequence. Unknown regions
-     * are written by N's
-     * @return The assembled sequence
+     * Uses the super contigs to write out an assembled sequence, which may
+     * be longer than a String can hold. Unknown regions are written by N's
+     * @param writer The writer receiving the assembled sequence
+     * @throws IOException If the sequence can't be written
      */
-    private String formSequence() {
-        StringBuilder assembledSequence = new StringBuilder();
-        List<Integer> sortedIndices = getSortedIndices(this.superContigs);
-        int index = 0;
-        while (index < this.refGenomeLength) {
-            if (!sortedIndices.contains(index)) { // Gap
-                assembledSequence.append('N');
-                index++;
-            } else {
-                String superContig = this.superContigs.get(index);
-                assembledSequence.append(superContig);
-                index += superContig.length();
+    private void writeSequence(Writer writer) throws IOException {
+        long index = 0;
+        for (long start : getSortedIndices(this.superContigs)) {
+            if (start < index) { // Within the previous super contig
+                continue;
+            }
+            for (; index < start; index++) { // Gap
+                writer.write('N');
+            }
+            String superContig = this.superContigs.get(start);
+            writer.write(superContig);
+            index += superContig.length();
+        }
+        for (; index < this.refGenomeLength; index++) {
+            writer.write('N');
+        }
+    }
+
+    /**
+     * Counts the N's writeSequence writes, both in the gaps and within the
+     * super contigs
+     * @return The number of unknown bases of the assembled sequence
+     */
+    private long countUnknownBases() {
+        long unknown = this.refGenomeLength;
+        long index = 0;
+        for (long start : getSortedIndices(this.superContigs)) {
+            if (start < index) {
+                continue;
             }
+            String superContig = this.superContigs.get(start);
+            unknown += countChar(superContig, 'N') - superContig.length();
+            index = start + superContig.length();
         }
-        return assembledSequence.toString();
+        return unknown;
     }
 
     private int getLongestContigSize() {
@@ -268,7 +530,7 @@ public class GenomeAssembler {
     }
 
     private double calculateSuperContigCoverage() {
-        int totalLength = 0;
+        long totalLength = 0;
         for (String contig : this.superContigs.values()) {
             totalLength += contig.length();
         }
@@ -276,7 +538,7 @@ public class GenomeAssembler {
     }
 
     private double calculateAllContigCoverage() {
-        int totalLength = 0;
+        long totalLength = 0;
         for (String superContig : this.superContigs.values()) {
             totalLength += superContig.length();
         }
@@ -286,14 +548,14 @@ public class GenomeAssembler {
         return 100 * totalLength / ((double)this.refGenomeLength);
     }
 
-    private int calculateN50() {
+    private long calculateN50() {
         List<Integer> sizes = new ArrayList<>();
         for (String superContig : this.superContigs.values()) {
             sizes.add(superContig.length());
         }
         Collections.sort(sizes);
         Collections.reverse(sizes);
-        int total = 0;
+        long total = 0;
         for (int size : sizes) {
             total += size;
             if (total >= (this.refGenomeLength/ 2)) {
@@ -323,10 +585,10 @@ public class GenomeAssembler {
      */
     private void resolveContigs() {
         // Flips all contig sets
-        List<Map<Integer, String>> flippedContigSets = new ArrayList<>();
-        for (Map<String, Integer> contigSet : this.mappedContigSets) {
-            Map<Integer, String> flippedContigSet = new HashMap<>();
-            for (Map.Entry<String, Integer> mapping : contigSet.entrySet()) {
+        List<Map<Long, String>> flippedContigSets = new ArrayList<>();
+        for (Map<String, Long> contigSet : this.mappedContigSets) {
+            Map<Long, String> flippedContigSet = new HashMap<>();
+            for (Map.Entry<String, Long> mapping : contigSet.entrySet()) {
                 flippedContigSet.put(mapping.getValue(), mapping.getKey());
             }
             flippedContigSets.add(flippedContigSet);
@@ -334,11 +596,16 @@ public class GenomeAssembler {
         }
         // Begin forming consensus contig between mapped contigs
         StringBuilder superContig = new StringBuilder();
-        for (int i = 0; i < this.refGenomeLength; i++) {
+        for (long i = 0; i < this.refGenomeLength; i++) {
             char consensusBase = getConsensusBase(i, flippedContigSets);
+            if (this.referenceSequences.getOffset(i) == 0 && superContig.length() != 0) {
+                // Super contigs never span two reference sequences
+                this.superContigs.put(i - superContig.length(), superContig.toString());
+                superContig = new StringBuilder();
+            }
             if (consensusBase == '0') { // No contig covers i
                 if (superContig.length() != 0) { // don't save empty string
-                    int startingIndex =  i - superContig.length();
+                    long startingIndex =  i - superContig.length();
                     this.superContigs.put(startingIndex, superContig.toString());
                     superContig = new StringBuilder();
                 }
@@ -349,7 +616,7 @@ public class GenomeAssembler {
         // Checks for last super contig
         int finalSuperContigLength = superContig.length();
         if (finalSuperContigLength != 0) {
-            int startingIndex = this.refGenomeLength - finalSuperContigLength;
+            long startingIndex = this.refGenomeLength - finalSuperContigLength;
             this.superContigs.put(startingIndex, superContig.toString());
         }
 
@@ -377,30 +644,331 @@ public class GenomeAssembler {
 
 
     /**
-     * Creates a de Bruijn graph from the remaining unmapped reads
+     * Creates a de Bruijn graph from the remaining unmapped reads and the
+     * reads reported as repeats, which were never placed. A collapsed read
+     * adds its kmers once for every time it occurred, in the orientation it
+     * occurred in
      */
     private void constructDeBruijnGraph() {
+        char[] sequence = new char[0];
+        for (int j = 0; j < this.numUnmappedReads + this.numRepeatedReads; j++) {
+            int r = (j < this.numUnmappedReads) ? this.unmappedReads[j] :
+                    this.repeatedReads[j - this.numUnmappedReads];
+            int length = this.reads.getLength(r);
+            if (sequence.length < length) {
+                sequence = new char[length];
+            }
+            this.reads.getSequence(r, sequence);
+            if (this.collapsedReads == null || r >= this.collapsedReads.getNumDistinctReads()) {
+                addKmers(sequence, length, 1);
+                continue;
+            }
+            addKmers(sequence, length, this.collapsedReads.getCanonicalCount(r));
+            int complements = this.collapsedReads.getComplementCount(r);
+            if (complements > 0) {
+                String complement = reverseComplement(String.valueOf(sequence, 0, length));
+                addKmers(complement.toCharArray(), length, complements);
+            }
+        }
+        this.numUnmappedReads = 0;
+        this.numRepeatedReads = 0;
+    }
+
+    /**
+     * Adds every kmer of a read to the de Bruijn graph
+     * @param sequence The read
+     * @param length The length of the read
+     * @param count The number of times each kmer is added
+     */
+    private void addKmers(char[] sequence, int length, int count) {
         int k = this.parameters.getKmerLength();
-        for (String read : this.unmappedReads) {
-            for (int i = 0; i < read.length() - k + 1; i++) {
-                this.deBruijnGraph.addKmer(read.substring(i, i + k));
+        for (int i = 0; i < length - k + 1; i++) {
+            String kmer = String.valueOf(sequence, i, k);
+            for (int j = 0; j < count; j++) {
+                this.deBruijnGraph.addKmer(kmer);
             }
         }
-        this.unmappedReads.clear();
     }
 
 
     /**
      * Attempts to map every read with no tolerant mismatches.
      * If a read maps exactly, the read is removed from the unmappedReads list
-     * to the mappedReads map
+     * to the mappedReads map, with the hits the hit policy keeps. A read
+     * the policy reports as a repeat is removed without being placed, and
+     * kept for the de Bruijn graph
      * @param mismatches The number of tolerated mismatches when mapping
-     * @return The number of reads (including duplicates) that were mapped
-     *         to the reference genome
+     * @return The number of reads (including duplicates and repeats) that
+     *         were mapped to the reference genome
      */
     public int mapReads(int mismatches) {
+        return mapUnmappedReads(new MappingPass(mismatches));
+    }
+
+    /**
+     * Maps every unmapped read in a mapping pass, and removes the reads the
+     * pass maps or reports as repeats from the unmapped reads. The repeats
+     * are moved to the repeated reads
+     * @param pass The mapping pass
+     * @return The number of reads (including duplicates and repeats) that
+     *         were mapped to the reference genome
+     */
+    private int mapUnmappedReads(MappingPass pass) {
         List<Integer> mappedReadsIndices = Collections.synchronizedList(new ArrayList<>());
-        int n = this.unmappedReads.size();
+        List<Integer> repeatedReadsIndices = Collections.synchronizedList(new ArrayList<>());
+        forEachUnmappedRead(j -> {
+            Outcome outcome = pass.map(this.reads, this.unmappedReads[j]);
+            if (outcome != Outcome.UNMAPPED) {
+                mappedReadsIndices.add(j);
+            }
+            if (outcome == Outcome.REPEAT) {
+                repeatedReadsIndices.add(j);
+            }
+        });
+        addRepeatedReads(repeatedReadsIndices);
+        removeUnmappedReads(mappedReadsIndices);
+        pass.record();
+        return pass.numMapped.get();
+    }
+
+    /**
+     * Maps a read with the hit policy, then maps its reverse complement if
+     * the read has no hits, unless the index holds both strands and one
+     * search covers the complement. The reverse complement is only used if
+     * the read has no hits on the forward strand
+     * @param reads The store holding the read
+     * @param read The index of the read being mapped
+     * @param bases The read, as indices in "ACGT", which are replaced by
+     *              those of its reverse complement if it is mapped
+     * @param length The length of the read
+     * @param mismatches The number of tolerated mismatches
+     * @param repeats Counts the reads reported as repeats
+     * @return Whether the read or its reverse complement was mapped or
+     *         reported as a repeat
+     */
+    private Outcome mapStrands(ReadStore reads, int read, byte[] bases, int length,
+                               int mismatches, AtomicInteger repeats) {
+        HitPolicy policy = this.parameters.getHitPolicy();
+        HitBuffer hits = this.mappingScratch.get().hits;
+        hits.clear();
+        this.referenceGenomeReadMapper.mapRead(bases, length, mismatches, policy, hits);
+        if (hits.getNumHits() == 0 && !hits.isRepeat(0) && !isBothStrandIndex()) {
+            // Try mapping complement
+            reverseComplement(bases, length);
+            this.referenceGenomeReadMapper.mapRead(bases, length, mismatches, policy, hits);
+        }
+        if (hits.isRepeat(hits.getNumReads() - 1)) {
+            repeats.addAndGet(getCount(reads, read));
+            return Outcome.REPEAT;
+        }
+        if (hits.getNumHits() == 0) {
+            return Outcome.UNMAPPED;
+        }
+        // The complement's hits are the read's reverse strand hits
+        boolean complemented = hits.getNumReads() == 2;
+        List<Long> forward = new ArrayList<>();
+        List<Long> reverse = new ArrayList<>();
+        for (int i = 0; i < hits.getNumHits(); i++) {
+            long position = hits.getPosition(i);
+            if (hits.isReverse(i) != complemented) {
+                reverse.add(position);
+            } else {
+                forward.add(position);
+            }
+        }
+        if (!forward.isEmpty()) {
+            this.mappedReads.put(reads.get(read), forward);
+        } else {
+            this.mappedReads.put(reverseComplement(reads.get(read)), reverse);
+        }
+        return Outcome.MAPPED;
+    }
+
+
+    /**
+     * Maps every unmapped read once with the highest mismatch tolerance,
+     * keeping only its mappings with the fewest mismatches. Each read is
+     * placed with the smallest tolerance it maps with, and a contig set is
+     * then formed for each tolerance in increasing order. This gives the same
+     * contig sets as mapping and forming contigs at each tolerance in turn,
+     * except that a read's mappings with more mismatches than its best are
+     * dropped. Every hit of the best stratum is found, and the hit policy
+     * then limits the hits kept: only the first is kept under FIRST. Under
+     * MAX_N a read whose best stratum has more than N hits is reported as a
+     * repeat by the search itself, without locating them
+     * @return The number of reads (including duplicates and repeats) that
+     *         were mapped to the reference genome
+     */
+    public int formContigsByStratum() {
+        List<Integer> tolerances = this.getMismatchTolerances();
+        if (tolerances.isEmpty()) {
+            return 0;
+        }
+        MappingPass pass = new MappingPass(tolerances);
+        System.out.println(MAPPING_MSG + pass.mismatches);
+        int mapped = mapUnmappedReads(pass);
+        formStrataContigs(pass);
+        return mapped;
+    }
+
+    /**
+     * Forms a contig set from the reads a stratified mapping pass placed at
+     * each mismatch tolerance, in increasing order of tolerance
+     * @param pass The stratified mapping pass
+     */
+    private void formStrataContigs(MappingPass pass) {
+        int contigs;
+        for (int level = 0; level < pass.tolerances.size(); level++) {
+            System.out.println(MAPPED_MSG + pass.mappedCounts.get(level).get() +
+                    " (mismatch tolerance " + pass.tolerances.get(level) + ")");
+            this.mappedReads.putAll(pass.strata.get(level));
+            System.out.println(FORMING_CONTIGS_MSG);
+            contigs = this.formContigs(); // Forms contigs from reads
+            System.out.println(CONTIGS_FORMED_MSG + contigs);
+        }
+    }
+
+    /**
+     * Maps the reads of the read sources in the first mapping pass, as they
+     * are parsed. Batches of reads are parsed into a bounded queue and
+     * mapped by NUM_THREADS threads, and only the reads a batch leaves
+     * unmapped or reports as repeats are kept. Those reads, in source order
+     * with the repeats last, then become the assembler's reads, and are
+     * collapsed if duplicates are collapsed.
+     * Collapsing needs every read, so the streamed pass maps each duplicate
+     * on its own.
+     * The pass maps with every tolerance and forms their contig sets if
+     * mapping is stratified, and otherwise maps with the lowest tolerance
+     * and forms its contig set
+     * @return The number of reads (including duplicates and repeats) that
+     *         were mapped to the reference genome
+     */
+    public int streamReads() {
+        if (this.readSources == null) {
+            return 0; // Already streamed, or the reads were given
+        }
+        List<Integer> tolerances = this.getMismatchTolerances();
+        MappingPass pass = null;
+        if (!tolerances.isEmpty()) {
+            pass = this.parameters.isStratifiedMapping() ?
+                    new MappingPass(tolerances) : new MappingPass(tolerances.get(0));
+            System.out.println(MAPPING_MSG + pass.mismatches);
+        }
+        System.out.println(STREAMING_MSG);
+
+        MappingPass streamedPass = pass;
+        AtomicLong numReads = new AtomicLong();
+        AtomicLong totalLength = new AtomicLong();
+        // Each batch gives its unmapped reads, then the reads reported as repeats
+        ReadPipeline.BatchMapper<ReadStore[]> mapper = batch -> {
+            numReads.addAndGet(batch.size());
+            totalLength.addAndGet(batch.getTotalLength());
+            ReadStore[] kept = {new ReadStore(), new ReadStore()};
+            byte[] bases = new byte[0];
+            for (int r = 0; r < batch.size(); r++) {
+                Outcome outcome = (streamedPass == null) ? Outcome.UNMAPPED :
+                        streamedPass.map(batch, r);
+                if (outcome == Outcome.MAPPED) {
+                    continue;
+                }
+                int length = batch.getLength(r);
+                if (bases.length < length) {
+                    bases = new byte[length];
+                }
+                kept[(outcome == Outcome.REPEAT) ? 1 : 0].add(batch.getBases(r, bases), length);
+            }
+            return kept;
+        };
+        List<ReadStore[]> batches;
+        try {
+            batches = ReadPipeline.run(this.readSources, this.parameters.getReadQueueDepth(),
+                    NUM_THREADS, mapper);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.readSources = null;
+        ReadStore unmappedReads = new ReadStore();
+        for (ReadStore[] batch : batches) {
+            unmappedReads.addAll(batch[0]);
+        }
+        int firstRepeated = unmappedReads.size();
+        for (ReadStore[] batch : batches) {
+            unmappedReads.addAll(batch[1]);
+        }
+        System.out.println("Total number of reads: " + numReads.get());
+        if (pass == null) {
+            initializeReads(unmappedReads, firstRepeated, totalLength.get());
+            return 0;
+        }
+        pass.record();
+        initializeReads(unmappedReads, firstRepeated, totalLength.get());
+        if (this.parameters.isStratifiedMapping()) {
+            formStrataContigs(pass);
+        } else {
+            System.out.println(MAPPED_MSG + pass.numMapped.get());
+            System.out.println(FORMING_CONTIGS_MSG);
+            int contigs = this.formContigs(); // Forms contigs from reads
+            System.out.println(CONTIGS_FORMED_MSG + contigs);
+        }
+        return pass.numMapped.get();
+    }
+
+
+    /**
+     * Checks whether the reference genome's index holds both strands, so
+     * that one search also maps a read's reverse complement
+     * @return True if both strands are indexed
+     */
+    private boolean isBothStrandIndex() {
+        return this.referenceGenomeReadMapper instanceof BWReadMapper &&
+                ((BWReadMapper) this.referenceGenomeReadMapper).isBothStrands();
+    }
+
+    /**
+     * Checks whether reads are seed filtered before being mapped with a
+     * tolerance. Without mismatches, the only seed is the whole read, so
+     * filtering would repeat the search
+     * @param mismatches The number of tolerant mismatches
+     * @return True if reads are filtered
+     */
+    private boolean isSeedFiltering(int mismatches) {
+        return this.parameters.isSeedFiltering() && this.seedFilter != null && mismatches > 0;
+    }
+
+    /**
+     * Adds and prints the number of reads the seed filter rejected
+     * @param mismatches The number of tolerant mismatches
+     * @param rejected The number of rejected reads
+     */
+    private void recordSeedFilterRejections(int mismatches, int rejected) {
+        this.seedFilterRejections.merge(mismatches, rejected, Integer::sum);
+        System.out.println(SEED_REJECTED_MSG + rejected +
+                " (mismatch tolerance " + mismatches + ")");
+    }
+
+
+    /**
+     * Adds and prints the number of reads reported as repeats, if the hit
+     * policy reports repeats
+     * @param mismatches The number of tolerant mismatches
+     * @param repeats The number of repeats
+     */
+    private void recordRepeats(int mismatches, int repeats) {
+        if (this.parameters.getHitPolicy().getMode() != HitPolicy.Mode.MAX_N) {
+            return;
+        }
+        this.repeatReads.merge(mismatches, repeats, Integer::sum);
+        System.out.println(REPEATS_MSG + repeats + " (mismatch tolerance " + mismatches + ")");
+    }
+
+
+    /**
+     * Runs an action on the index of every unmapped read, splitting the reads
+     * between NUM_THREADS threads
+     * @param action The action, which must be thread-safe
+     */
+    private void forEachUnmappedRead(IntConsumer action) {
+        int n = this.numUnmappedReads;
         int percentUpdateIncrement = (n < 20) ? 1 : n / 20;
 
         System.out.println("Mapping " + n + " reads to reference genome...");
@@ -419,20 +987,7 @@ public class GenomeAssembler {
                         int percentComplete = 5 * (countRead.get() / percentUpdateIncrement);
                         System.out.println(percentComplete + "% reads mapped");
                     }
-                    String read = this.unmappedReads.get(j);
-                    List<Integer> startingPositions =
-                            this.referenceGenomeReadMapper.mapRead(read, mismatches);
-                    if (startingPositions.isEmpty()) { // Try mapping complement
-                        read = reverseComplement(read);
-                        startingPositions = this.referenceGenomeReadMapper.mapRead(
-                                read, mismatches);
-
-                    }
-                    // Add if and only if it was mapped to at least one position
-                    if (!startingPositions.isEmpty()) {
-                        this.mappedReads.put(read, startingPositions);
-                        mappedReadsIndices.add(j);
-                    }
+                    action.accept(j);
                 }
             });
         }
@@ -441,12 +996,87 @@ public class GenomeAssembler {
             try { thread.join(); }
             catch (InterruptedException e) { e.printStackTrace(); }
         }
-        Collections.sort(mappedReadsIndices);
-        Collections.reverse(mappedReadsIndices);
-        for (int index : mappedReadsIndices) { // Safely removes all reads that were mapped
-            this.unmappedReads.remove(index);
+    }
+
+
+    /**
+     * Gets the number of reads a read stands for
+     * @param reads The store holding the read
+     * @param read The read's index
+     * @return The number of duplicates collapsed into the read, or 1 if
+     *         duplicates are not collapsed, the read is not one of the
+     *         collapsed reads, or it was added later
+     */
+    private int getCount(ReadStore reads, int read) {
+        if (this.collapsedReads == null || reads != this.collapsedReads.getDistinctReads()) {
+            return 1;
+        }
+        return Math.max(this.collapsedReads.getCount(read), 1);
+    }
+
+
+    /**
+     * Removes reads that were mapped from the unmapped reads
+     * @param mappedReadsIndices The indices of the mapped reads
+     */
+    private void removeUnmappedReads(List<Integer> mappedReadsIndices) {
+        BitSet mapped = new BitSet(this.numUnmappedReads);
+        for (int index : mappedReadsIndices) {
+            mapped.set(index);
+        }
+        int kept = 0;
+        for (int j = 0; j < this.numUnmappedReads; j++) { // Keeps the reads in order
+            if (!mapped.get(j)) {
+                this.unmappedReads[kept++] = this.unmappedReads[j];
+            }
         }
-        return mappedReadsIndices.size();
+        this.numUnmappedReads = kept;
+    }
+
+    /**
+     * Moves unmapped reads reported as repeats to the repeated reads
+     * @param repeatedReadsIndices The indices of the repeats among the
+     *                             unmapped reads, in any order
+     */
+    private void addRepeatedReads(List<Integer> repeatedReadsIndices) {
+        Collections.sort(repeatedReadsIndices); // Keeps the reads in order
+        if (this.repeatedReads.length < this.numRepeatedReads + repeatedReadsIndices.size()) {
+            this.repeatedReads = Arrays.copyOf(this.repeatedReads,
+                    this.numRepeatedReads + repeatedReadsIndices.size());
+        }
+        for (int j : repeatedReadsIndices) {
+            this.repeatedReads[this.numRepeatedReads++] = this.unmappedReads[j];
+        }
+    }
+
+    /**
+     * Adds reads to the read store as unmapped reads
+     * @param newReads The reads
+     */
+    private void addUnmappedReads(List<String> newReads) {
+        if (this.unmappedReads.length < this.numUnmappedReads + newReads.size()) {
+            this.unmappedReads = Arrays.copyOf(this.unmappedReads,
+                    this.numUnmappedReads + newReads.size());
+        }
+        for (String read : newReads) {
+            this.unmappedReads[this.numUnmappedReads++] = this.reads.add(read);
+        }
+    }
+
+
+    /**
+     * Lists every mismatch tolerance between the lower bound (inclusive)
+     * and the higher bound (exclusive)
+     * @return The tolerances in increasing order
+     */
+    private List<Integer> getMismatchTolerances() {
+        List<Integer> tolerances = new ArrayList<>();
+        for (int numMismatches = this.parameters.getMismatchToleranceLowerBound();
+             numMismatches < this.parameters.getMismatchToleranceHigherBound();
+             numMismatches += this.parameters.getMismatchToleranceStep()) {
+            tolerances.add(numMismatches);
+        }
+        return tolerances;
     }
 
 
@@ -461,27 +1091,27 @@ public class GenomeAssembler {
         if (this.mappedReads.isEmpty()) {
             return 0;
         }
-        Map<Integer, String> mappedIndices = removeSmallStrings(flipMapping(this.mappedReads));
+        Map<Long, String> mappedIndices = removeSmallStrings(flipMapping(this.mappedReads));
         this.mappedReads.clear(); // No need to store reads any longer
 
-        Map<String, Integer> contigs = new HashMap<>(); // New contig set
+        Map<String, Long> contigs = new HashMap<>(); // New contig set
 
         // Traverse mapped contig positions in order
-        Set<Integer> tempKeySet = mappedIndices.keySet();
-        int start = Collections.min(tempKeySet);
-        int end = Collections.max(tempKeySet);
+        Set<Long> tempKeySet = mappedIndices.keySet();
+        long start = Collections.min(tempKeySet);
+        long end = Collections.max(tempKeySet);
         tempKeySet = null;
 
         int requiredOverlap = this.parameters.getRequiredContigOverlap(), readLength;
         ContigBuilder newContig;
-        for (int i = start; i <= end; i++) { // Loop through mapped indices
+        for (long i = start; i <= end; i++) { // Loop through mapped indices
             if (mappedIndices.containsKey(i)) { // Found read at index
                 String read = mappedIndices.get(i);
                 readLength = read.length();
                 newContig = new ContigBuilder(read, i);
                 // Tries finding other strings it overlaps with
-                int j = i + 1;
-                int validSearchBound = i + readLength - requiredOverlap, newBound;
+                long j = i + 1;
+                long validSearchBound = i + readLength - requiredOverlap, newBound;
                 while (j <= validSearchBound) {
                     if (mappedIndices.containsKey(j)) { // overlaps with other read
                         String otherRead = mappedIndices.get(j);
@@ -516,10 +1146,30 @@ public class GenomeAssembler {
 
     /**
      * Retrieves the assembler's unmapped reads
-     * @return A list containing all unmapped reads
+     * @return A list containing all unmapped reads, unpacked from the read
+     *         store
      */
     public List<String> getUnmappedReads() {
-        return this.unmappedReads;
+        List<String> unmapped = new ArrayList<>(this.numUnmappedReads);
+        for (int j = 0; j < this.numUnmappedReads; j++) {
+            unmapped.add(this.reads.get(this.unmappedReads[j]));
+        }
+        return unmapped;
+    }
+
+
+    /**
+     * Retrieves the reads the hit policy reported as repeats, which are
+     * not placed but are assembled with the unmapped reads
+     * @return A list containing the reads reported as repeats, unpacked
+     *         from the read store
+     */
+    public List<String> getRepeatedReads() {
+        List<String> repeated = new ArrayList<>(this.numRepeatedReads);
+        for (int j = 0; j < this.numRepeatedReads; j++) {
+            repeated.add(this.reads.get(this.repeatedReads[j]));
+        }
+        return repeated;
     }
 
 
@@ -528,7 +1178,7 @@ public class GenomeAssembler {
      * @return A map containing each mapped read and their respective starting
      *      positions in the reference genome
      */
-    public Map<String, List<Integer>> getMappedReads() {
+    public Map<String, List<Long>> getMappedReads() {
         return this.mappedReads;
     }
 
@@ -538,36 +1188,73 @@ public class GenomeAssembler {
      * @return A mapping between the contigs and their starting position in the
      *         genome
      */
-    public List<Map<String, Integer>> getMappedContigSets() {
+    public List<Map<String, Long>> getMappedContigSets() {
         return this.mappedContigSets;
     }
 
 
+    /**
+     * Retrieves the number of reads the seed filter rejected so far
+     * @return A mapping between each filtered mismatch tolerance and the
+     *         number of reads rejected at it
+     */
+    public Map<Integer, Integer> getSeedFilterRejections() {
+        return this.seedFilterRejections;
+    }
+
+
+    /**
+     * Retrieves the distinct reads with the number of times each occurred
+     * @return The collapsed reads, or null if duplicates are not collapsed
+     */
+    public CollapsedReads getCollapsedReads() {
+        return this.collapsedReads;
+    }
+
+
+    /**
+     * Retrieves the number of reads reported as repeats so far
+     * @return A mapping between each mismatch tolerance and the number of
+     *         reads reported as repeats at it
+     */
+    public Map<Integer, Integer> getRepeatReads() {
+        return this.repeatReads;
+    }
+
+
 
     /** Static helper methods and classes */
+    private static int getToleranceLevel(List<Integer> tolerances, int mismatches) {
+        int level = 0;
+        while (tolerances.get(level) < mismatches) {
+            level++;
+        }
+        return level;
+    }
+
     private static String reverseComplement(String s) {
-        StringBuilder complement = new StringBuilder();
-        for (char c : s.toCharArray()) {
-            if (c == 'A') {
-                complement.insert(0, 'T');
-            } else if (c == 'T') {
-                complement.insert(0, 'A');
-            } else if (c == 'C') {
-                complement.insert(0, 'G');
-            } else if (c == 'G') {
-                complement.insert(0, 'C');
-            } else {
-                throw new IllegalArgumentException("Invalid character: " + c);
-            }
+        return BWReadMapper.reverseComplement(s);
+    }
+
+    /**
+     * Replaces a read given as indices in "ACGT" by its reverse complement,
+     * keeping the -1 of any other character
+     * @param bases The read
+     * @param length The length of the read
+     */
+    private static void reverseComplement(byte[] bases, int length) {
+        for (int i = 0, j = length - 1; i <= j; i++, j--) {
+            byte left = bases[i];
+            bases[i] = (bases[j] == -1) ? -1 : (byte) (3 - bases[j]);
+            bases[j] = (left == -1) ? -1 : (byte) (3 - left);
         }
-        return complement.toString();
     }
 
-    private static Map<Integer, List<String>> flipMapping(Map<String,
-            List<Integer>> mappedReads) {
-        Map<Integer, List<String>> flippedMap = new HashMap<>();
-        for (Map.Entry<String, List<Integer>> entry : mappedReads.entrySet()) {
-            for (int startingPosition : entry.getValue()) {
+    private static Map<Long, List<String>> flipMapping(Map<String,
+            List<Long>> mappedReads) {
+        Map<Long, List<String>> flippedMap = new HashMap<>();
+        for (Map.Entry<String, List<Long>> entry : mappedReads.entrySet()) {
+            for (long startingPosition : entry.getValue()) {
                 if (!flippedMap.containsKey(startingPosition)) {
                     flippedMap.put(startingPosition, new ArrayList<>());
                 }
@@ -578,10 +1265,10 @@ public class GenomeAssembler {
     }
 
 
-    private static Map<Integer, String> removeSmallStrings(Map<Integer,
+    private static Map<Long, String> removeSmallStrings(Map<Long,
             List<String>> mappedIndices) {
-        Map<Integer, String> simplified = new HashMap<>();
-        for (Map.Entry<Integer, List<String>> entry : mappedIndices.entrySet()) {
+        Map<Long, String> simplified = new HashMap<>();
+        for (Map.Entry<Long, List<String>> entry : mappedIndices.entrySet()) {
             String longest = entry.getValue().get(0);
             int maxLength = longest.length();
             for (String s : entry.getValue()) { // Finds longest string
@@ -595,22 +1282,22 @@ public class GenomeAssembler {
         return simplified;
     }
 
-    private static List<Integer> getSortedIndices(Map<Integer, String> map) {
-        List<Integer> indices = new ArrayList<>(map.keySet());
+    private static List<Long> getSortedIndices(Map<Long, String> map) {
+        List<Long> indices = new ArrayList<>(map.keySet());
         Collections.sort(indices);
         return indices;
     }
 
 
-    private static char getConsensusBase(int i, List<Map<Integer, String>> mapList) {
+    private static char getConsensusBase(long i, List<Map<Long, String>> mapList) {
         List<Character> bases = new ArrayList<>();
-        for (Map<Integer, String> map : mapList) {
-            for (Map.Entry<Integer, String> entry : map.entrySet()) {
-                int index = entry.getKey();
+        for (Map<Long, String> map : mapList) {
+            for (Map.Entry<Long, String> entry : map.entrySet()) {
+                long index = entry.getKey();
                 String contig = entry.getValue();
                 // Checks if contig covers i
                 if (index <= i && i < index + contig.length()) {
-                    char base = contig.charAt(i - index);
+                    char base = contig.charAt((int) (i - index));
                     bases.add(base);
                     break;
                 }
@@ -643,18 +1330,171 @@ public class GenomeAssembler {
         return total;
     }
 
+    /**
+     * What mapping did with a read
+     */
+    private enum Outcome {
+        UNMAPPED,
+        MAPPED,
+        REPEAT // Reported as a repeat by the hit policy, so not placed
+    }
+
+    /**
+     * A pass mapping reads at one mismatch tolerance, or once at the highest
+     * tolerance with stratified mapping. The pass counts the reads it maps,
+     * rejects and reports as repeats, and may be shared between threads
+     */
+    private class MappingPass {
+        private final int mismatches; // The highest tolerance if stratified
+        private final boolean filtering;
+        private final AtomicInteger numMapped = new AtomicInteger();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger repeats = new AtomicInteger();
+
+        // With stratified mapping, the tolerances and the reads placed at each
+        private final List<Integer> tolerances;
+        private final List<Map<String, List<Long>>> strata;
+        private final List<AtomicInteger> mappedCounts;
+
+        /**
+         * Maps reads with a tolerance, into the mapped reads
+         * @param mismatches The number of tolerated mismatches
+         */
+        private MappingPass(int mismatches) {
+            this.mismatches = mismatches;
+            this.filtering = isSeedFiltering(mismatches);
+            this.tolerances = null;
+            this.strata = null;
+            this.mappedCounts = null;
+        }
+
+        /**
+         * Maps reads once with the highest tolerance, placing each read in
+         * the stratum of the smallest tolerance it maps with
+         * @param tolerances The tolerances, in increasing order
+         */
+        private MappingPass(List<Integer> tolerances) {
+            this.mismatches = tolerances.get(tolerances.size() - 1);
+            this.filtering = isSeedFiltering(this.mismatches);
+            this.tolerances = tolerances;
+            this.strata = new ArrayList<>();
+            this.mappedCounts = new ArrayList<>();
+            for (int i = 0; i < tolerances.size(); i++) {
+                this.strata.add(new ConcurrentHashMap<>());
+                this.mappedCounts.add(new AtomicInteger());
+            }
+        }
+
+        /**
+         * Maps a read
+         * @param reads The store holding the read
+         * @param read The read's index
+         * @return Whether the read was mapped or reported as a repeat
+         */
+        private Outcome map(ReadStore reads, int read) {
+            Outcome outcome = (this.strata == null) ?
+                    mapWithTolerance(reads, read) : mapBestStratum(reads, read);
+            if (outcome != Outcome.UNMAPPED) {
+                this.numMapped.addAndGet(getCount(reads, read));
+            }
+            return outcome;
+        }
+
+        private Outcome mapWithTolerance(ReadStore reads, int r) {
+            int length = reads.getLength(r);
+            byte[] bases = reads.getBases(r, mappingScratch.get().getBases(length));
+            if (this.filtering && !seedFilter.mayMap(bases, length, this.mismatches)) {
+                this.rejected.addAndGet(getCount(reads, r)); // Neither strand can map
+                return Outcome.UNMAPPED;
+            }
+            return mapStrands(reads, r, bases, length, this.mismatches, this.repeats);
+        }
+
+        private Outcome mapBestStratum(ReadStore reads, int r) {
+            int length = reads.getLength(r);
+            byte[] bases = reads.getBases(r, mappingScratch.get().getBases(length));
+            if (this.filtering && !seedFilter.mayMap(bases, length, this.mismatches)) {
+                this.rejected.addAndGet(getCount(reads, r)); // Cannot map at any tolerance
+                return Outcome.UNMAPPED;
+            }
+            HitPolicy policy = parameters.getHitPolicy();
+            MappingStratum stratum = referenceGenomeReadMapper.mapReadBestStratum(bases,
+                    length, this.mismatches, policy);
+            int level = stratum.isMapped() ? getToleranceLevel(this.tolerances,
+                    stratum.getMismatches()) : this.tolerances.size();
+            boolean complemented = false;
+            if (stratum.getPositions().isEmpty() && stratum.isMapped() && !stratum.isRepeat()) {
+                // Only the complement mapped, found by the same search
+                complemented = true;
+                stratum = new MappingStratum(stratum.getMismatches(),
+                        stratum.getReversePositions());
+            } else if (level > 0 && !isBothStrandIndex()) {
+                // Complement can only replace it at a lower level
+                reverseComplement(bases, length);
+                MappingStratum complementStratum = referenceGenomeReadMapper.
+                        mapReadBestStratum(bases, length, this.tolerances.get(level - 1), policy);
+                if (complementStratum.isMapped()) {
+                    complemented = true;
+                    stratum = complementStratum;
+                    level = getToleranceLevel(this.tolerances, stratum.getMismatches());
+                }
+            }
+            if (!stratum.isMapped()) {
+                return Outcome.UNMAPPED;
+            }
+            if (stratum.isRepeat()) {
+                this.repeats.addAndGet(getCount(reads, r));
+                return Outcome.REPEAT;
+            }
+            List<Long> positions = stratum.getPositions();
+            if (positions.size() > policy.getMaxHits()) {
+                positions = new ArrayList<>(positions.subList(0, policy.getMaxHits()));
+            }
+            String read = complemented ? reverseComplement(reads.get(r)) : reads.get(r);
+            this.strata.get(level).put(read, positions);
+            this.mappedCounts.get(level).addAndGet(getCount(reads, r));
+            return Outcome.MAPPED;
+        }
+
+        /**
+         * Records the number of reads the seed filter rejected and the number
+         * reported as repeats
+         */
+        private void record() {
+            if (this.filtering) {
+                recordSeedFilterRejections(this.mismatches, this.rejected.get());
+            }
+            recordRepeats(this.mismatches, this.repeats.get());
+        }
+    }
+
+    /**
+     * Per-thread buffers reused across the reads a thread maps
+     */
+    private static class MappingScratch {
+        private final HitBuffer hits = new HitBuffer(2, 4);
+        private byte[] bases = new byte[0];
+
+        private byte[] getBases(int length) {
+            if (this.bases.length < length) {
+                this.bases = new byte[length];
+            }
+            return this.bases;
+        }
+    }
+
     private static class ContigBuilder {
         private StringBuilder stringBuilder;
-        private final int startIndex;
+        private final long startIndex;
 
-        private ContigBuilder(String read, int startIndex) {
+        private ContigBuilder(String read, long startIndex) {
             this.stringBuilder = new StringBuilder(read);
             this.startIndex = startIndex;
         }
 
-        private void combineRead(String otherRead, int otherReadStartIndex) {
-            int substringStart = this.startIndex +
-                    this.stringBuilder.length() - otherReadStartIndex;
+        private void combineRead(String otherRead, long otherReadStartIndex) {
+            int substringStart = (int) (this.startIndex +
+                    this.stringBuilder.length() - otherReadStartIndex);
             if (substringStart < otherRead.length()) {
                 this.stringBuilder.append(otherRead.substring(substringStart));
             }
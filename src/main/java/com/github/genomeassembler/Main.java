@@ -3,34 +3,56 @@ package com.github.genomeassembler;
 import com.github.genomeassembler.parser.FastaParser;
 import com.github.genomeassembler.parser.FastqParser;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
 
 public class Main {
     private final static String READS_PATH_ONE = "";
     private final static String READS_PATH_TWO = "";
     private final static String GENOME_PATH = "";
+    private final static String GENOME_INDEX_PATH = "";
+    private final static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
 
     public static void main(String[] args) {
         try {
-            String genome = FastaParser.parseGffFile(GENOME_PATH);
-            List<String> readsOne = FastqParser.getReads(READS_PATH_ONE);
-            List<String> readsTwo = FastqParser.getReads(READS_PATH_TWO);
-            List<String> combinedReads = new ArrayList<>(readsOne.size() + readsTwo.size());
-            combinedReads.addAll(readsOne);
-            combinedReads.addAll(readsTwo);
-            GenomeAssembler genomeAssembler = new GenomeAssembler(genome, combinedReads);
+            Map<String, String> genome = FastaParser.parseGffRecords(GENOME_PATH);
             AssemblerParameters parameters = new AssemblerParameters.Builder().
                     mismatchToleranceLowerBound(0).
                     mismatchToleranceHigherBound(7).
                     mismatchToleranceStep(1).
                     minContigOutputLength(250).
                     kmerLength(30).
+                    suffixArraySamplingRate(16).
+                    kmerTableLength(12).
+                    indexThreads(NUM_THREADS).
+                    stratifiedMapping(true).
+                    bothStrandIndex(true).
+                    duplicateCollapsing(true).
+                    referenceIndexPath(GENOME_INDEX_PATH).
+                    readBatchSize(1 << 16).
+                    readQueueDepth(8).
                     build();
-            genomeAssembler.setAssemblerParameters(parameters);
+            // The paired-end files are parsed at the same time, and their
+            // reads are mapped as they are parsed
+            GenomeAssembler genomeAssembler = GenomeAssembler.fromReadSources(genome,
+                    Arrays.asList(getReadSource(READS_PATH_ONE, parameters),
+                            getReadSource(READS_PATH_TWO, parameters)), parameters);
             genomeAssembler.assemble();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Makes a source of the reads of a fastq file, parsed in batches on
+     * half of the threads, since both files are parsed at once
+     * @param path The path of the file
+     * @param parameters The assembler's settings, giving the batch size
+     * @return The read source
+     */
+    private static ReadSource getReadSource(String path, AssemblerParameters parameters) {
+        int threadsPerFile = Math.max(NUM_THREADS / 2, 1);
+        return batches -> FastqParser.getReadBatches(path, parameters.getReadBatchSize(),
+                threadsPerFile, batches);
+    }
 }
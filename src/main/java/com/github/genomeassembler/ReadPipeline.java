@@ -0,0 +1,141 @@
+package com.github.genomeassembler;
+
+import com.github.genomeassembler.mapper.ReadStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs reads through a producer-consumer pipeline. Each read source is
+ * parsed on a thread of its own, which puts its batches of reads into a
+ * bounded queue, and worker threads map the batches as soon as they are
+ * taken from the queue. Parsing thus overlaps with mapping, and at most
+ * queueDepth parsed batches wait in memory at once.
+ * What is kept of each batch, such as the reads it leaves unmapped, is
+ * returned in source order and then batch order, whatever order the
+ * workers finished the batches in
+ */
+class ReadPipeline {
+
+    /**
+     * Maps a batch of reads
+     * @param <T> What is kept of a mapped batch
+     */
+    interface BatchMapper<T> {
+        /**
+         * @param batch The reads, which are not used after the call
+         * @return What is kept of the batch, such as its unmapped reads
+         */
+        T map(ReadStore batch);
+    }
+
+    /**
+     * A batch of reads, with the source it came from and its place in it
+     */
+    private static class Batch {
+        private final int source;
+        private final int number;
+        private final ReadStore reads;
+
+        private Batch(int source, int number, ReadStore reads) {
+            this.source = source;
+            this.number = number;
+            this.reads = reads;
+        }
+    }
+
+    // Tells a worker that every source is parsed
+    private final static Batch END = new Batch(-1, -1, null);
+
+    /**
+     * Parses and maps the reads of every source
+     * @param sources The read sources, which are parsed at the same time
+     * @param queueDepth The most parsed batches waiting to be mapped
+     * @param workers The number of threads mapping batches
+     * @param mapper Maps each batch, and must be thread-safe
+     * @return What is kept of every batch, in source and batch order
+     */
+    static <T> List<T> run(List<ReadSource> sources, int queueDepth, int workers,
+                           BatchMapper<T> mapper) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(Math.max(queueDepth, 1));
+        List<Map<Integer, T>> kept = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            kept.add(new ConcurrentHashMap<>());
+        }
+        AtomicInteger parsingSources = new AtomicInteger(sources.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(sources.size() + workers);
+        CompletionService<Void> tasks = new ExecutorCompletionService<>(executor);
+        try {
+            for (int w = 0; w < workers; w++) {
+                tasks.submit(() -> {
+                    for (Batch batch = queue.take(); batch != END; batch = queue.take()) {
+                        kept.get(batch.source).put(batch.number, mapper.map(batch.reads));
+                    }
+                    return null;
+                });
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                int source = i;
+                tasks.submit(() -> {
+                    int[] number = {0};
+                    sources.get(source).forEachBatch(reads ->
+                            put(queue, new Batch(source, number[0]++, reads)));
+                    if (parsingSources.decrementAndGet() == 0) { // The last source
+                        for (int w = 0; w < workers; w++) {
+                            put(queue, END);
+                        }
+                    }
+                    return null;
+                });
+            }
+            if (sources.isEmpty()) {
+                for (int w = 0; w < workers; w++) {
+                    put(queue, END);
+                }
+            }
+            // A failed task stops every other task, which could otherwise wait
+            // on the queue forever
+            for (int t = 0; t < sources.size() + workers; t++) {
+                tasks.take().get();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Read pipeline interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Read pipeline failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<T> results = new ArrayList<>();
+        for (Map<Integer, T> batches : kept) {
+            for (int number = 0; number < batches.size(); number++) {
+                results.add(batches.get(number));
+            }
+        }
+        return results;
+    }
+
+    private static void put(BlockingQueue<Batch> queue, Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Read pipeline interrupted", e);
+        }
+    }
+}
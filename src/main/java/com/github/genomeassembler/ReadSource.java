@@ -0,0 +1,19 @@
+package com.github.genomeassembler;
+
+import com.github.genomeassembler.mapper.ReadStore;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A source of reads that are parsed in batches, such as a FASTQ file, so
+ * that the reads can be mapped while the rest of the source is parsed
+ */
+public interface ReadSource {
+    /**
+     * Parses the reads, passing each batch to a consumer as soon as it is
+     * full. The consumer may block until there is room for the batch
+     * @param batches Receives the batches, in source order
+     */
+    void forEachBatch(Consumer<ReadStore> batches) throws IOException;
+}
@@ -1,170 +1,857 @@
 package com.github.genomeassembler.mapper;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 
 
 /**
- * The mapping utilizes the Burrows-Wheeler transformation. It stores the full
- * genome in an int array.
- * Each i-th int stores information of 3 items:
- *      - The first two bits store i-th char of the sorted BWT string
- *      - The 3rd and 4th bit store the i-th char of the BWT string
- *      - The other 28 bits store how many times the i-th char of the BWT string
- *              occurred within the BWT string up to index i (inclusive)
- * This does not support genomes longer than ~200,000,000 bp long
- * This costs ~4 * len(genome) bytes plus expensive Java overhead
+ * The mapping utilizes the Burrows-Wheeler transformation. The BWT of the
+ * genome is stored 2 bits per base in an OccurrenceTable, which answers how
+ * many times a base occurs in the BWT before any row. Together with the
+ * number of A's, C's, G's, and T's, this gives the first column of the
+ * sorted BWT and the LF mapping without storing either.
+ * Only suffix array entries at positions that are a multiple of the sampling
+ * rate are kept; other hits are located by LF-mapping to a sampled row.
+ * The interval of every string of up to q bases is precomputed in a
+ * KmerIntervalTable, so searches look up the interval of a read's last q
+ * bases (with any mismatches among them) instead of computing it.
+ * The genome may be made of several named sequences, which are concatenated
+ * and recorded in a SequenceTable; hits crossing from one sequence into the
+ * next are dropped.
+ * Soft-masked (lowercase) bases are indexed as the bases they are. Any other
+ * character, such as an N, is indexed as a base picked from its position
+ * that is the same on every build, as BWA does, so that a run of N's is not
+ * one long repeat that low-complexity reads match. The runs are recorded as
+ * gaps of the SequenceTable, and hits overlapping a gap are dropped.
+ * Optionally the reverse complement of the genome is indexed after it, so
+ * that one search finds a read on both strands. Hits in the reverse
+ * complement are reported at the forward position of the read's reverse
+ * complement, flagged as reverse strand hits.
+ * The genome is packed 2 bits per base in a PackedText while its suffixes
+ * are sorted blockwise by a ParallelSuffixSorter, and positions are longs
+ * throughout, so genomes longer than 2^31 bp can be indexed. The
+ * DifferenceCoverSample of the sort limits the indexed text to
+ * ~17,000,000,000 bp, and as samples are ints there must be fewer than 2^31
+ * of them, so a longer genome needs a higher sampling rate. A saved index
+ * maps each section on its own, so its packed BWT and its samples must each
+ * stay under 2 GiB.
+ * This costs ~0.375 * len(genome) bytes for the BWT plus
+ * ~(4 / samplingRate + 0.14) * len(genome) bytes for the suffix array
+ * The index can be saved to a file and later mapped from it, which skips
+ * processing the genome and shares the file's pages between processes.
+ * The index keeps a digest of the sequences it was built from and the
+ * parameters it was built with, so a saved index can be checked against the
+ * genome and parameters it is meant to stand for
  */
 public class BWReadMapper implements ReadMapper {
     private final static int SORTED_BITS_OFFSET = 30;
     private final static int BWT_BITS_OFFSET = 28;
     private final static int CHAR_MASK = 0x3;
     private final static int MAX_OCCURRENCES = 0xFFFFFFF;
+    private final static String BASES = "ACGT";
+    // The index in "ACGT" of each ASCII character, or -1
+    private final static byte[] BASE_CODES = new byte[128];
+    public final static int DEFAULT_SAMPLING_RATE = 16;
+    public final static int DEFAULT_KMER_TABLE_LENGTH = 10;
+    public final static String DEFAULT_SEQUENCE_NAME = "genome";
     private final static String BWT_FINISH_MSG = "Completed Burrows-Wheeler " +
             "transformation and suffix array construction";
 
-    private int endMarkerLocation = -1;  // Marks where $ is
-    private int numA;
-    private int numC;
-    private int numG;
-    private int numT;
-    private final int[] genome;
-    private int[] suffixArray; // Stores every suffix
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        for (int base = 0; base < BASES.length(); base++) {
+            BASE_CODES[BASES.charAt(base)] = (byte) base;
+        }
+    }
+
+    private long numA;
+    private long numC;
+    private long numG;
+    private long numT;
+    private final OccurrenceTable occurrences; // The BWT of the genome
+    private final SampledSuffixArray suffixArray;
+    private final SequenceTable sequences;
+    private final KmerIntervalTable kmerIntervals;
+    private final boolean bothStrands;
+    private final int preferredKmerTableLength;
+    private final long digest; // Of the sequences, as computed by computeDigest
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 
 
+    /**
+     * Processes the genome, sampling the suffix array at the default rate
+     * @param genomeSequence The genome sequence
+     */
+    public BWReadMapper(String genomeSequence) {
+        this(genomeSequence, DEFAULT_SAMPLING_RATE);
+    }
+
     /**
      * Processes the genome
      *      - Performs the Burrows Wheeler transformation
      *      - Counts number of A's, C's, T's, and G's within the genome
-     *      - Stores information within an int[] as long as the genome + 1
+     *      - Packs the BWT into an OccurrenceTable
+     *      - Samples the suffix array
      * @param genomeSequence The genome sequence
+     * @param samplingRate Keeps suffix array entries whose position is a
+     *                     multiple of this; 1 keeps the full suffix array
      */
-    public BWReadMapper(String genomeSequence) {
-        this.numA = 0;
-        this.numC = 0;
-        this.numT = 0;
-        this.numG = 0;
-        this.genome = new int[genomeSequence.length() + 1]; // plus a $
-        this.suffixArray = new int[genomeSequence.length() + 1]; // plus a $
-        String bwt = BurrowsWheelerTransform.transform(genomeSequence, this.suffixArray);
-        //String bwt = quickSetup();
+    public BWReadMapper(String genomeSequence, int samplingRate) {
+        this(Collections.singletonMap(DEFAULT_SEQUENCE_NAME, genomeSequence), samplingRate);
+    }
+
+    /**
+     * Processes a genome made of several sequences, which are concatenated
+     * in iteration order
+     * @param sequences The sequences, mapped from their names
+     * @param samplingRate Keeps suffix array entries whose position is a
+     *                     multiple of this; 1 keeps the full suffix array
+     */
+    public BWReadMapper(Map<String, String> sequences, int samplingRate) {
+        this(sequences, samplingRate, DEFAULT_KMER_TABLE_LENGTH);
+    }
+
+    /**
+     * Processes a genome made of several sequences, which are concatenated
+     * in iteration order
+     * @param sequences The sequences, mapped from their names
+     * @param samplingRate Keeps suffix array entries whose position is a
+     *                     multiple of this; 1 keeps the full suffix array
+     * @param kmerTableLength The preferred length q of the strings whose
+     *                        intervals are precomputed; it is lowered so that
+     *                        4^q does not exceed the genome length
+     */
+    public BWReadMapper(Map<String, String> sequences, int samplingRate,
+                        int kmerTableLength) {
+        this(sequences, samplingRate, kmerTableLength, false);
+    }
+
+    /**
+     * Processes a genome made of several sequences, which are concatenated
+     * in iteration order
+     * @param sequences The sequences, mapped from their names
+     * @param samplingRate Keeps suffix array entries whose position is a
+     *                     multiple of this; 1 keeps the full suffix array
+     * @param kmerTableLength The preferred length q of the strings whose
+     *                        intervals are precomputed
+     * @param bothStrands True to also index the reverse complement, which
+     *                    doubles the index
+     */
+    public BWReadMapper(Map<String, String> sequences, int samplingRate,
+                        int kmerTableLength, boolean bothStrands) {
+        this(sequences, samplingRate, kmerTableLength, bothStrands, 1);
+    }
+
+    /**
+     * Processes a genome made of several sequences, which are concatenated
+     * in iteration order
+     * @param sequences The sequences, mapped from their names
+     * @param samplingRate Keeps suffix array entries whose position is a
+     *                     multiple of this; 1 keeps the full suffix array
+     * @param kmerTableLength The preferred length q of the strings whose
+     *                        intervals are precomputed
+     * @param bothStrands True to also index the reverse complement
+     * @param threads The number of threads sorting the suffix array; the
+     *                index is the same for any number
+     */
+    public BWReadMapper(Map<String, String> sequences, int samplingRate,
+                        int kmerTableLength, boolean bothStrands, int threads) {
+        this.sequences = SequenceTable.of(sequences);
+        this.bothStrands = bothStrands;
+        this.preferredKmerTableLength = kmerTableLength;
+        this.digest = computeDigest(sequences);
+        PackedText text = new PackedText(sequences, this.sequences.getTotalLength(),
+                bothStrands);
+
+        // The sorted suffixes are streamed in order into the BWT, whose
+        // character in each row precedes the row's suffix, and the samples,
+        // so neither the text nor the full suffix array is ever unpacked
+        OccurrenceTable.Builder builder = new OccurrenceTable.Builder(text.length());
+        SampledSuffixArray.Builder sampler =
+                new SampledSuffixArray.Builder(text.length(), samplingRate);
+        long[] baseCounts = new long[4];
+        ParallelSuffixSorter.sort(text, threads, position -> {
+            sampler.append(position);
+            if (position == 0) {
+                builder.appendEndMarker();
+            } else {
+                int base = text.getBase(position - 1);
+                baseCounts[base]++;
+                builder.append(base);
+            }
+        });
         System.out.println(BWT_FINISH_MSG);
-        char[] tempArray = bwt.toCharArray();
-        Arrays.sort(tempArray);
-        String sorted = String.copyValueOf(tempArray);
-        tempArray = null;
-        char bwtChar, sortedChar;
-        int packed, numOccurrences;
-        for (int i = 0; i < genome.length; i++) {
-            bwtChar = bwt.charAt(i);
-            sortedChar = sorted.charAt(i);
-            switch(bwtChar) {
-                case 'A':
-                    this.numA++;
-                    numOccurrences = this.numA;
-                    break;
-                case 'C':
-                    this.numC++;
-                    numOccurrences = this.numC;
-                    break;
-                case 'G':
-                    this.numG++;
-                    numOccurrences = this.numG;
-                    break;
-                case 'T':
-                    this.numT++;
-                    numOccurrences = this.numT;
-                    break;
-                case '$':
-                    this.endMarkerLocation = i;
-                    numOccurrences = 1;
-                    break;
-                default:
-                    throw new IllegalArgumentException("Char not recognized : " + bwtChar);
+        this.numA = baseCounts[0];
+        this.numC = baseCounts[1];
+        this.numG = baseCounts[2];
+        this.numT = baseCounts[3];
+        this.suffixArray = sampler.build();
+        this.occurrences = builder.build();
+        this.kmerIntervals = KmerIntervalTable.build(this.occurrences, getFirstRows(),
+                KmerIntervalTable.getLength(kmerTableLength, this.occurrences.length()));
+    }
+
+    /**
+     * Creates a mapper over an already built index
+     * @param baseCounts The number of A's, C's, G's, and T's
+     * @param occurrences The BWT
+     * @param suffixArray The sampled suffix array
+     * @param sequences The sequences making up the genome
+     * @param kmerIntervals The precomputed intervals
+     * @param bothStrands True if the reverse complement is indexed after the
+     *                    genome
+     * @param preferredKmerTableLength The k-mer table length asked for
+     * @param digest The digest of the sequences
+     */
+    BWReadMapper(long[] baseCounts, OccurrenceTable occurrences,
+                 SampledSuffixArray suffixArray, SequenceTable sequences,
+                 KmerIntervalTable kmerIntervals, boolean bothStrands,
+                 int preferredKmerTableLength, long digest) {
+        this.numA = baseCounts[0];
+        this.numC = baseCounts[1];
+        this.numG = baseCounts[2];
+        this.numT = baseCounts[3];
+        this.occurrences = occurrences;
+        this.suffixArray = suffixArray;
+        this.sequences = sequences;
+        this.kmerIntervals = kmerIntervals;
+        this.bothStrands = bothStrands;
+        this.preferredKmerTableLength = preferredKmerTableLength;
+        this.digest = digest;
+    }
+
+    /**
+     * Opens an index saved by save. The index is memory-mapped, so opening
+     * takes time independent of the genome length
+     * @param path The path of the index file
+     * @return The mapper
+     * @throws IOException If the file can't be read or is not an index
+     */
+    public static BWReadMapper open(Path path) throws IOException {
+        return IndexFile.read(path);
+    }
+
+    /**
+     * Saves the index so that it can be opened without processing the
+     * genome again
+     * @param path The path of the index file, which is replaced atomically
+     * @throws IOException If the file can't be written
+     */
+    public void save(Path path) throws IOException {
+        IndexFile.write(path, this.suffixArray.getSamplingRate(),
+                new long[] {numA, numC, numG, numT}, this.occurrences,
+                this.suffixArray, this.sequences, this.kmerIntervals, this.bothStrands,
+                this.preferredKmerTableLength, this.digest);
+    }
+
+    /**
+     * Computes a 64-bit digest of a genome's sequences, over their names,
+     * lengths and characters, with bases in either case counting as the same
+     * base. A sequence edited in place, keeping its length, changes the
+     * digest
+     * @param sequences The sequences, mapped from their names
+     * @return The digest
+     */
+    public static long computeDigest(Map<String, String> sequences) {
+        long digest = sequences.size();
+        for (Map.Entry<String, String> sequence : sequences.entrySet()) {
+            digest = mixDigest(digest, sequence.getKey().hashCode());
+            String bases = sequence.getValue();
+            digest = mixDigest(digest, bases.length());
+            long word = 0;
+            for (int i = 0; i < bases.length(); i++) {
+                word = (word << 8) | (Character.toUpperCase(bases.charAt(i)) & 0xFF);
+                if (i % Long.BYTES == Long.BYTES - 1 || i == bases.length() - 1) {
+                    digest = mixDigest(digest, word);
+                    word = 0;
+                }
+            }
+        }
+        return digest;
+    }
+
+    private static long mixDigest(long digest, long value) {
+        long hash = (digest ^ value) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Maps a read to the genome. With both strands indexed, only the hits on
+     * the forward strand are returned
+     * @param read The read being mapped
+     * @param mismatches The number of tolerant mismatches
+     * @return All starting positions in the genome that read occurs
+     */
+    @Override
+    public List<Long> mapRead(String read, int mismatches) {
+        HitBuffer hits = mapToScratch(read, mismatches);
+        List<Long> validMappings = new ArrayList<>(hits.getNumHits());
+        for (int i = 0; i < hits.getNumHits(); i++) {
+            if (!hits.isReverse(i)) {
+                validMappings.add(hits.getPosition(i));
             }
-            packed = packInformation(sortedChar, bwtChar, numOccurrences);
-            this.genome[i] = packed;
         }
+        return validMappings;
+    }
+
+    private HitBuffer mapToScratch(String read, int mismatches) {
+        Scratch scratch = this.scratch.get();
+        scratch.hits.clear();
+        byte[] bases = encodeRead(read, scratch.getBases(read.length()));
+        mapRead(bases, read.length(), mismatches, scratch.hits);
+        return scratch.hits;
     }
 
+    /**
+     * Maps a read without allocating: the lower bounds of the mismatch
+     * search are kept in per-thread arrays that are reused across reads,
+     * and hits are appended to the caller's buffer
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param mismatches The number of tolerant mismatches
+     * @param hits The buffer receiving the starting positions, as one read,
+     *             including those on the reverse strand if it is indexed
+     */
     @Override
-    public List<Integer> mapRead(String read, int mismatches) {
-        char start = read.charAt(read.length() - 1);  // search backwards
-        int rangeStart, rangeEnd; // Indices to check (end-exclusive)
+    public void mapRead(byte[] bases, int length, int mismatches, HitBuffer hits) {
+        mapRead(bases, length, mismatches, HitPolicy.ALL, hits);
+    }
+
+    /**
+     * Maps a read, reporting the hits a policy keeps. Under FIRST the
+     * search stops at the first hit. Under MAX_N the search only adds up the
+     * rows of the intervals it reaches and stops once there are more than N,
+     * so the rows of a repeat are never located. BEST_STRATUM runs the
+     * search of mapReadBestStratum. Except under BEST_STRATUM, nothing is
+     * allocated once the per-thread arrays have grown
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param mismatches The number of tolerant mismatches
+     * @param policy The hits reported
+     * @param hits The buffer receiving the starting positions, as one read,
+     *             including those on the reverse strand if it is indexed
+     */
+    @Override
+    public void mapRead(byte[] bases, int length, int mismatches, HitPolicy policy,
+                        HitBuffer hits) {
+        if (policy.getMode() == HitPolicy.Mode.BEST_STRATUM && mismatches > 0) {
+            StratumSearch search = searchBestStratum(bases, length, mismatches, policy);
+            for (long position : search.positions) {
+                hits.add(position, false);
+            }
+            for (long position : search.reversePositions) {
+                hits.add(position, true);
+            }
+            hits.endRead();
+            return;
+        }
+        Scratch scratch = this.scratch.get();
+        HitSearch search = scratch.search;
+        search.reset(policy, hits);
         if (mismatches == 0) {
-            if (start == 'A') {
-                rangeStart = 1;
-                rangeEnd = rangeStart + this.numA;
-            } else if (start == 'C') {
-                rangeStart = this.numA + 1;
-                rangeEnd = rangeStart + this.numC;
-            } else if (start == 'G') {
-                rangeStart = this.numA + this.numC + 1;
-                rangeEnd = rangeStart + this.numG;
-            } else if (start == 'T') {
-                rangeStart = this.numA + this.numC + this.numG + 1;
-                rangeEnd = rangeStart + this.numT;
-            } else {
-                throw new IllegalArgumentException("Illegal read: " + read);
+            mapExactly(bases, length, search);
+        } else {
+            int[] lowerBounds = getLowerBounds(bases, length, scratch.getLowerBounds(length));
+            searchWithMismatches(bases, length, length - 1, mismatches, 0,
+                    0, this.occurrences.length(), lowerBounds, search);
+        }
+        if (search.repeat) {
+            hits.markRepeat();
+        }
+        for (int leaf = 0; leaf < search.numLeaves; leaf++) { // Left for last by MAX_N
+            reportHits(search.lows[leaf], search.highs[leaf], length, hits);
+        }
+        hits.endRead();
+    }
+
+
+    /**
+     * Maps a read in a single search that tightens its mismatch bound every
+     * time it finds a hit with fewer mismatches than the hits found so far
+     * @param read The read being mapped
+     * @param maxMismatches The largest number of tolerant mismatches
+     * @return The best stratum of the read's mappings
+     */
+    @Override
+    public MappingStratum mapReadBestStratum(String read, int maxMismatches) {
+        byte[] bases = encodeRead(read, this.scratch.get().getBases(read.length()));
+        return mapReadBestStratum(bases, read.length(), maxMismatches, HitPolicy.ALL);
+    }
+
+    /**
+     * Maps a read like mapReadBestStratum(String, int), without decoding it.
+     * Under MAX_N the rows of the best stratum are added up before they are
+     * located, and once there are more than N the stratum is a repeat and
+     * only a stratum with fewer mismatches is still searched for
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param maxMismatches The largest number of tolerant mismatches
+     * @param policy The policy deciding whether the best stratum is a repeat
+     * @return The best stratum of the read's mappings
+     */
+    @Override
+    public MappingStratum mapReadBestStratum(byte[] bases, int length, int maxMismatches,
+                                             HitPolicy policy) {
+        StratumSearch search = searchBestStratum(bases, length, maxMismatches, policy);
+        if (search.repeat) {
+            return MappingStratum.repeat(search.bestMismatches);
+        }
+        if (search.positions.isEmpty() && search.reversePositions.isEmpty()) {
+            return MappingStratum.UNMAPPED;
+        }
+        return new MappingStratum(search.bestMismatches, search.positions,
+                search.reversePositions);
+    }
+
+    private StratumSearch searchBestStratum(byte[] bases, int length, int maxMismatches,
+                                            HitPolicy policy) {
+        Scratch scratch = this.scratch.get();
+        StratumSearch search = new StratumSearch(length, maxMismatches, policy,
+                scratch.leafHits);
+        searchBestStratum(bases, length - 1, 0, 0, 0, this.occurrences.length(),
+                getLowerBounds(bases, length, scratch.getLowerBounds(length)), search);
+        return search;
+    }
+
+    /**
+     * Maps a read without mismatches by backward search. The rows whose
+     * suffixes start with the matched part of the read form the interval
+     * [low, high), which is looked up for the last q bases of the read and
+     * then narrowed one base at a time. The suffix array is only read to
+     * report the final interval. A character other than A, C, G, or T
+     * matches no base, so a read holding one has no hits
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param search Receives the final interval
+     */
+    private void mapExactly(byte[] bases, int length, HitSearch search) {
+        int tableLength = Math.min(length, this.kmerIntervals.getLength());
+        int code = 0;
+        for (int i = length - tableLength; i < length; i++) {
+            if (bases[i] == -1) {
+                return;
+            }
+            code = (code << 2) | bases[i];
+        }
+        long low = this.kmerIntervals.getLow(tableLength, code);
+        long high = this.kmerIntervals.getHigh(tableLength, code);
+        for (int i = length - tableLength - 1; i >= 0 && low < high; i--) {
+            int base = bases[i];
+            if (base == -1) {
+                return;
             }
-        } else { // Can afford at least one mismatch
-            rangeStart = 1; // Don't start at '$'
-            rangeEnd = genome.length;
+            long firstRow = getFirstRow(base);
+            low = firstRow + this.occurrences.occurrences(base, low);
+            high = firstRow + this.occurrences.occurrences(base, high);
         }
+        if (low < high) {
+            reportLeaf(low, high, length, search);
+        }
+    }
 
-        List<Integer> validMappings = new ArrayList<>();
-        for (int i = rangeStart; i < rangeEnd; i++) {
-            int endIndex;
-            if (getSortedChar(genome[i]) != start) { // already one mismatch
-                endIndex = tryMapping(read, mismatches - 1, i);
-            } else {
-                endIndex = tryMapping(read, mismatches, i);
+    /**
+     * Checks whether part of a read occurs exactly in the index by backward
+     * search, without locating any row. Unlike mapRead, occurrences that
+     * cross from one sequence into the next are counted as well
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param start The first base of the part
+     * @param end The end of the part (exclusive)
+     * @param reverseComplement True to search the part's reverse complement
+     * @return True if the part occurs at least once
+     */
+    public boolean occurs(byte[] bases, int start, int end, boolean reverseComplement) {
+        int length = end - start;
+        int tableLength = Math.min(length, this.kmerIntervals.getLength());
+        int code = 0;
+        for (int k = 0; k < tableLength; k++) {
+            int base = getSearchedBase(bases, start, end, k, reverseComplement);
+            if (base == -1) {
+                return false;
+            }
+            code |= base << (2 * k);
+        }
+        long low = this.kmerIntervals.getLow(tableLength, code);
+        long high = this.kmerIntervals.getHigh(tableLength, code);
+        for (int k = tableLength; k < length && low < high; k++) {
+            int base = getSearchedBase(bases, start, end, k, reverseComplement);
+            if (base == -1) {
+                return false;
             }
+            long firstRow = getFirstRow(base);
+            low = firstRow + this.occurrences.occurrences(base, low);
+            high = firstRow + this.occurrences.occurrences(base, high);
+        }
+        return low < high;
+    }
 
-            if (endIndex != -1) {
-                validMappings.add(this.suffixArray[endIndex]);
+    /**
+     * Returns the k-th last base of a searched part of a read
+     */
+    private static int getSearchedBase(byte[] bases, int start, int end, int k,
+                                       boolean reverseComplement) {
+        if (!reverseComplement) {
+            return bases[end - 1 - k];
+        }
+        int base = bases[start + k];
+        return (base == -1) ? -1 : 3 - base;
+    }
+
+    /**
+     * Locates every row of an interval, skipping the hits that cross from
+     * one sequence of the genome into the next
+     * @param low The first row of the interval
+     * @param high The end of the interval (exclusive)
+     * @param readLength The length of the mapped read
+     * @param hits Receives the position of every hit
+     */
+    private void reportHits(long low, long high, int readLength, HitBuffer hits) {
+        reportHits(low, high, readLength, hits, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Locates the rows of an interval until some number of hits are found
+     * @param maxHits The number of hits after which the rest are skipped
+     */
+    private void reportHits(long low, long high, int readLength, HitBuffer hits, int maxHits) {
+        long genomeLength = this.sequences.getTotalLength();
+        int reported = 0;
+        for (long row = low; row < high && reported < maxHits; row++) {
+            long position = locate(row);
+            boolean reverse = position >= genomeLength;
+            if (reverse) { // Where the reverse complement occurs on the forward strand
+                position = 2 * genomeLength - position - readLength;
+            }
+            if (position >= 0 && position + readLength <= genomeLength &&
+                    this.sequences.contains(position, readLength)) {
+                hits.add(position, reverse);
+                reported++;
             }
         }
-        return validMappings;
     }
 
+    /**
+     * Handles an interval of rows matching the read as the search's hit
+     * policy says: its hits are located right away, except under MAX_N,
+     * where the interval is kept until the search ends without finding
+     * more than N rows
+     * @param low The first row of the interval
+     * @param high The end of the interval (exclusive)
+     * @param readLength The length of the mapped read
+     * @param search The state of the search
+     * @return False once the search can stop
+     */
+    private boolean reportLeaf(long low, long high, int readLength, HitSearch search) {
+        switch (search.policy.getMode()) {
+            case FIRST:
+                reportHits(low, high, readLength, search.hits, 1);
+                return search.hits.getNumHits() == search.firstHit;
+            case MAX_N:
+                search.rows += high - low;
+                if (search.policy.isRepeat(search.rows)) {
+                    search.repeat = true;
+                    search.numLeaves = 0;
+                    return false;
+                }
+                search.addLeaf(low, high);
+                return true;
+            default:
+                reportHits(low, high, readLength, search.hits);
+                return true;
+        }
+    }
+
+    /**
+     * Returns the first row of the sorted BWT that starts with a base
+     * @param base The base's index in "ACGT"
+     * @return The row, where row 0 holds '$'
+     */
+    private long getFirstRow(int base) {
+        long row = 1;
+        if (base > 0) { row += this.numA; }
+        if (base > 1) { row += this.numC; }
+        if (base > 2) { row += this.numG; }
+        return row;
+    }
 
-    private int tryMapping(String read, int mismatches, int start) {
-        char[] bases = read.toCharArray();
-        char base, bwtChar;
-        int index = start;
-        int numMismatches = 0, numOccurrences, packed;
-        for (int i = bases.length - 2; i >= 0; i--) { // Start at 2nd to last
-            if (index == 0) { // Reached end
-                return -1;
+    private long[] getFirstRows() {
+        return new long[] {getFirstRow(0), getFirstRow(1), getFirstRow(2), getFirstRow(3)};
+    }
+
+
+    /**
+     * Converts a read into indices in "ACGT", the form taken by the
+     * primitive mapRead
+     * @param read The read
+     * @param bases The array receiving the indices, at least as long as the
+     *              read, where -1 marks a character that never matches
+     * @return bases
+     */
+    public static byte[] encodeRead(String read, byte[] bases) {
+        return encodeRead(read, bases, 0);
+    }
+
+    /**
+     * Converts a read into indices in "ACGT" within a larger array
+     * @param read The read
+     * @param bases The array receiving the indices
+     * @param offset The index receiving the read's first base
+     * @return bases
+     */
+    public static byte[] encodeRead(String read, byte[] bases, int offset) {
+        for (int i = 0; i < read.length(); i++) {
+            bases[offset + i] = encodeBase(read.charAt(i));
+        }
+        return bases;
+    }
+
+    /**
+     * Converts a base into its index in "ACGT"
+     * @param c The base
+     * @return The index, or -1 for any other character
+     */
+    public static byte encodeBase(char c) {
+        return (c < BASE_CODES.length) ? BASE_CODES[c] : -1;
+    }
+
+    /**
+     * Converts a reference character into the index in "ACGT" of the base it
+     * is indexed as
+     * @param c The character, where lowercase bases are soft-masked bases
+     * @param position The character's global position in the genome
+     * @return The index of the base, or for any other character the index
+     *         of a base derived from the position alone
+     */
+    static int encodeReferenceBase(char c, long position) {
+        int base = encodeBase(Character.toUpperCase(c));
+        if (base != -1) {
+            return base;
+        }
+        long hash = position * 0x9E3779B97F4A7C15L; // Mixes the position
+        hash ^= hash >>> 31;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return (int) (hash >>> 62);
+    }
+
+    /**
+     * Finds the genome position of a row's suffix by LF-mapping until a
+     * sampled row is reached
+     * @param row The row, which must not be 0
+     * @return The position in the genome
+     */
+    private long locate(long row) {
+        int steps = 0;
+        while (!this.suffixArray.isSampled(row)) {
+            row = lastToFirst(row);
+            steps++;
+        }
+        return this.suffixArray.getPosition(row) + steps;
+    }
+
+    /**
+     * Moves from a row to the row of the suffix one position to the left
+     * @param row The row
+     * @return The row of the suffix starting one position earlier, where the
+     *         row holding the '$' moves to row 0
+     */
+    private long lastToFirst(long row) {
+        int base = this.occurrences.getBase(row);
+        if (base == -1) {
+            return 0;
+        }
+        return getFirstRow(base) + this.occurrences.occurrences(base, row);
+    }
+
+    /**
+     * Backtracks over the bases of a read from its end, branching on every
+     * base whose interval is not empty. Choosing a base other than the read's
+     * costs one mismatch. A branch is abandoned once the remaining mismatches
+     * fall below the lower bound needed for the rest of the read, so the
+     * work depends on the number of viable branches, not the genome length
+     * @param bases The read, as indices in "ACGT"
+     * @param length The length of the read
+     * @param i The index of the next base to match
+     * @param mismatches The number of mismatches still allowed
+     * @param code The encoded bases (i, end], while they are at most q bases
+     * @param low The first row of the interval matching bases (i, end]
+     * @param high The end of the interval (exclusive)
+     * @param lowerBounds The lower bounds given by getLowerBounds
+     * @param search Receives the interval of every hit
+     * @return False once the hit policy lets the search stop
+     */
+    private boolean searchWithMismatches(byte[] bases, int length, int i, int mismatches,
+                                         int code, long low, long high, int[] lowerBounds,
+                                         HitSearch search) {
+        if (i < 0) {
+            return reportLeaf(low, high, length, search);
+        }
+        if (mismatches < lowerBounds[i]) {
+            return true;
+        }
+        for (int n = 0; n < 4; n++) {
+            // Tries the read's own base first
+            int base = (bases[i] == -1) ? n : (bases[i] + n) % 4;
+            int cost = (base == bases[i]) ? 0 : 1;
+            if (cost > mismatches) {
+                continue;
             }
-            packed = this.genome[index];
-            numOccurrences = getNumOccurrences(packed);
-            if (index == this.endMarkerLocation) {
-                bwtChar = '$';
+            int matched = length - i;
+            int newCode = 0;
+            long newLow, newHigh;
+            if (matched <= this.kmerIntervals.getLength()) {
+                newCode = (base << (2 * (matched - 1))) | code;
+                newLow = this.kmerIntervals.getLow(matched, newCode);
+                newHigh = this.kmerIntervals.getHigh(matched, newCode);
             } else {
-                bwtChar = getBwtChar(packed);
+                long firstRow = getFirstRow(base);
+                newLow = firstRow + this.occurrences.occurrences(base, low);
+                newHigh = firstRow + this.occurrences.occurrences(base, high);
+            }
+            if (newLow < newHigh && !searchWithMismatches(bases, length, i - 1,
+                    mismatches - cost, newCode, newLow, newHigh, lowerBounds, search)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Backtracks like searchWithMismatches, but only keeps the hits with the
+     * fewest mismatches. Since the read's own base is tried first, the best
+     * hits tend to be found early and prune the rest of the search. A
+     * stratum the policy finds to be a repeat is not located, and then
+     * prunes every path without fewer mismatches
+     * @param bases The read, as indices in "ACGT"
+     * @param i The index of the next base to match
+     * @param spent The number of mismatches in bases (i, end]
+     * @param code The encoded bases (i, end], while they are at most q bases
+     * @param low The first row of the interval matching bases (i, end]
+     * @param high The end of the interval (exclusive)
+     * @param lowerBounds The lower bounds given by getLowerBounds
+     * @param search The best hits found so far
+     */
+    private void searchBestStratum(byte[] bases, int i, int spent, int code, long low,
+                                   long high, int[] lowerBounds, StratumSearch search) {
+        if (i < 0) {
+            long rows = ((spent < search.bestMismatches) ? 0 : search.rows) + high - low;
+            if (search.policy.isRepeat(rows)) {
+                search.positions.clear();
+                search.reversePositions.clear();
+                search.bestMismatches = spent;
+                search.maxMismatches = spent - 1;
+                search.repeat = true;
+                return;
+            }
+            HitBuffer hits = search.leafHits;
+            hits.clear();
+            reportHits(low, high, search.length, hits);
+            if (hits.getNumHits() == 0) { // Every hit crossed a sequence boundary
+                return;
+            }
+            if (spent < search.bestMismatches) {
+                search.positions.clear();
+                search.reversePositions.clear();
+                search.bestMismatches = spent;
+                search.repeat = false;
             }
-            base = bases[i];
-            if (base != bwtChar) {
-                numMismatches++;
-                if (numMismatches > mismatches) { // Too many mismatches
-                    return -1;
+            search.maxMismatches = spent;
+            search.rows = rows;
+            for (int hit = 0; hit < hits.getNumHits(); hit++) {
+                long position = hits.getPosition(hit);
+                if (hits.isReverse(hit)) {
+                    search.reversePositions.add(position);
+                } else {
+                    search.positions.add(position);
                 }
             }
-            index = getSortedOccurrenceIndex(bwtChar, numOccurrences);
+            return;
         }
-        if (index == 0) { // Read can't map to end of string
-            return -1;
-        } else {
-            return index;
+        if (spent + lowerBounds[i] > search.maxMismatches) {
+            return;
+        }
+        for (int n = 0; n < 4; n++) {
+            int base = (bases[i] == -1) ? n : (bases[i] + n) % 4;
+            int cost = (base == bases[i]) ? 0 : 1;
+            if (spent + cost > search.maxMismatches) {
+                continue;
+            }
+            int length = search.length - i;
+            int newCode = 0;
+            long newLow, newHigh;
+            if (length <= this.kmerIntervals.getLength()) {
+                newCode = (base << (2 * (length - 1))) | code;
+                newLow = this.kmerIntervals.getLow(length, newCode);
+                newHigh = this.kmerIntervals.getHigh(length, newCode);
+            } else {
+                long firstRow = getFirstRow(base);
+                newLow = firstRow + this.occurrences.occurrences(base, low);
+                newHigh = firstRow + this.occurrences.occurrences(base, high);
+            }
+            if (newLow < newHigh) {
+                searchBestStratum(bases, i - 1, spent + cost, newCode, newLow, newHigh,
+                        lowerBounds, search);
+            }
         }
     }
 
+    /**
+     * Computes, for every i, a lower bound on the mismatches needed to map
+     * bases [0, i] (the D array used by BWA).
+     * The read is split from its end into segments that each do not occur
+     * in the genome: a segment grows by backward search until its interval
+     * is empty. Every alignment must mismatch at least once inside each
+     * segment, so the number of segments lying within [0, i] is a lower bound
+     * @param bases The read, as indices in "ACGT"
+     * @param length The length of the read
+     * @param lowerBounds The array receiving the lower bounds, at least as
+     *                    long as the read
+     * @return lowerBounds
+     */
+    private int[] getLowerBounds(byte[] bases, int length, int[] lowerBounds) {
+        Arrays.fill(lowerBounds, 0, length, 0);
+        long low = 0, high = this.occurrences.length();
+        int segmentEnd = length - 1;
+        int code = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            int base = bases[i];
+            int segmentLength = segmentEnd - i + 1;
+            if (base != -1 && segmentLength <= this.kmerIntervals.getLength()) {
+                code |= base << (2 * (segmentLength - 1));
+                low = this.kmerIntervals.getLow(segmentLength, code);
+                high = this.kmerIntervals.getHigh(segmentLength, code);
+            } else if (base != -1) {
+                long firstRow = getFirstRow(base);
+                low = firstRow + this.occurrences.occurrences(base, low);
+                high = firstRow + this.occurrences.occurrences(base, high);
+            }
+            if (base == -1 || low >= high) { // bases [i, segmentEnd] is absent
+                lowerBounds[segmentEnd]++;
+                low = 0;
+                high = this.occurrences.length();
+                segmentEnd = i - 1;
+                code = 0;
+            }
+        }
+        for (int i = 1; i < length; i++) {
+            lowerBounds[i] += lowerBounds[i - 1];
+        }
+        return lowerBounds;
+    }
+
     /**
      * Tries mapping multiple reads to a genome
      * This method removes any mapped read from the original list of reads
@@ -172,37 +859,287 @@ public class BWReadMapper implements ReadMapper {
      * @param mismatches The number of tolerant mismatches
      * @return Mappings of a reads to a list of starting positions in genome
      */
-    public Map<String, List<Integer>> mapReads(List<String> reads, int mismatches) {
-        Map<String, List<Integer>> mappings = new HashMap<>();
-        for (String read : reads) {
-            if (!mappings.containsKey(read)) {
-                mappings.put(read, mapRead(read, mismatches));
+    public Map<String, List<Long>> mapReads(List<String> reads, int mismatches) {
+        List<String> distinctReads = new ArrayList<>(new LinkedHashSet<>(reads));
+        HitBuffer hits = new HitBuffer(distinctReads.size(), distinctReads.size());
+        mapReads(distinctReads, mismatches, hits);
+        Map<String, List<Long>> mappings = new HashMap<>();
+        for (int r = 0; r < distinctReads.size(); r++) {
+            List<Long> positions = new ArrayList<>(hits.getEnd(r) - hits.getStart(r));
+            for (int i = hits.getStart(r); i < hits.getEnd(r); i++) {
+                if (!hits.isReverse(i)) {
+                    positions.add(hits.getPosition(i));
+                }
             }
+            mappings.put(distinctReads.get(r), positions);
         }
         return mappings;
     }
 
+    /**
+     * Maps a batch of reads. Without mismatches, the reads are visited in
+     * order of their reversed last bases, so reads sharing a suffix are
+     * adjacent. The backward search intervals of every suffix of the
+     * previous read are kept, and a read only computes the intervals beyond
+     * the suffix it shares with the previous read.
+     * With mismatches, each read is searched on its own
+     * @param reads The reads being mapped
+     * @param mismatches The number of tolerant mismatches
+     * @param hits The buffer receiving the hits, in batch order
+     */
     @Override
-    public String getGenomeSequence() {
-        StringBuilder originalGenome = new StringBuilder();
-        for (int i = 0; i < genome.length; i++) {
-            if (i == this.endMarkerLocation) {
-                originalGenome.append('$');
+    public void mapReads(List<String> reads, int mismatches, HitBuffer hits) {
+        hits.clear();
+        if (mismatches > 0) {
+            Scratch scratch = this.scratch.get();
+            for (String read : reads) {
+                byte[] bases = encodeRead(read, scratch.getBases(read.length()));
+                mapRead(bases, read.length(), mismatches, hits);
+            }
+            return;
+        }
+        byte[][] bases = new byte[reads.size()][];
+        int maxLength = 0;
+        for (int r = 0; r < bases.length; r++) {
+            bases[r] = encodeRead(reads.get(r), new byte[reads.get(r).length()]);
+            maxLength = Math.max(maxLength, bases[r].length);
+        }
+        long[] order = sortByReversedSuffix(bases);
+        long indexMask = Long.highestOneBit(Math.max(bases.length - 1, 1)) * 2 - 1;
+
+        SuffixIntervals intervals = new SuffixIntervals(maxLength, this.occurrences.length());
+        long[] readLows = new long[bases.length];
+        long[] readHighs = new long[bases.length];
+        byte[] previous = new byte[0];
+        for (long key : order) {
+            int r = (int) (key & indexMask);
+            extendIntervals(bases[r], getCommonSuffixLength(previous, bases[r]), intervals);
+            int length = bases[r].length;
+            if (intervals.computed == length) {
+                readLows[r] = intervals.lows[length];
+                readHighs[r] = intervals.highs[length];
+            }
+            previous = bases[r];
+        }
+        for (int r = 0; r < bases.length; r++) {
+            reportHits(readLows[r], readHighs[r], bases[r].length, hits);
+            hits.endRead();
+        }
+    }
+
+    /**
+     * Computes the intervals of a read's suffixes, reusing those of the
+     * previous read's suffixes shared with it. A character other than A, C,
+     * G, or T matches no base, so its suffix's interval is empty
+     * @param read The read, as indices in "ACGT" with -1 for any other
+     *             character
+     * @param shared The length of the suffix shared with the previous read
+     * @param intervals The intervals of the previous read, replaced by the
+     *                  intervals of this read up to the first empty one
+     */
+    private void extendIntervals(byte[] read, int shared, SuffixIntervals intervals) {
+        long[] lows = intervals.lows;
+        long[] highs = intervals.highs;
+        int[] codes = intervals.codes;
+        int d = Math.min(shared, intervals.computed);
+        for (; d < read.length && lows[d] < highs[d]; d++) {
+            int base = read[read.length - 1 - d];
+            if (base == -1) {
+                lows[d + 1] = 0;
+                highs[d + 1] = 0;
+            } else if (d < this.kmerIntervals.getLength()) {
+                codes[d + 1] = (base << (2 * d)) | codes[d];
+                lows[d + 1] = this.kmerIntervals.getLow(d + 1, codes[d + 1]);
+                highs[d + 1] = this.kmerIntervals.getHigh(d + 1, codes[d + 1]);
             } else {
-                originalGenome.append(getBwtChar(genome[i]));
+                long firstRow = getFirstRow(base);
+                lows[d + 1] = firstRow + this.occurrences.occurrences(base, lows[d]);
+                highs[d + 1] = firstRow + this.occurrences.occurrences(base, highs[d]);
+            }
+        }
+        intervals.computed = d;
+    }
+
+    /**
+     * Sorts reads by their reversed last bases. Each read becomes a long
+     * holding as many of its last bases as fit above its index, so a single
+     * primitive sort groups reads sharing those bases
+     * @param bases The reads, as indices in "ACGT"
+     * @return The sorted keys, whose low bits hold the read's index
+     */
+    private static long[] sortByReversedSuffix(byte[][] bases) {
+        long indexMask = Long.highestOneBit(Math.max(bases.length - 1, 1)) * 2 - 1;
+        int keyBases = (Long.numberOfLeadingZeros(indexMask) - 1) / 2; // Keeps keys positive
+        long[] keys = new long[bases.length];
+        for (int r = 0; r < bases.length; r++) {
+            long key = 0;
+            byte[] read = bases[r];
+            for (int d = 0; d < keyBases; d++) {
+                int base = (d < read.length) ? Math.max(read[read.length - 1 - d], 0) : 0;
+                key = (key << 2) | base;
+            }
+            keys[r] = (key << Long.bitCount(indexMask)) | r;
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static int getCommonSuffixLength(byte[] a, byte[] b) {
+        int common = 0;
+        while (common < a.length && common < b.length &&
+                a[a.length - 1 - common] == b[b.length - 1 - common]) {
+            common++;
+        }
+        return common;
+    }
+
+    @Override
+    public String getGenomeSequence() {
+        return getSubsequence(0, this.sequences.getTotalLength());
+    }
+
+    /**
+     * Extracts part of the indexed text without inverting the whole BWT.
+     * The walk starts from the first sampled position at or after end, whose
+     * row is known from the suffix array samples, and LF-maps towards start,
+     * so it takes fewer than end - start + samplingRate steps.
+     * The gaps of the genome are written as N's
+     * @param start The first position, where positions past the genome
+     *              length lie on the reverse strand if it is indexed
+     * @param end The end position (exclusive)
+     * @return The bases in [start, end)
+     */
+    public String getSubsequence(long start, long end) {
+        long textLength = this.occurrences.length() - 1; // Without the '$'
+        if (start < 0 || end < start || end > textLength) {
+            throw new IllegalArgumentException("Invalid range: [" + start + ", " + end + ")");
+        }
+        int samplingRate = this.suffixArray.getSamplingRate();
+        long position = (end + samplingRate - 1) / samplingRate * samplingRate;
+        long row;
+        if (position >= textLength) { // Row 0 holds the suffix "$"
+            position = textLength;
+            row = 0;
+        } else {
+            row = this.suffixArray.getRow(position);
+        }
+        char[] subsequence = new char[Math.toIntExact(end - start)];
+        for (; position > start; position--) { // The row's BWT base precedes position
+            if (position <= end) {
+                subsequence[(int) (position - 1 - start)] =
+                        BASES.charAt(this.occurrences.getBase(row));
+            }
+            row = lastToFirst(row);
+        }
+        long genomeLength = this.sequences.getTotalLength();
+        maskGaps(subsequence, start, end, 0, false);
+        if (this.bothStrands && end > genomeLength) { // Gaps mirrored on the reverse strand
+            maskGaps(subsequence, start, end, 2 * genomeLength, true);
+        }
+        return String.valueOf(subsequence);
+    }
+
+    /**
+     * Writes N's over the gaps within part of the indexed text
+     * @param subsequence The text in [start, end)
+     * @param mirror With reverse set, the text position of a gap position p
+     *               is mirror - 1 - p
+     * @param reverse True to mask the gaps of the reverse strand
+     */
+    private void maskGaps(char[] subsequence, long start, long end, long mirror,
+                          boolean reverse) {
+        // The forward positions whose text positions may lie in [start, end)
+        long from = reverse ? Math.max(mirror - end, 0) : start;
+        long to = reverse ? mirror - start : end;
+        for (int gap = this.sequences.getFirstGapEndingAfter(from);
+             gap < this.sequences.getNumGaps() && this.sequences.getGapStart(gap) < to;
+             gap++) {
+            long gapStart = Math.max(this.sequences.getGapStart(gap), from);
+            long gapEnd = Math.min(this.sequences.getGapEnd(gap), to);
+            for (long p = gapStart; p < gapEnd; p++) {
+                long position = reverse ? mirror - 1 - p : p;
+                subsequence[(int) (position - start)] = 'N';
             }
         }
-        return BurrowsWheelerTransform.invert(originalGenome.toString());
     }
 
     /**
-     * Returns a list of the counts of each base in the genome
+     * @return True if the reverse complement of the genome is indexed
+     */
+    public boolean isBothStrands() {
+        return this.bothStrands;
+    }
+
+    /**
+     * Returns the reverse complement of a sequence
+     * @param sequence The sequence, made of A's, C's, G's, and T's
+     * @return The reverse complement
+     */
+    public static String reverseComplement(String sequence) {
+        char[] complement = new char[sequence.length()];
+        for (int i = 0; i < complement.length; i++) {
+            char c = sequence.charAt(sequence.length() - 1 - i);
+            switch (c) {
+                case 'A': complement[i] = 'T'; break;
+                case 'C': complement[i] = 'G'; break;
+                case 'G': complement[i] = 'C'; break;
+                case 'T': complement[i] = 'A'; break;
+                default:
+                    throw new IllegalArgumentException("Invalid character: " + c);
+            }
+        }
+        return String.valueOf(complement);
+    }
+
+    /**
+     * Returns a list of the counts of each base in the indexed genome,
+     * including its reverse complement if both strands are indexed
      * @return The list of counts
      */
-    public int[] getBaseCounts() {
-        return new int[] {numA, numC, numG, numT};
+    public long[] getBaseCounts() {
+        return new long[] {numA, numC, numG, numT};
+    }
+
+    /**
+     * @return The length q of the longest strings whose intervals are
+     *         precomputed
+     */
+    public int getKmerTableLength() {
+        return this.kmerIntervals.getLength();
+    }
+
+    /**
+     * @return The k-mer table length the index was built with, before it was
+     *         lowered to suit the genome
+     */
+    public int getPreferredKmerTableLength() {
+        return this.preferredKmerTableLength;
+    }
+
+    /**
+     * @return The suffix array sampling rate
+     */
+    public int getSamplingRate() {
+        return this.suffixArray.getSamplingRate();
     }
 
+    /**
+     * @return The digest of the sequences the index was built from
+     */
+    public long getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * @return The sequences making up the genome
+     */
+    public SequenceTable getSequenceTable() {
+        return this.sequences;
+    }
+
+    /* Helpers for the former packed-int row format, where each int held the
+     * sorted char, the BWT char and its running count */
+
     /**
      * Packs information into an integer
      * @param sortedChar The char in the sorted BWT string
@@ -214,22 +1151,25 @@ public class BWReadMapper implements ReadMapper {
         if (numOccurrences > MAX_OCCURRENCES) {
             System.out.println("GENOME TOO LARGE");
         }
-        Map<Character, Integer> encoding = new HashMap<>();
-        encoding.put('A', 0);
-        encoding.put('$', 0);
-        encoding.put('C', 1);
-        encoding.put('G', 2);
-        encoding.put('T', 3);
-        if (!encoding.containsKey(sortedChar) || !encoding.containsKey(bwtChar)) {
-            throw new IllegalArgumentException("Char not recognized");
-        }
         int packed = 0;
-        packed |= (encoding.get(sortedChar) << SORTED_BITS_OFFSET);
-        packed |= (encoding.get(bwtChar) << BWT_BITS_OFFSET);
+        packed |= (getPackingCode(sortedChar) << SORTED_BITS_OFFSET);
+        packed |= (getPackingCode(bwtChar) << BWT_BITS_OFFSET);
         packed |= numOccurrences;
         return packed;
     }
 
+    /**
+     * Returns the 2 bits a character is packed as, where '$' is packed as
+     * an 'A'
+     */
+    private static int getPackingCode(char c) {
+        int code = (c == '$') ? 0 : (c < BASE_CODES.length) ? BASE_CODES[c] : -1;
+        if (code == -1) {
+            throw new IllegalArgumentException("Char not recognized");
+        }
+        return code;
+    }
+
     /**
      * Returns the 'sorted' char within the packed int
      * @param packed The packed int
@@ -258,27 +1198,107 @@ public class BWReadMapper implements ReadMapper {
     }
 
     private static char maskBits(int packed, int offset) {
-        int bits = (packed >> offset) & CHAR_MASK;
-        if (bits == 0) {
-            return 'A';
-        } else if (bits == 1) {
-            return 'C';
-        } else if (bits == 2) {
-            return 'G';
-        } else {
-            return 'T';
+        return BASES.charAt((packed >> offset) & CHAR_MASK);
+    }
+
+    /**
+     * Backward search intervals of the suffixes of the last read of a batch
+     */
+    private static class SuffixIntervals {
+        private final long[] lows;
+        private final long[] highs;
+        private final int[] codes; // The encoded suffixes of up to q bases
+        private int computed; // The intervals of suffixes up to this length are set
+
+        private SuffixIntervals(int maxLength, long rows) {
+            this.lows = new long[maxLength + 1];
+            this.highs = new long[maxLength + 1];
+            this.codes = new int[maxLength + 1];
+            this.highs[0] = rows; // The empty suffix matches every row
+            this.computed = 0;
         }
     }
 
-    private int getSortedOccurrenceIndex(char c, int occurrence) {
-        assert(getSortedChar(genome[0]) == 'A');
-        if (c == '$') { return 0; }
-        int offset;
-        if (c == 'A') { offset = 0; }
-        else if (c == 'C') { offset = this.numA; }
-        else if (c == 'G') { offset = this.numA + this.numC; }
-        else if (c == 'T') { offset = this.numA + this.numC + this.numG; }
-        else { throw new IllegalArgumentException("Invalid character: " + c); }
-        return offset + occurrence;
+    /**
+     * Per-thread arrays reused across reads
+     */
+    private static class Scratch {
+        private final HitBuffer hits = new HitBuffer(1, 16);
+        private final HitBuffer leafHits = new HitBuffer(1, 16);
+        private final HitSearch search = new HitSearch();
+        private byte[] bases = new byte[0];
+        private int[] lowerBounds = new int[0];
+
+        private byte[] getBases(int length) {
+            if (this.bases.length < length) {
+                this.bases = new byte[length];
+            }
+            return this.bases;
+        }
+
+        private int[] getLowerBounds(int length) {
+            if (this.lowerBounds.length < length) {
+                this.lowerBounds = new int[length];
+            }
+            return this.lowerBounds;
+        }
+    }
+
+    /**
+     * State of a search reporting the hits a policy keeps
+     */
+    private static class HitSearch {
+        private HitPolicy policy;
+        private HitBuffer hits;
+        private int firstHit; // The index in hits of the read's first hit
+        private long rows; // The rows of every interval reached so far
+        private boolean repeat;
+        private long[] lows = new long[4]; // Intervals kept until the search ends
+        private long[] highs = new long[4];
+        private int numLeaves;
+
+        private void reset(HitPolicy policy, HitBuffer hits) {
+            this.policy = policy;
+            this.hits = hits;
+            this.firstHit = hits.getNumHits();
+            this.rows = 0;
+            this.repeat = false;
+            this.numLeaves = 0;
+        }
+
+        private void addLeaf(long low, long high) {
+            if (this.numLeaves == this.lows.length) {
+                this.lows = Arrays.copyOf(this.lows, 2 * this.lows.length);
+                this.highs = Arrays.copyOf(this.highs, this.lows.length);
+            }
+            this.lows[this.numLeaves] = low;
+            this.highs[this.numLeaves++] = high;
+        }
+    }
+
+    /**
+     * State of a best stratum search
+     */
+    private static class StratumSearch {
+        private final int length; // The length of the read
+        private final HitPolicy policy;
+        private int maxMismatches; // The most mismatches a hit may still have
+        private int bestMismatches;
+        private long rows; // The rows of the best stratum's intervals
+        private boolean repeat; // True if the best stratum is a repeat
+        private final List<Long> positions;
+        private final List<Long> reversePositions;
+        private final HitBuffer leafHits; // Hits of the interval being reported
+
+        private StratumSearch(int length, int maxMismatches, HitPolicy policy,
+                              HitBuffer leafHits) {
+            this.length = length;
+            this.policy = policy;
+            this.maxMismatches = maxMismatches;
+            this.bestMismatches = maxMismatches;
+            this.positions = new ArrayList<>();
+            this.reversePositions = new ArrayList<>();
+            this.leafHits = leafHits;
+        }
     }
 }
@@ -3,21 +3,29 @@ package com.github.genomeassembler.mapper;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Maps reads by counting the mismatches at every offset of the genome,
+ * 32 bases at a time over packed sequences. Slow on large genomes, but
+ * simple enough to check the other read mappers against
+ */
 public class BruteForceReadMapper implements ReadMapper {
     private final String genome;
+    private final PackedSequence packedGenome;
 
     public BruteForceReadMapper(String genomeSequence) {
         this.genome = genomeSequence;
+        this.packedGenome = PackedSequence.of(genomeSequence);
     }
 
 
 
     @Override
-    public List<Integer> mapRead(String read, int mismatches) {
-        List<Integer> startingPositions = new ArrayList<>();
+    public List<Long> mapRead(String read, int mismatches) {
+        List<Long> startingPositions = new ArrayList<>();
+        PackedSequence packedRead = PackedSequence.of(read);
         for (int i = 0; i < this.genome.length() - read.length() + 1; i++) {
-            if (this.genome.substring(i, i + read.length()).equals(read)) {
-                startingPositions.add(i);
+            if (this.packedGenome.countMismatches(i, packedRead, mismatches) <= mismatches) {
+                startingPositions.add((long) i);
             }
         }
         return startingPositions;
@@ -10,9 +10,25 @@ import java.util.Map;
  * array construction
  */
 public class BurrowsWheelerTransform {
+    private final static int ALPHABET_LIMIT = Character.MAX_VALUE + 1;
 
     /**
-     * Performs the Burrows Wheeler transform
+     * Algorithms available for building the suffix array
+     */
+    public enum SuffixArrayAlgorithm {
+        /** Original incremental insertion, quadratic in the string length */
+        INCREMENTAL,
+        /** SA-IS induced sorting, linear in the string length */
+        INDUCED_SORTING,
+        /**
+         * Prefix buckets sorted on several threads, where the buckets of long
+         * repeats are finished with a difference cover sample
+         */
+        PARALLEL_BUCKET_SORTING
+    }
+
+    /**
+     * Performs the Burrows Wheeler transform using induced sorting
      * @param string The string being transformed
      *               - Requires that '$' is not present
      * @param suffixArray The buffer in which the suffix array will be placed
@@ -21,6 +37,89 @@ public class BurrowsWheelerTransform {
      * @return The transformed string
      */
     public static String transform(String string, int[] suffixArray) {
+        return transform(string, suffixArray, SuffixArrayAlgorithm.INDUCED_SORTING);
+    }
+
+    /**
+     * Performs the Burrows Wheeler transform
+     * @param string The string being transformed
+     *               - Requires that '$' is not present
+     * @param suffixArray The buffer in which the suffix array will be placed
+     *                    - Requires that size of suffix array is
+     *                      is len(genome) + 1
+     * @param algorithm The algorithm used to build the suffix array
+     * @return The transformed string
+     */
+    public static String transform(String string, int[] suffixArray,
+                                   SuffixArrayAlgorithm algorithm) {
+        return transform(string, suffixArray, algorithm,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Performs the Burrows Wheeler transform. Every algorithm gives the
+     * same suffix array
+     * @param string The string being transformed
+     *               - Requires that '$' is not present
+     * @param suffixArray The buffer in which the suffix array will be placed
+     *                    - Requires that size of suffix array is
+     *                      is len(genome) + 1
+     * @param algorithm The algorithm used to build the suffix array
+     * @param threads The number of threads used by parallel bucket sorting
+     * @return The transformed string
+     */
+    public static String transform(String string, int[] suffixArray,
+                                   SuffixArrayAlgorithm algorithm, int threads) {
+        if (algorithm == SuffixArrayAlgorithm.INCREMENTAL) {
+            return incrementalTransform(string, suffixArray);
+        }
+        sortSuffixes(string, suffixArray, algorithm, threads);
+        int n = string.length() + 1;
+        char[] transformed = new char[n];
+        for (int i = 0; i < n; i++) {
+            int position = suffixArray[i];
+            transformed[i] = (position == 0) ? '$' : string.charAt(position - 1);
+        }
+        return String.valueOf(transformed);
+    }
+
+    /**
+     * Builds the suffix array without forming the transformed string, for
+     * callers that read the BWT straight from the suffix array: the
+     * character of row i precedes suffix suffixArray[i], or is the '$' if
+     * that suffix starts at 0
+     * @param string The string whose suffixes are sorted
+     *               - Requires that '$' is not present
+     * @param suffixArray The buffer in which the suffix array will be placed
+     *                    - Requires that size of suffix array is
+     *                      is len(genome) + 1
+     * @param algorithm The algorithm used to build the suffix array
+     * @param threads The number of threads used by parallel bucket sorting
+     */
+    public static void sortSuffixes(String string, int[] suffixArray,
+                                    SuffixArrayAlgorithm algorithm, int threads) {
+        if (algorithm == SuffixArrayAlgorithm.INCREMENTAL) {
+            incrementalTransform(string, suffixArray);
+            return;
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        int n = string.length() + 1;
+        int[] text = new int[n];
+        int alphabetSize = rankCharacters(string, text);
+        if (algorithm == SuffixArrayAlgorithm.PARALLEL_BUCKET_SORTING) {
+            ParallelSuffixSorter.sort(text, suffixArray, n, alphabetSize, threads);
+        } else {
+            induceSuffixArray(text, suffixArray, n, alphabetSize);
+        }
+    }
+
+    /**
+     * Builds the suffix array by inserting one suffix at a time
+     * This takes O(n^2) time and is kept for cross-checking
+     */
+    private static String incrementalTransform(String string, int[] suffixArray) {
         // Initialize suffix array
         for (int i = 1; i < suffixArray.length; i++) {
             suffixArray[i - 1] = i;
@@ -66,79 +165,215 @@ public class BurrowsWheelerTransform {
     }
 
 
-    private static int strictlySmaller(char c, Map<Character, Integer> map) {
-        int count = 0;
-        for (Map.Entry<Character, Integer> entry : map.entrySet()) {
-            if (c > entry.getKey()) {
-                count += entry.getValue();
+    /**
+     * Replaces every character by its rank among the characters present in
+     * the string, reserving 0 for the end marker placed at the end
+     * @param string The string
+     * @param text The buffer of size len(string) + 1 receiving the ranks
+     * @return The size of the ranked alphabet, including the end marker
+     */
+    private static int rankCharacters(String string, int[] text) {
+        int[] ranks = new int[ALPHABET_LIMIT];
+        for (int i = 0; i < string.length(); i++) {
+            ranks[string.charAt(i)] = 1;
+        }
+        int alphabetSize = 1; // The end marker
+        for (int c = 0; c < ranks.length; c++) {
+            if (ranks[c] != 0) {
+                ranks[c] = alphabetSize++;
             }
         }
-        return count;
+        for (int i = 0; i < string.length(); i++) {
+            text[i] = ranks[string.charAt(i)];
+        }
+        text[string.length()] = 0;
+        return alphabetSize;
     }
 
-
     /**
-     * Inverts a Burrows Wheeler transformed string back to its original state
-     * @param transformed The transformed string
-     * @return The original string
+     * Builds a suffix array with the SA-IS algorithm (Nong, Zhang and Chan)
+     * @param text The text, whose last symbol must be a unique 0
+     * @param suffixArray The buffer in which the suffix array will be placed
+     * @param n The length of the text
+     * @param alphabetSize The number of distinct symbols the text may contain
      */
-    public static String invert(String transformed) {
-        StringBuilder inverted = new StringBuilder("$");
-        char[] tempArray = transformed.toCharArray();
-        Arrays.sort(tempArray);
-        String transformedSorted = String.copyValueOf(tempArray);
-        tempArray = null;    // Garbage collect
-
-        int lettersAdded = 0;
-        int i = 0;
-        while (lettersAdded < transformed.length() - 1) {
-            char currChar = transformed.charAt(i);
-            inverted.append(currChar);
-            lettersAdded++;
-            int numOccurrences = findNumOccurrences(transformed, currChar, i);
-            i = findOccurrenceIndex(transformedSorted, currChar, numOccurrences);
-        }
-        inverted.deleteCharAt(inverted.indexOf("$"));
-        inverted.reverse();
-        return inverted.toString();
+    static void induceSuffixArray(int[] text, int[] suffixArray, int n, int alphabetSize) {
+        if (n == 1) {
+            suffixArray[0] = 0;
+            return;
+        }
+        // Classify each suffix as S-type (true) or L-type (false)
+        boolean[] sType = new boolean[n];
+        sType[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--) {
+            sType[i] = text[i] < text[i + 1] ||
+                    (text[i] == text[i + 1] && sType[i + 1]);
+        }
+
+        // Sort the LMS substrings by inducing from their unsorted positions
+        int[] buckets = new int[alphabetSize];
+        findBucketEnds(text, buckets, n);
+        Arrays.fill(suffixArray, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLeftMostS(sType, i)) {
+                suffixArray[--buckets[text[i]]] = i;
+            }
+        }
+        induceTypes(text, suffixArray, sType, buckets, n);
+
+        // Name each LMS substring by its rank among the sorted substrings
+        int numLms = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLeftMostS(sType, suffixArray[i])) {
+                suffixArray[numLms++] = suffixArray[i];
+            }
+        }
+        Arrays.fill(suffixArray, numLms, n, -1);
+        int name = 0, previous = -1;
+        for (int i = 0; i < numLms; i++) {
+            int position = suffixArray[i];
+            if (previous == -1 || !equalLmsSubstrings(text, sType, position, previous)) {
+                name++;
+                previous = position;
+            }
+            suffixArray[numLms + position / 2] = name - 1;
+        }
+        int[] reduced = new int[numLms];
+        for (int i = n - 1, j = numLms - 1; i >= numLms; i--) {
+            if (suffixArray[i] >= 0) {
+                reduced[j--] = suffixArray[i];
+            }
+        }
+
+        // Sort the reduced string, recursing only if names are not unique
+        int[] reducedSuffixArray = new int[numLms];
+        if (name < numLms) {
+            induceSuffixArray(reduced, reducedSuffixArray, numLms, name);
+        } else {
+            for (int i = 0; i < numLms; i++) {
+                reducedSuffixArray[reduced[i]] = i;
+            }
+        }
+
+        // Induce the full suffix array from the sorted LMS suffixes
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLeftMostS(sType, i)) {
+                reduced[j++] = i;
+            }
+        }
+        findBucketEnds(text, buckets, n);
+        Arrays.fill(suffixArray, 0, n, -1);
+        for (int i = numLms - 1; i >= 0; i--) {
+            int position = reduced[reducedSuffixArray[i]];
+            suffixArray[--buckets[text[position]]] = position;
+        }
+        induceTypes(text, suffixArray, sType, buckets, n);
     }
 
     /**
-     * Finds the number of occurrences of a character up to a certain index
-     * @param string The string being searched
-     * @param c The character whose occurrences are being recorded
-     * @param end The range of searching (inclusive)
-     * @return The number of occurrences of character c in string up to index end
+     * Induces the L-type suffixes left to right, then the S-type suffixes
+     * right to left, from the LMS suffixes already placed
      */
-    private static int findNumOccurrences(String string, char c, int end) {
+    private static void induceTypes(int[] text, int[] suffixArray, boolean[] sType,
+                                    int[] buckets, int n) {
+        findBucketStarts(text, buckets, n);
+        for (int i = 0; i < n; i++) {
+            int j = suffixArray[i] - 1;
+            if (j >= 0 && !sType[j]) {
+                suffixArray[buckets[text[j]]++] = j;
+            }
+        }
+        findBucketEnds(text, buckets, n);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = suffixArray[i] - 1;
+            if (j >= 0 && sType[j]) {
+                suffixArray[--buckets[text[j]]] = j;
+            }
+        }
+    }
+
+    private static boolean equalLmsSubstrings(int[] text, boolean[] sType, int a, int b) {
+        for (int d = 0; ; d++) {
+            if (text[a + d] != text[b + d] || sType[a + d] != sType[b + d]) {
+                return false;
+            } else if (d > 0 && (isLeftMostS(sType, a + d) || isLeftMostS(sType, b + d))) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean isLeftMostS(boolean[] sType, int i) {
+        return i > 0 && sType[i] && !sType[i - 1];
+    }
+
+    private static void findBucketStarts(int[] text, int[] buckets, int n) {
+        countSymbols(text, buckets, n);
+        int sum = 0;
+        for (int c = 0; c < buckets.length; c++) {
+            sum += buckets[c];
+            buckets[c] = sum - buckets[c];
+        }
+    }
+
+    private static void findBucketEnds(int[] text, int[] buckets, int n) {
+        countSymbols(text, buckets, n);
+        int sum = 0;
+        for (int c = 0; c < buckets.length; c++) {
+            sum += buckets[c];
+            buckets[c] = sum;
+        }
+    }
+
+    private static void countSymbols(int[] text, int[] buckets, int n) {
+        Arrays.fill(buckets, 0);
+        for (int i = 0; i < n; i++) {
+            buckets[text[i]]++;
+        }
+    }
+
+    private static int strictlySmaller(char c, Map<Character, Integer> map) {
         int count = 0;
-        for (int i = 0; i <= end; i++) {
-            if (string.charAt(i) == c) {
-                count++;
+        for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+            if (c > entry.getKey()) {
+                count += entry.getValue();
             }
         }
         return count;
     }
 
+
     /**
-     * Gets index of string after a specific character has appeared a specific
-     * amount of times
-     * @param string The string
-     * @param c The character being searched
-     * @param occurrences The number of occurrences of c before returning
-     * @return The index after 'c' has occurred 'occurrences' times
+     * Inverts a Burrows Wheeler transformed string back to its original state.
+     * One pass counts each character and records how many of the same
+     * character precede every row, which gives the LF mapping; the original
+     * string is then read backwards by following it from row 0, the row of
+     * the '$' suffix
+     * @param transformed The transformed string
+     * @return The original string
      */
-    private static int findOccurrenceIndex(String string, char c, int occurrences) {
-        int count = 0;
-        for (int i = 0; i < string.length(); i++) {
-            if (string.charAt(i) == c) {
-                count++;
-                if (count == occurrences) {
-                    return i;
-                }
-            }
+    public static String invert(String transformed) {
+        int n = transformed.length();
+        int[] counts = new int[ALPHABET_LIMIT];
+        int[] ranks = new int[n]; // Occurrences of each row's character before it
+        for (int i = 0; i < n; i++) {
+            ranks[i] = counts[transformed.charAt(i)]++;
+        }
+        int[] firstRows = counts; // Reused: first row of each sorted character
+        int row = 0;
+        for (int c = 0; c < ALPHABET_LIMIT; c++) {
+            int count = counts[c];
+            firstRows[c] = row;
+            row += count;
+        }
+
+        char[] inverted = new char[Math.max(n - 1, 0)];
+        row = 0;
+        for (int i = inverted.length - 1; i >= 0; i--) {
+            char c = transformed.charAt(row);
+            inverted[i] = c;
+            row = firstRows[c] + ranks[row];
         }
-        return -1;
+        return String.valueOf(inverted);
     }
 
     private static void swapInts(int[] A, int i, int j) {
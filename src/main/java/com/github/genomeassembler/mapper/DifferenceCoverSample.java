@@ -0,0 +1,204 @@
+package com.github.genomeassembler.mapper;
+
+/**
+ * Orders suffixes that share a long prefix without comparing all of it, as
+ * in the blockwise suffix sorting of Karkkainen, also used by Bowtie.
+ * A difference cover D modulo v is a set of residues such that every
+ * residue d is the difference of two of its members. The suffixes starting
+ * at sample positions, those whose residue modulo v lies in D, are ranked
+ * among each other once. Any two suffixes a and b then have some delta < v
+ * that puts both a + delta and b + delta at sample positions, so if they
+ * share their first delta symbols, their order is the order of the ranks of
+ * a + delta and b + delta.
+ * The samples are ranked by naming their first v symbols, which are sorted
+ * by a depth-limited ParallelSuffixSorter, then sorting the string of names,
+ * one residue class after the other, with SA-IS. The cover holds about
+ * 2 * sqrt(v) residues, so the ranks cost ~(8 / sqrt(v)) * len(text) bytes
+ * and the text may hold up to ~sqrt(v) / 2 * 2^31 symbols
+ */
+class DifferenceCoverSample {
+    final static int PERIOD = 256;
+    private final static int INSERTION_SORT_LENGTH = 16;
+
+    private final RankedText text;
+    private final int period;
+    private final int[] classes; // The class of each residue in the cover, or -1
+    private final int[] classStarts; // The index of each class's first sample
+    private final int[] coverFirst; // For each d, a residue i with i and i + d in the cover
+    private final int[] ranks; // The rank of each sample, by class then position
+
+    /**
+     * Ranks the samples of a text
+     * @param text The text
+     * @param period The period v, at least 1
+     * @param threads The number of threads sorting the samples
+     * @param blockSize The most samples sorted at once
+     */
+    DifferenceCoverSample(RankedText text, int period, int threads, int blockSize) {
+        this.text = text;
+        this.period = period;
+        boolean[] inCover = getCover(period);
+        this.classes = new int[period];
+        this.coverFirst = new int[period];
+        int numClasses = 0;
+        for (int residue = 0; residue < period; residue++) {
+            this.classes[residue] = inCover[residue] ? numClasses++ : -1;
+        }
+        for (int d = 0; d < period; d++) {
+            this.coverFirst[d] = -1;
+            for (int residue = 0; residue < period && this.coverFirst[d] == -1; residue++) {
+                if (inCover[residue] && inCover[(residue + d) % period]) {
+                    this.coverFirst[d] = residue;
+                }
+            }
+        }
+
+        long n = text.length();
+        this.classStarts = new int[numClasses + 1];
+        long numSamples = 0;
+        for (int residue = 0; residue < period; residue++) {
+            if (inCover[residue]) {
+                this.classStarts[this.classes[residue]] = (int) numSamples;
+                numSamples += (residue < n) ? (n - 1 - residue) / period + 1 : 0;
+                if (numSamples >= Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Text too long to sample: " + n);
+                }
+            }
+        }
+        this.classStarts[numClasses] = (int) numSamples;
+
+        // Names the first v symbols of every sample in sorted order, from 1
+        int[] reduced = new int[(int) numSamples + 1];
+        long[] previous = {-1};
+        int[] name = {0};
+        new ParallelSuffixSorter(text, threads, blockSize, period, inCover, period)
+                .sort(sample -> {
+                    if (previous[0] == -1 || !equalPrefixes(previous[0], sample)) {
+                        name[0]++;
+                    }
+                    reduced[getIndex(sample)] = name[0];
+                    previous[0] = sample;
+                });
+        reduced[(int) numSamples] = 0; // Ends the reduced string
+
+        // The last sample of each class holds the unique end marker in its
+        // first v symbols, so no tie between reduced suffixes reaches the
+        // next class, and their order is the order of the samples' suffixes
+        int[] reducedSuffixArray = new int[reduced.length];
+        BurrowsWheelerTransform.induceSuffixArray(reduced, reducedSuffixArray,
+                reduced.length, name[0] + 1);
+        this.ranks = reduced;
+        for (int rank = 1; rank < reducedSuffixArray.length; rank++) {
+            this.ranks[reducedSuffixArray[rank]] = rank;
+        }
+    }
+
+    /**
+     * Builds the difference cover {0, ..., r} + {r, 2r, ...} modulo v, where
+     * r = ceil(sqrt(v)): any d = a * r + b with b < r is (a + 1) * r - (r - b)
+     * @return Whether each residue is in the cover
+     */
+    private static boolean[] getCover(int period) {
+        int root = (int) Math.ceil(Math.sqrt(period));
+        boolean[] inCover = new boolean[period];
+        for (int i = 0; i <= root; i++) {
+            inCover[i % period] = true;
+        }
+        for (int k = 1; k <= (period + root - 1) / root; k++) {
+            inCover[(k * root) % period] = true;
+        }
+        return inCover;
+    }
+
+    /**
+     * @return The index of a sample in the reduced string
+     */
+    private int getIndex(long sample) {
+        return this.classStarts[this.classes[(int) (sample % this.period)]] +
+                (int) (sample / this.period);
+    }
+
+    private boolean equalPrefixes(long a, long b) {
+        for (int i = 0; i < this.period; i++) {
+            int c = this.text.symbolAt(a + i);
+            if (c != this.text.symbolAt(b + i)) {
+                return false;
+            } else if (c == 0) { // Past the end marker both are padding
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The period v
+     */
+    int getPeriod() {
+        return this.period;
+    }
+
+    /**
+     * @return The offset delta < v that puts both a + delta and b + delta at
+     *         sample positions
+     */
+    int getOffset(long a, long b) {
+        int aResidue = (int) (a % this.period);
+        int d = (int) ((b % this.period) - aResidue + this.period) % this.period;
+        return (this.coverFirst[d] - aResidue + this.period) % this.period;
+    }
+
+    /**
+     * Compares two distinct suffixes sharing their first getOffset(a, b)
+     * symbols, which holds for any sharing their first v symbols
+     * @return The sign of a's suffix compared with b's
+     */
+    int compare(long a, long b) {
+        int delta = getOffset(a, b);
+        return Integer.compare(this.ranks[getIndex(a + delta)], this.ranks[getIndex(b + delta)]);
+    }
+
+    /**
+     * Sorts suffixes sharing their first v symbols by quicksort, comparing
+     * them through the sample ranks. Only the smaller part is sorted
+     * recursively
+     * @param suffixes The positions of the suffixes
+     * @param low The first index of the range
+     * @param high The end of the range (exclusive)
+     */
+    void sort(long[] suffixes, int low, int high) {
+        while (high - low > INSERTION_SORT_LENGTH) {
+            int middle = (low + high) >>> 1;
+            long pivot = suffixes[middle];
+            swap(suffixes, middle, high - 1);
+            int lessEnd = low;
+            for (int k = low; k < high - 1; k++) {
+                if (compare(suffixes[k], pivot) < 0) {
+                    swap(suffixes, lessEnd++, k);
+                }
+            }
+            swap(suffixes, lessEnd, high - 1);
+            if (lessEnd - low < high - lessEnd - 1) {
+                sort(suffixes, low, lessEnd);
+                low = lessEnd + 1;
+            } else {
+                sort(suffixes, lessEnd + 1, high);
+                high = lessEnd;
+            }
+        }
+        for (int i = low + 1; i < high; i++) {
+            long suffix = suffixes[i];
+            int j = i;
+            while (j > low && compare(suffixes[j - 1], suffix) > 0) {
+                suffixes[j] = suffixes[j - 1];
+                j--;
+            }
+            suffixes[j] = suffix;
+        }
+    }
+
+    private static void swap(long[] suffixes, int i, int j) {
+        long temp = suffixes[i];
+        suffixes[i] = suffixes[j];
+        suffixes[j] = temp;
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.Arrays;
+
+/**
+ * Caller-owned buffer receiving the hits of a batch of reads as primitives.
+ * The positions of every read are stored back to back in one long array,
+ * and the end of each read's positions in an int array, so read r's hits
+ * are positions [getStart(r), getEnd(r)). Each hit is also flagged with
+ * the strand it lies on; a hit on the reverse strand is the position where
+ * the read's reverse complement occurs. A read whose hits were not reported
+ * because there were too many is flagged as a repeat.
+ * Clearing keeps the arrays, so a buffer reused across batches stops
+ * allocating once it has grown to the largest batch
+ */
+public class HitBuffer {
+    private long[] positions;
+    private boolean[] reverse;
+    private int numHits;
+    private int[] readEnds;
+    private boolean[] repeats;
+    private boolean repeat; // Whether the read currently being filled is a repeat
+    private int numReads;
+
+    /**
+     * @param readCapacity The number of reads held before growing
+     * @param hitCapacity The number of hits held before growing
+     */
+    public HitBuffer(int readCapacity, int hitCapacity) {
+        this.positions = new long[Math.max(hitCapacity, 1)];
+        this.reverse = new boolean[this.positions.length];
+        this.readEnds = new int[Math.max(readCapacity, 1)];
+        this.repeats = new boolean[this.readEnds.length];
+        this.repeat = false;
+        this.numHits = 0;
+        this.numReads = 0;
+    }
+
+    /**
+     * Removes every read and hit, keeping the allocated arrays
+     */
+    public void clear() {
+        this.repeat = false;
+        this.numHits = 0;
+        this.numReads = 0;
+    }
+
+    /**
+     * Adds a forward strand hit to the read currently being filled
+     * @param position The starting position in the genome
+     */
+    public void add(long position) {
+        add(position, false);
+    }
+
+    /**
+     * Adds a hit to the read currently being filled
+     * @param position The starting position in the genome
+     * @param reverse True if the read's reverse complement occurs there
+     */
+    public void add(long position, boolean reverse) {
+        if (this.numHits == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, 2 * this.positions.length);
+            this.reverse = Arrays.copyOf(this.reverse, this.positions.length);
+        }
+        this.reverse[this.numHits] = reverse;
+        this.positions[this.numHits++] = position;
+    }
+
+    /**
+     * Flags the read currently being filled as a repeat, whose hits were
+     * not reported because there were too many
+     */
+    public void markRepeat() {
+        this.repeat = true;
+    }
+
+    /**
+     * Ends the read currently being filled; the next hits belong to the
+     * next read
+     */
+    public void endRead() {
+        if (this.numReads == this.readEnds.length) {
+            this.readEnds = Arrays.copyOf(this.readEnds, 2 * this.readEnds.length);
+            this.repeats = Arrays.copyOf(this.repeats, this.readEnds.length);
+        }
+        this.repeats[this.numReads] = this.repeat;
+        this.readEnds[this.numReads++] = this.numHits;
+        this.repeat = false;
+    }
+
+    /**
+     * @return The number of ended reads
+     */
+    public int getNumReads() {
+        return this.numReads;
+    }
+
+    /**
+     * @return The number of hits of every read
+     */
+    public int getNumHits() {
+        return this.numHits;
+    }
+
+    /**
+     * @param read The read's index in the batch
+     * @return The index of the read's first hit
+     */
+    public int getStart(int read) {
+        return (read == 0) ? 0 : this.readEnds[read - 1];
+    }
+
+    /**
+     * @param read The read's index in the batch
+     * @return The index after the read's last hit
+     */
+    public int getEnd(int read) {
+        return this.readEnds[read];
+    }
+
+    /**
+     * @param read The read's index in the batch
+     * @return True if the read was reported as a repeat, without hits
+     */
+    public boolean isRepeat(int read) {
+        return this.repeats[read];
+    }
+
+    /**
+     * @param index The hit's index, between getStart and getEnd of its read
+     * @return The hit's starting position in the genome
+     */
+    public long getPosition(int index) {
+        return this.positions[index];
+    }
+
+    /**
+     * @param index The hit's index, between getStart and getEnd of its read
+     * @return True if the hit is on the reverse strand
+     */
+    public boolean isReverse(int index) {
+        return this.reverse[index];
+    }
+}
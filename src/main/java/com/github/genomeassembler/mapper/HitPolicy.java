@@ -0,0 +1,76 @@
+package com.github.genomeassembler.mapper;
+
+
+/**
+ * Which of a read's hits a mapper reports. Repetitive reads can map to
+ * hundreds of positions, and every policy other than ALL lets the mapper
+ * stop searching or locating early:
+ *      - ALL reports every hit within the mismatch tolerance
+ *      - FIRST reports the first hit found, which has the fewest mismatches
+ *          the search happened to reach first, not necessarily the best
+ *      - BEST_STRATUM reports every hit with the fewest mismatches
+ *      - MAX_N reports every hit if there are at most N, and otherwise
+ *          reports the read as a repeat without locating any hit
+ */
+public class HitPolicy {
+    public final static HitPolicy ALL = new HitPolicy(Mode.ALL, Integer.MAX_VALUE);
+    public final static HitPolicy FIRST = new HitPolicy(Mode.FIRST, 1);
+    public final static HitPolicy BEST_STRATUM =
+            new HitPolicy(Mode.BEST_STRATUM, Integer.MAX_VALUE);
+
+    public enum Mode {
+        ALL,
+        FIRST,
+        BEST_STRATUM,
+        MAX_N
+    }
+
+    private final Mode mode;
+    private final int maxHits;
+
+    private HitPolicy(Mode mode, int maxHits) {
+        this.mode = mode;
+        this.maxHits = maxHits;
+    }
+
+    /**
+     * Reports every hit of reads with at most maxHits hits, and reports the
+     * other reads as repeats
+     * @param maxHits The number N of hits above which a read is a repeat
+     * @return The MAX_N policy
+     */
+    public static HitPolicy maxHits(int maxHits) {
+        if (maxHits < 1) {
+            throw new IllegalArgumentException("Invalid number of hits: " + maxHits);
+        }
+        return new HitPolicy(Mode.MAX_N, maxHits);
+    }
+
+    /**
+     * @return The policy's mode
+     */
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return The most hits reported for a read
+     */
+    public int getMaxHits() {
+        return this.maxHits;
+    }
+
+    /**
+     * Checks whether a read with some number of hits is a repeat
+     * @param numHits The read's number of hits
+     * @return True if the hits are not reported and the read is a repeat
+     */
+    public boolean isRepeat(long numHits) {
+        return this.mode == Mode.MAX_N && numHits > this.maxHits;
+    }
+
+    @Override
+    public String toString() {
+        return (this.mode == Mode.MAX_N) ? "MAX_" + this.maxHits : this.mode.toString();
+    }
+}
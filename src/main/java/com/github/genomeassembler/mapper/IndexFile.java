@@ -0,0 +1,332 @@
+package com.github.genomeassembler.mapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Reads and writes the on-disk format of a BWReadMapper's index.
+ * All values are little-endian. The file starts with a header:
+ *      - MAGIC (8 bytes) and VERSION (4 bytes)
+ *      - The suffix array sampling rate (4 bytes)
+ *      - Flags (4 bytes), where bit 0 marks an index of both strands
+ *      - The k-mer table length the index was built with (4 bytes)
+ *      - The number of rows and the row holding the '$' (8 bytes each)
+ *      - The number of A's, C's, G's, and T's (8 bytes each)
+ *      - The digest of the reference sequences (8 bytes)
+ * followed by the sections, each being its number of elements (8 bytes)
+ * then the elements, padded to a multiple of 8 bytes:
+ *      - The packed BWT (longs), its superblock counts (longs), and its
+ *          checkpoint counts (chars)
+ *      - The sampled rows bit vector (longs) and its rank checkpoints (ints),
+ *          both empty when every row is sampled
+ *      - The sampled positions divided by the sampling rate (ints)
+ *      - The start of each reference sequence (longs)
+ *      - The name of each reference sequence (bytes), each being its UTF-8
+ *          length (4 bytes) then its UTF-8 bytes
+ *      - The start and end of each gap of the reference (longs each)
+ *      - The low and high rows of every k-mer interval (longs each), whose
+ *          number gives the k-mer table length
+ * Reading maps each section read-only with FileChannel.map, so nothing is
+ * copied onto the heap and concurrent processes share the OS page cache
+ */
+class IndexFile {
+    private final static long MAGIC = 0x5844494D4641474CL; // "LGAFMIDX"
+    private final static int VERSION = 6;
+    private final static int HEADER_BYTES = 80;
+    private final static int BOTH_STRANDS_FLAG = 0x1;
+    private final static int WRITE_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Writes a mapper's index. The file is written next to the path and then
+     * moved into place, so readers never see a partially written index
+     * @param path The path of the index file
+     * @param samplingRate The suffix array sampling rate
+     * @param baseCounts The number of A's, C's, G's, and T's
+     * @param occurrences The BWT
+     * @param suffixArray The sampled suffix array
+     * @param sequences The reference sequences
+     * @param kmerIntervals The precomputed k-mer intervals
+     * @param bothStrands True if the reverse complement is indexed
+     * @param preferredKmerTableLength The k-mer table length asked for
+     * @param digest The digest of the reference sequences
+     */
+    static void write(Path path, int samplingRate, long[] baseCounts,
+                      OccurrenceTable occurrences, SampledSuffixArray suffixArray,
+                      SequenceTable sequences, KmerIntervalTable kmerIntervals,
+                      boolean bothStrands, int preferredKmerTableLength,
+                      long digest) throws IOException {
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(),
+                path.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(samplingRate);
+            buffer.putInt(bothStrands ? BOTH_STRANDS_FLAG : 0);
+            buffer.putInt(preferredKmerTableLength);
+            buffer.putLong(occurrences.length());
+            buffer.putLong(occurrences.getEndMarkerRow());
+            for (long count : baseCounts) {
+                buffer.putLong(count);
+            }
+            buffer.putLong(digest);
+            while (buffer.position() < HEADER_BYTES) {
+                buffer.put((byte) 0);
+            }
+            writeLongs(channel, buffer, occurrences.getWords());
+            writeLongs(channel, buffer, occurrences.getSuperblocks());
+            writeChars(channel, buffer, occurrences.getCheckpoints());
+            writeLongs(channel, buffer, suffixArray.getSampledRows());
+            writeInts(channel, buffer, suffixArray.getRankCheckpoints());
+            writeInts(channel, buffer, suffixArray.getSamples());
+            writeSequences(channel, buffer, sequences);
+            writeLongs(channel, buffer, kmerIntervals.getLows());
+            writeLongs(channel, buffer, kmerIntervals.getHighs());
+            flush(channel, buffer);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps an index file
+     * @param path The path of the index file
+     * @return The mapper backed by the file
+     */
+    static BWReadMapper read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if (header.getLong() != MAGIC) {
+                throw new IOException("Not a read mapper index: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version " + version + ": " + path);
+            }
+            int samplingRate = header.getInt();
+            boolean bothStrands = (header.getInt() & BOTH_STRANDS_FLAG) != 0;
+            int preferredKmerTableLength = header.getInt();
+            long length = header.getLong();
+            long endMarkerRow = header.getLong();
+            long[] baseCounts = new long[4];
+            for (int i = 0; i < baseCounts.length; i++) {
+                baseCounts[i] = header.getLong();
+            }
+            long digest = header.getLong();
+
+            long[] offset = new long[] {HEADER_BYTES};
+            LongBuffer words = mapLongs(channel, offset);
+            LongBuffer superblocks = mapLongs(channel, offset);
+            CharBuffer checkpoints = mapChars(channel, offset);
+            LongBuffer sampledRows = mapLongs(channel, offset);
+            IntBuffer rankCheckpoints = mapInts(channel, offset);
+            IntBuffer samples = mapInts(channel, offset);
+            SequenceTable sequences = readSequences(channel, offset);
+            LongBuffer lows = mapLongs(channel, offset);
+            LongBuffer highs = mapLongs(channel, offset);
+            int kmerTableLength = 0;
+            long strings = 1; // The empty string
+            while (strings < lows.limit()) {
+                kmerTableLength++;
+                strings += 1L << (2 * kmerTableLength);
+            }
+            if (samplingRate == 1) { // Every row is sampled
+                sampledRows = null;
+                rankCheckpoints = null;
+            }
+            OccurrenceTable occurrences = new OccurrenceTable(
+                    words, superblocks, checkpoints, length, endMarkerRow);
+            SampledSuffixArray suffixArray = new SampledSuffixArray(
+                    samplingRate, sampledRows, rankCheckpoints, samples);
+            KmerIntervalTable kmerIntervals =
+                    new KmerIntervalTable(kmerTableLength, lows, highs);
+            return new BWReadMapper(baseCounts, occurrences, suffixArray, sequences,
+                    kmerIntervals, bothStrands, preferredKmerTableLength, digest);
+        }
+    }
+
+    private static LongBuffer mapLongs(FileChannel channel, long[] offset) throws IOException {
+        long size = readSectionSize(channel, offset);
+        LongBuffer section = map(channel, offset[0], size * Long.BYTES).asLongBuffer();
+        offset[0] += padded(size * Long.BYTES);
+        return section;
+    }
+
+    private static IntBuffer mapInts(FileChannel channel, long[] offset) throws IOException {
+        long size = readSectionSize(channel, offset);
+        IntBuffer section = map(channel, offset[0], size * Integer.BYTES).asIntBuffer();
+        offset[0] += padded(size * Integer.BYTES);
+        return section;
+    }
+
+    private static CharBuffer mapChars(FileChannel channel, long[] offset) throws IOException {
+        long size = readSectionSize(channel, offset);
+        CharBuffer section = map(channel, offset[0], size * Character.BYTES).asCharBuffer();
+        offset[0] += padded(size * Character.BYTES);
+        return section;
+    }
+
+    private static SequenceTable readSequences(FileChannel channel, long[] offset)
+            throws IOException {
+        LongBuffer starts = mapLongs(channel, offset);
+        long size = readSectionSize(channel, offset);
+        ByteBuffer names = map(channel, offset[0], size);
+        offset[0] += padded(size);
+        LongBuffer gapStarts = mapLongs(channel, offset);
+        LongBuffer gapEnds = mapLongs(channel, offset);
+
+        String[] sequenceNames = new String[starts.limit() - 1];
+        long[] lengths = new long[sequenceNames.length];
+        for (int i = 0; i < sequenceNames.length; i++) {
+            byte[] name = new byte[names.getInt()];
+            names.get(name);
+            sequenceNames[i] = new String(name, StandardCharsets.UTF_8);
+            lengths[i] = starts.get(i + 1) - starts.get(i);
+        }
+        long[] gapStartArray = new long[gapStarts.limit()];
+        long[] gapEndArray = new long[gapEnds.limit()];
+        gapStarts.get(gapStartArray);
+        gapEnds.get(gapEndArray);
+        return new SequenceTable(sequenceNames, lengths, gapStartArray, gapEndArray);
+    }
+
+    private static long readSectionSize(FileChannel channel, long[] offset) throws IOException {
+        long size = map(channel, offset[0], Long.BYTES).getLong();
+        offset[0] += Long.BYTES;
+        return size;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer,
+                                   LongBuffer section) throws IOException {
+        int size = (section == null) ? 0 : section.limit();
+        putLong(channel, buffer, size);
+        for (int i = 0; i < size; i++) {
+            putLong(channel, buffer, section.get(i));
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer,
+                                  IntBuffer section) throws IOException {
+        int size = (section == null) ? 0 : section.limit();
+        putLong(channel, buffer, size);
+        for (int i = 0; i < size; i++) {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(section.get(i));
+        }
+        if (size % 2 == 1) { // Pads to a multiple of 8 bytes
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(0);
+        }
+    }
+
+    private static void writeChars(FileChannel channel, ByteBuffer buffer,
+                                   CharBuffer section) throws IOException {
+        int size = section.limit();
+        putLong(channel, buffer, size);
+        for (int i = 0; i < size; i++) {
+            if (buffer.remaining() < Character.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putChar(section.get(i));
+        }
+        for (int i = size; i % 4 != 0; i++) { // Pads to a multiple of 8 bytes
+            if (buffer.remaining() < Character.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putChar((char) 0);
+        }
+    }
+
+    private static void writeSequences(FileChannel channel, ByteBuffer buffer,
+                                       SequenceTable sequences) throws IOException {
+        int numSequences = sequences.getNumSequences();
+        putLong(channel, buffer, numSequences + 1);
+        for (int i = 0; i < numSequences; i++) {
+            putLong(channel, buffer, sequences.getStart(i));
+        }
+        putLong(channel, buffer, sequences.getTotalLength());
+
+        byte[][] names = new byte[numSequences][];
+        long size = 0;
+        for (int i = 0; i < numSequences; i++) {
+            names[i] = sequences.getName(i).getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + names[i].length;
+        }
+        putLong(channel, buffer, size);
+        for (byte[] name : names) {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(name.length);
+            for (byte b : name) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                buffer.put(b);
+            }
+        }
+        for (long i = size; i % Long.BYTES != 0; i++) { // Pads to a multiple of 8 bytes
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            buffer.put((byte) 0);
+        }
+
+        long[] gapStarts = new long[sequences.getNumGaps()];
+        long[] gapEnds = new long[gapStarts.length];
+        for (int i = 0; i < gapStarts.length; i++) {
+            gapStarts[i] = sequences.getGapStart(i);
+            gapEnds[i] = sequences.getGapEnd(i);
+        }
+        writeLongs(channel, buffer, LongBuffer.wrap(gapStarts));
+        writeLongs(channel, buffer, LongBuffer.wrap(gapEnds));
+    }
+
+    private static void putLong(FileChannel channel, ByteBuffer buffer, long value)
+            throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            flush(channel, buffer);
+        }
+        buffer.putLong(value);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static long padded(long bytes) {
+        return (bytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+    }
+}
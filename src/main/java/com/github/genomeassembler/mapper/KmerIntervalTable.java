@@ -0,0 +1,126 @@
+package com.github.genomeassembler.mapper;
+
+import java.nio.LongBuffer;
+
+/**
+ * Stores the suffix array interval of every string of up to q bases, so
+ * that a backward search can look up the interval of a read's last q bases
+ * instead of narrowing it with 2q rank queries.
+ * A string of length k is encoded 2 bits per base with its first base in the
+ * highest bits. The intervals of all strings of length k are stored in code
+ * order after those of every shorter length, so the table holds
+ * (4^(q+1) - 1) / 3 intervals, each as a low and high row.
+ * This costs ~21.3 * 4^q bytes
+ */
+public class KmerIntervalTable {
+    public final static int MAX_LENGTH = 15; // Codes fit in an int
+
+    private final int length;
+    private final LongBuffer lows;
+    private final LongBuffer highs;
+
+    /**
+     * Creates a table over already computed intervals
+     * @param length The longest string length q
+     * @param lows The first row of each interval
+     * @param highs The end of each interval (exclusive)
+     */
+    KmerIntervalTable(int length, LongBuffer lows, LongBuffer highs) {
+        this.length = length;
+        this.lows = lows;
+        this.highs = highs;
+    }
+
+    /**
+     * Computes the intervals by backward search, extending each string of
+     * length k - 1 by every base to its left
+     * @param occurrences The BWT
+     * @param firstRows The first row of the sorted BWT starting with each base
+     * @param length The longest string length q
+     * @return The table
+     */
+    public static KmerIntervalTable build(OccurrenceTable occurrences,
+                                          long[] firstRows, int length) {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid k-mer table length: " + length);
+        }
+        long[] lows = new long[getLevelOffset(length + 1)];
+        long[] highs = new long[lows.length];
+        highs[0] = occurrences.length(); // The empty string matches every row
+        for (int k = 1; k <= length; k++) {
+            int parents = getLevelOffset(k - 1);
+            int children = getLevelOffset(k);
+            int shift = 2 * (k - 1);
+            for (int code = 0; code < (1 << shift); code++) {
+                long low = lows[parents + code];
+                long high = highs[parents + code];
+                if (low >= high) {
+                    continue; // Every extension is absent as well
+                }
+                for (int base = 0; base < 4; base++) {
+                    int child = children + ((base << shift) | code);
+                    lows[child] = firstRows[base] + occurrences.occurrences(base, low);
+                    highs[child] = firstRows[base] + occurrences.occurrences(base, high);
+                }
+            }
+        }
+        return new KmerIntervalTable(length, LongBuffer.wrap(lows), LongBuffer.wrap(highs));
+    }
+
+    /**
+     * Chooses a table length for a genome, at most the preferred length and
+     * with no more strings of the longest length than rows of the BWT
+     * @param preferredLength The preferred length
+     * @param rows The number of rows of the BWT
+     * @return The length
+     */
+    public static int getLength(int preferredLength, long rows) {
+        int length = 0;
+        while (length < Math.min(preferredLength, MAX_LENGTH) && (4L << (2 * length)) <= rows) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return The longest string length q whose intervals are stored
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns the first row of a string's interval
+     * @param length The length of the string, at most q
+     * @param code The encoded string
+     * @return The first row
+     */
+    public long getLow(int length, int code) {
+        return this.lows.get(getLevelOffset(length) + code);
+    }
+
+    /**
+     * Returns the end of a string's interval
+     * @param length The length of the string, at most q
+     * @param code The encoded string
+     * @return The end of the interval (exclusive)
+     */
+    public long getHigh(int length, int code) {
+        return this.highs.get(getLevelOffset(length) + code);
+    }
+
+    LongBuffer getLows() {
+        return this.lows;
+    }
+
+    LongBuffer getHighs() {
+        return this.highs;
+    }
+
+    /**
+     * @return The number of strings shorter than length, (4^length - 1) / 3
+     */
+    private static int getLevelOffset(int length) {
+        return (int) (((1L << (2 * length)) - 1) / 3);
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The best stratum of a read's mappings: the fewest mismatches with which
+ * the read maps to the genome, and every position where it maps with exactly
+ * that many mismatches. Mappers indexing both strands also give the
+ * positions where the read's reverse complement maps with that many
+ * mismatches. A read with more hits than a hit policy allows is a repeat,
+ * whose positions are not given
+ */
+public class MappingStratum {
+    public final static MappingStratum UNMAPPED =
+            new MappingStratum(-1, Collections.emptyList());
+
+    private final int mismatches;
+    private final List<Long> positions;
+    private final List<Long> reversePositions;
+    private final boolean repeat;
+
+    /**
+     * @param mismatches The number of mismatches of every position
+     * @param positions The starting positions in the genome
+     */
+    public MappingStratum(int mismatches, List<Long> positions) {
+        this(mismatches, positions, Collections.emptyList());
+    }
+
+    /**
+     * @param mismatches The number of mismatches of every position
+     * @param positions The starting positions in the genome
+     * @param reversePositions The starting positions in the genome of the
+     *                         read's reverse complement
+     */
+    public MappingStratum(int mismatches, List<Long> positions,
+                          List<Long> reversePositions) {
+        this(mismatches, positions, reversePositions, false);
+    }
+
+    private MappingStratum(int mismatches, List<Long> positions,
+                           List<Long> reversePositions, boolean repeat) {
+        this.mismatches = mismatches;
+        this.positions = positions;
+        this.reversePositions = reversePositions;
+        this.repeat = repeat;
+    }
+
+    /**
+     * @param mismatches The number of mismatches of the read's best mappings
+     * @return The stratum of a read reported as a repeat
+     */
+    public static MappingStratum repeat(int mismatches) {
+        return new MappingStratum(mismatches, Collections.emptyList(),
+                Collections.emptyList(), true);
+    }
+
+    /**
+     * @return True if the read mapped to at least one position on either
+     *         strand, including as a repeat
+     */
+    public boolean isMapped() {
+        return this.repeat || !this.positions.isEmpty() || !this.reversePositions.isEmpty();
+    }
+
+    /**
+     * @return True if the read has more hits than the hit policy allows, in
+     *         which case its positions are empty
+     */
+    public boolean isRepeat() {
+        return this.repeat;
+    }
+
+    /**
+     * @return The number of mismatches, or -1 if the read did not map
+     */
+    public int getMismatches() {
+        return this.mismatches;
+    }
+
+    /**
+     * @return All starting positions in the genome with that many mismatches
+     */
+    public List<Long> getPositions() {
+        return this.positions;
+    }
+
+    /**
+     * @return All starting positions in the genome of the read's reverse
+     *         complement with that many mismatches
+     */
+    public List<Long> getReversePositions() {
+        return this.reversePositions;
+    }
+}
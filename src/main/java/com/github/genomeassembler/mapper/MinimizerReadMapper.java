@@ -0,0 +1,294 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps reads by seed-and-verify over a minimizer index of the genome.
+ * Of every w consecutive k-mers, the one with the smallest hash (the
+ * leftmost on ties) is the window's minimizer. The positions of every
+ * minimizer of the genome are stored in one int array grouped by k-mer, and
+ * each k-mer's group is found through an open-addressing hash table of
+ * primitive arrays. A read's own minimizers are looked up to collect
+ * candidate diagonals (genome position minus offset in the read), and each
+ * candidate is verified by counting mismatches over packed sequences,
+ * 32 bases at a time, stopping as soon as there are too many.
+ * A mapping is only found if one of the read's minimizers is untouched by
+ * its mismatches, so unlike BWReadMapper this mapper may miss mappings of
+ * reads with many mismatches packed closely together. Reads shorter than
+ * k + w - 1 hold no full window, so their minimizers need not be minimizers
+ * of the genome, and they are verified at every offset instead.
+ * This costs ~(0.25 + 8 / (w + 1)) bytes per base, plus the hash table
+ */
+public class MinimizerReadMapper implements ReadMapper {
+    public final static int MAX_KMER_LENGTH = 15; // Codes and positions pack into a long
+    public final static int DEFAULT_KMER_LENGTH = 15;
+    public final static int DEFAULT_WINDOW_LENGTH = 10;
+
+    private final int kmerLength;
+    private final int windowLength;
+    private final PackedSequence genome;
+    private final SequenceTable sequences;
+    private final int[] tableKeys; // k-mer code + 1, where 0 marks an empty slot
+    private final int[] tableStarts; // The first index of each k-mer's positions
+    private final int[] tableEnds;
+    private final int[] positions; // Minimizer positions, grouped by k-mer
+
+    /**
+     * Processes a genome made of a single sequence with the default k and w
+     * @param genomeSequence The genome sequence
+     */
+    public MinimizerReadMapper(String genomeSequence) {
+        this(Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME,
+                genomeSequence), DEFAULT_KMER_LENGTH, DEFAULT_WINDOW_LENGTH);
+    }
+
+    /**
+     * Processes a genome made of several sequences, which are concatenated
+     * in iteration order. No k-mer spans two sequences
+     * @param sequences The sequences, mapped from their names
+     * @param kmerLength The length k of the minimizers
+     * @param windowLength The number w of consecutive k-mers each minimizer
+     *                     is chosen from
+     */
+    public MinimizerReadMapper(Map<String, String> sequences, int kmerLength,
+                               int windowLength) {
+        if (kmerLength < 1 || kmerLength > MAX_KMER_LENGTH) {
+            throw new IllegalArgumentException("Invalid k-mer length: " + kmerLength);
+        }
+        if (windowLength < 1) {
+            throw new IllegalArgumentException("Invalid window length: " + windowLength);
+        }
+        this.kmerLength = kmerLength;
+        this.windowLength = windowLength;
+        this.sequences = SequenceTable.of(sequences);
+        long totalLength = this.sequences.getTotalLength();
+        if (totalLength >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Genome too long to index: " +
+                    totalLength + " bp");
+        }
+        byte[] genome = new byte[(int) totalLength];
+        int offset = 0;
+        for (String sequence : sequences.values()) {
+            for (int i = 0; i < sequence.length(); i++) { // Soft-masked bases are bases
+                genome[offset++] =
+                        BWReadMapper.encodeBase(Character.toUpperCase(sequence.charAt(i)));
+            }
+        }
+
+        LongList minimizers = new LongList(
+                (int) (2 * totalLength / (windowLength + 1)) + 16);
+        for (int i = 0; i < this.sequences.getNumSequences(); i++) {
+            int start = (int) this.sequences.getStart(i);
+            addMinimizers(genome, start, start + (int) this.sequences.getLength(i),
+                    minimizers);
+        }
+        long[] entries = minimizers.entries;
+        int size = minimizers.size;
+        Arrays.sort(entries, 0, size); // By k-mer, then position
+
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || getCode(entries[i]) != getCode(entries[i - 1])) {
+                distinct++;
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(2 * distinct, 1)) << 1;
+        this.tableKeys = new int[capacity];
+        this.tableStarts = new int[capacity];
+        this.tableEnds = new int[capacity];
+        this.positions = new int[size];
+        int slot = -1;
+        for (int i = 0; i < size; i++) {
+            int code = getCode(entries[i]);
+            if (i == 0 || code != getCode(entries[i - 1])) {
+                slot = findSlot(code);
+                this.tableKeys[slot] = code + 1;
+                this.tableStarts[slot] = i;
+            }
+            this.positions[i] = (int) entries[i];
+            this.tableEnds[slot] = i + 1;
+        }
+        this.genome = new PackedSequence(genome, genome.length);
+    }
+
+    /**
+     * Maps a read to the genome by verifying the diagonals its minimizers
+     * hit
+     * @param read The read being mapped
+     * @param mismatches The number of tolerant mismatches
+     * @return All starting positions found in the genome, in increasing order
+     */
+    @Override
+    public List<Long> mapRead(String read, int mismatches) {
+        int length = read.length();
+        byte[] bases = BWReadMapper.encodeRead(read, new byte[length]);
+        PackedSequence packedRead = new PackedSequence(bases, length);
+        List<Long> startingPositions = new ArrayList<>();
+        if (length < this.kmerLength + this.windowLength - 1) { // No full window
+            for (int position = 0; position + length <= this.genome.length(); position++) {
+                verify(packedRead, position, mismatches, startingPositions);
+            }
+            return startingPositions;
+        }
+
+        LongList minimizers = new LongList(16);
+        addMinimizers(bases, 0, length, minimizers);
+        LongList diagonals = new LongList(16);
+        for (int i = 0; i < minimizers.size; i++) {
+            int slot = findSlot(getCode(minimizers.entries[i]));
+            if (this.tableKeys[slot] == 0) {
+                continue; // Not a minimizer of the genome
+            }
+            int readOffset = (int) minimizers.entries[i];
+            for (int j = this.tableStarts[slot]; j < this.tableEnds[slot]; j++) {
+                diagonals.add((long) this.positions[j] - readOffset);
+            }
+        }
+        long[] candidates = diagonals.entries;
+        Arrays.sort(candidates, 0, diagonals.size);
+        for (int i = 0; i < diagonals.size; i++) {
+            long position = candidates[i];
+            if ((i > 0 && position == candidates[i - 1]) ||
+                    position < 0 || position + length > this.genome.length()) {
+                continue;
+            }
+            verify(packedRead, (int) position, mismatches, startingPositions);
+        }
+        return startingPositions;
+    }
+
+    /**
+     * Adds a position to the read's mappings if the read mismatches the
+     * genome there at most the given number of times and lies within a
+     * single sequence
+     */
+    private void verify(PackedSequence read, int position, int mismatches,
+                        List<Long> startingPositions) {
+        if (this.genome.countMismatches(position, read, mismatches) <= mismatches &&
+                this.sequences.contains(position, read.length())) {
+            startingPositions.add((long) position);
+        }
+    }
+
+    /**
+     * Appends the minimizers of a range of bases, each as its k-mer code in
+     * the high bits and its position in the low 32 bits. A k-mer holding a
+     * character other than A, C, G, or T is never chosen. When the range
+     * holds fewer than w k-mers, the smallest of them is its only minimizer
+     * @param bases The bases, as indices in "ACGT"
+     * @param start The first base of the range
+     * @param end The end of the range (exclusive)
+     * @param minimizers Receives the minimizers, in increasing position
+     */
+    private void addMinimizers(byte[] bases, int start, int end, LongList minimizers) {
+        int kmers = end - start - this.kmerLength + 1;
+        if (kmers <= 0) {
+            return;
+        }
+        int window = Math.min(this.windowLength, kmers);
+        long[] hashes = new long[window]; // Ring buffers over the current window
+        int[] codes = new int[window];
+        int mask = (1 << (2 * this.kmerLength)) - 1;
+        int code = 0;
+        int validBases = 0; // Consecutive bases other than -1 ending at the k-mer
+        int minimum = -1; // The index of the current window's minimizer
+        int lastAdded = -1;
+        for (int i = start; i < end; i++) {
+            int base = bases[i];
+            if (base == -1) {
+                code = 0;
+                validBases = 0;
+            } else {
+                code = ((code << 2) | base) & mask;
+                validBases++;
+            }
+            int kmer = i - start - this.kmerLength + 1;
+            if (kmer < 0) {
+                continue;
+            }
+            codes[kmer % window] = code;
+            hashes[kmer % window] = (validBases >= this.kmerLength) ? hash(code) : Long.MAX_VALUE;
+            if (kmer < window - 1) {
+                continue;
+            }
+            int windowStart = kmer - window + 1;
+            if (minimum < windowStart) { // The minimizer left the window
+                minimum = windowStart;
+                for (int j = windowStart + 1; j <= kmer; j++) {
+                    if (hashes[j % window] < hashes[minimum % window]) {
+                        minimum = j;
+                    }
+                }
+            } else if (hashes[kmer % window] < hashes[minimum % window]) {
+                minimum = kmer;
+            }
+            if (minimum != lastAdded && hashes[minimum % window] != Long.MAX_VALUE) {
+                minimizers.add(((long) codes[minimum % window] << 32) | (start + minimum));
+                lastAdded = minimum;
+            }
+        }
+    }
+
+    /**
+     * Finds a k-mer's slot in the hash table, or the empty slot it would
+     * take
+     */
+    private int findSlot(int code) {
+        int mask = this.tableKeys.length - 1;
+        int slot = (int) hash(code) & mask;
+        while (this.tableKeys[slot] != 0 && this.tableKeys[slot] != code + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Scrambles a k-mer code, so that minimizers are not biased towards
+     * k-mers such as poly-A
+     * @return A non-negative hash below Long.MAX_VALUE
+     */
+    private static long hash(int code) {
+        long h = code * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 29)) >>> 2;
+    }
+
+    private static int getCode(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    @Override
+    public String getGenomeSequence() {
+        return this.genome.toString();
+    }
+
+    /**
+     * @return The sequences making up the genome
+     */
+    public SequenceTable getSequenceTable() {
+        return this.sequences;
+    }
+
+    /**
+     * Growable array of longs
+     */
+    private static class LongList {
+        private long[] entries;
+        private int size;
+
+        private LongList(int capacity) {
+            this.entries = new long[Math.max(capacity, 1)];
+            this.size = 0;
+        }
+
+        private void add(long entry) {
+            if (this.size == this.entries.length) {
+                this.entries = Arrays.copyOf(this.entries, 2 * this.entries.length);
+            }
+            this.entries[this.size++] = entry;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.genomeassembler.mapper;
+
+/**
+ * Sorts a range of suffixes of a RankedText that share their first depth
+ * symbols by multikey quicksort: a three-way partition on the symbol at
+ * depth, then the smaller and larger parts are sorted at the same depth and
+ * the equal part at the next. Only the two parts other than the largest are
+ * sorted recursively, which bounds the recursion depth by log2 of the range
+ * length.
+ * The sort costs about the total length of the prefixes the suffixes share,
+ * which is quadratic for long exact repeats, so it can give up after some
+ * number of symbol comparisons, or stop comparing at a maximum depth and
+ * order the suffixes still tied there by a DifferenceCoverSample
+ */
+class MultikeyQuicksort {
+    private final static int INSERTION_SORT_LENGTH = 16;
+
+    private final RankedText text;
+    private final long[] suffixes;
+    private final int maxDepth;
+    private final DifferenceCoverSample tieBreaker; // Null leaves ties in any order
+    private final long workLimit;
+    private long work;
+
+    /**
+     * @param text The text
+     * @param suffixes The positions of the suffixes, sorted in place
+     * @param maxDepth The number of leading symbols compared
+     * @param tieBreaker Orders the suffixes sharing their first maxDepth
+     *                   symbols, or null to leave them in any order
+     * @param workLimit The number of symbol comparisons after which the
+     *                  sort gives up
+     */
+    MultikeyQuicksort(RankedText text, long[] suffixes, int maxDepth,
+                      DifferenceCoverSample tieBreaker, long workLimit) {
+        this.text = text;
+        this.suffixes = suffixes;
+        this.maxDepth = maxDepth;
+        this.tieBreaker = tieBreaker;
+        this.workLimit = workLimit;
+        this.work = 0;
+    }
+
+    /**
+     * Sorts a range of suffixes
+     * @param low The first index of the range
+     * @param high The end of the range (exclusive)
+     * @param depth The number of symbols the suffixes are known to share
+     * @return False if the sort gave up, leaving the range in any order
+     */
+    boolean sort(int low, int high, int depth) {
+        while (high - low > 1) {
+            if (this.work > this.workLimit) {
+                return false;
+            }
+            if (depth >= this.maxDepth) {
+                if (this.tieBreaker != null) {
+                    this.tieBreaker.sort(this.suffixes, low, high);
+                }
+                return true;
+            }
+            if (high - low <= INSERTION_SORT_LENGTH) {
+                insertionSort(low, high, depth);
+                return this.work <= this.workLimit;
+            }
+            this.work += high - low;
+            int pivot = medianOfThree(symbolAt(low, depth),
+                    symbolAt((low + high) >>> 1, depth), symbolAt(high - 1, depth));
+            int lessEnd = low, greaterStart = high;
+            for (int k = low; k < greaterStart; ) {
+                int c = symbolAt(k, depth);
+                if (c < pivot) {
+                    swap(lessEnd++, k++);
+                } else if (c > pivot) {
+                    swap(k, --greaterStart);
+                } else {
+                    k++;
+                }
+            }
+            int less = lessEnd - low, equal = greaterStart - lessEnd, greater = high - greaterStart;
+            boolean sorted;
+            if (equal >= less && equal >= greater) {
+                sorted = sort(low, lessEnd, depth) && sort(greaterStart, high, depth);
+                low = lessEnd;
+                high = greaterStart;
+                depth++;
+            } else if (less >= greater) {
+                sorted = sort(lessEnd, greaterStart, depth + 1) && sort(greaterStart, high, depth);
+                high = lessEnd;
+            } else {
+                sorted = sort(low, lessEnd, depth) && sort(lessEnd, greaterStart, depth + 1);
+                low = greaterStart;
+            }
+            if (!sorted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertionSort(int low, int high, int depth) {
+        for (int i = low + 1; i < high; i++) {
+            long suffix = this.suffixes[i];
+            int j = i;
+            while (j > low && compare(this.suffixes[j - 1], suffix, depth) > 0) {
+                this.suffixes[j] = this.suffixes[j - 1];
+                j--;
+            }
+            this.suffixes[j] = suffix;
+        }
+    }
+
+    /**
+     * Compares two distinct suffixes sharing their first depth symbols. The
+     * unique end marker stops the comparison before the end of the text, and
+     * running out of work stops it early, with the result then unused. With
+     * a tie breaker, the comparison stops as soon as the suffixes share
+     * enough symbols for the sample ranks to order them
+     */
+    private int compare(long a, long b, int depth) {
+        int tieDepth = (this.tieBreaker == null) ? this.maxDepth :
+                Math.max(this.tieBreaker.getOffset(a, b), depth);
+        long budget = Math.max(this.workLimit - this.work, 0);
+        long end = (budget < tieDepth - depth) ? depth + budget + 1 : tieDepth;
+        int i = depth;
+        while (i < end && this.text.symbolAt(a + i) == this.text.symbolAt(b + i)) {
+            i++;
+        }
+        this.work += i - depth + 1;
+        if (i == end && end < tieDepth) { // Out of work
+            return 0;
+        }
+        if (i == tieDepth) {
+            return (this.tieBreaker == null) ? 0 : this.tieBreaker.compare(a, b);
+        }
+        return Integer.compare(this.text.symbolAt(a + i), this.text.symbolAt(b + i));
+    }
+
+    private int symbolAt(int index, int depth) {
+        return this.text.symbolAt(this.suffixes[index] + depth);
+    }
+
+    private static int medianOfThree(int a, int b, int c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private void swap(int i, int j) {
+        long temp = this.suffixes[i];
+        this.suffixes[i] = this.suffixes[j];
+        this.suffixes[j] = temp;
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.genomeassembler.mapper;
+
+import java.nio.CharBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Rank structure over the BWT of a genome.
+ * The BWT is packed 2 bits per base into longs, 32 bases per long, with the
+ * first base in the lowest bits. The '$' is stored as an 'A' and its row is
+ * kept separately. Every SUPERBLOCK_INTERVAL rows, the number of A's, C's,
+ * G's, and T's before that row is stored as longs, and every
+ * CHECKPOINT_INTERVAL rows the counts since the last superblock are stored
+ * as 16-bit chars. An occurrence count then only needs to popcount the
+ * (at most 4) words between a checkpoint and the row.
+ * Rows are addressed with longs, supporting BWTs of up to ~68,000,000,000
+ * rows.
+ * This costs ~0.25 bytes per base for the BWT plus ~0.0625 bytes per base
+ * for the checkpoints. All are held in buffers, which either wrap arrays or
+ * are mapped straight from an index file
+ */
+public class OccurrenceTable {
+    final static int CHECKPOINT_INTERVAL = 128;
+    final static int SUPERBLOCK_INTERVAL = 1 << 16;
+    private final static int BASES_PER_WORD = 32;
+    private final static int BASE_MASK = 0x3;
+    private final static long LOW_BITS = 0x5555555555555555L;
+    // Each base repeated 32 times, used to find every copy of a base in a word
+    private final static long[] PATTERNS = {
+            0x0000000000000000L, 0x5555555555555555L,
+            0xAAAAAAAAAAAAAAAAL, 0xFFFFFFFFFFFFFFFFL
+    };
+
+    private final LongBuffer words;
+    private final LongBuffer superblocks;
+    private final CharBuffer checkpoints;
+    private final long length;
+    private final long endMarkerRow;
+
+    /**
+     * Collects the BWT one row at a time, in row order
+     */
+    public static class Builder {
+        private final long[] words;
+        private final long[] superblocks;
+        private final char[] checkpoints;
+        private final long[] counts;
+        private long length;
+        private long endMarkerRow;
+
+        /**
+         * @param length The number of rows of the BWT, including the '$'
+         */
+        public Builder(long length) {
+            this.words = new long[Math.toIntExact((length + BASES_PER_WORD - 1) / BASES_PER_WORD)];
+            this.superblocks = new long[Math.toIntExact(4 * (length / SUPERBLOCK_INTERVAL + 1))];
+            this.checkpoints = new char[Math.toIntExact(4 * (length / CHECKPOINT_INTERVAL + 1))];
+            this.counts = new long[4];
+            this.length = 0;
+            this.endMarkerRow = -1;
+        }
+
+        /**
+         * Appends the next row's base
+         * @param base The base's index in "ACGT"
+         * @return This builder
+         */
+        public Builder append(int base) {
+            saveCheckpoint();
+            this.words[(int) (this.length / BASES_PER_WORD)] |=
+                    ((long) base) << (2 * (this.length % BASES_PER_WORD));
+            this.counts[base]++;
+            this.length++;
+            return this;
+        }
+
+        /**
+         * Appends the row holding the '$'
+         * @return This builder
+         */
+        public Builder appendEndMarker() {
+            saveCheckpoint();
+            this.endMarkerRow = this.length;
+            this.length++;
+            return this;
+        }
+
+        private void saveCheckpoint() {
+            if (this.length % CHECKPOINT_INTERVAL != 0) {
+                return;
+            }
+            int superblock = (int) (4 * (this.length / SUPERBLOCK_INTERVAL));
+            if (this.length % SUPERBLOCK_INTERVAL == 0) {
+                System.arraycopy(this.counts, 0, this.superblocks, superblock, 4);
+            }
+            int checkpoint = (int) (4 * (this.length / CHECKPOINT_INTERVAL));
+            for (int base = 0; base < 4; base++) {
+                this.checkpoints[checkpoint + base] =
+                        (char) (this.counts[base] - this.superblocks[superblock + base]);
+            }
+        }
+
+        public OccurrenceTable build() {
+            saveCheckpoint(); // Allows counting up to the final row
+            return new OccurrenceTable(this);
+        }
+    }
+
+    private OccurrenceTable(Builder builder) {
+        this(LongBuffer.wrap(builder.words), LongBuffer.wrap(builder.superblocks),
+                CharBuffer.wrap(builder.checkpoints), builder.length, builder.endMarkerRow);
+    }
+
+    /**
+     * Creates a table over already packed data
+     * @param words The packed BWT
+     * @param superblocks The counts of each base before every superblock
+     * @param checkpoints The counts of each base between the superblock and
+     *                    every checkpoint
+     * @param length The number of rows of the BWT, including the '$'
+     * @param endMarkerRow The row holding the '$'
+     */
+    OccurrenceTable(LongBuffer words, LongBuffer superblocks, CharBuffer checkpoints,
+                    long length, long endMarkerRow) {
+        this.words = words;
+        this.superblocks = superblocks;
+        this.checkpoints = checkpoints;
+        this.length = length;
+        this.endMarkerRow = endMarkerRow;
+    }
+
+    /**
+     * Counts the occurrences of a base within the BWT before a row
+     * @param base The base's index in "ACGT"
+     * @param end The row before which occurrences are counted (exclusive)
+     * @return The number of occurrences of base in BWT[0, end)
+     */
+    public long occurrences(int base, long end) {
+        int checkpoint = (int) (end / CHECKPOINT_INTERVAL);
+        long row = (long) checkpoint * CHECKPOINT_INTERVAL;
+        long count = this.superblocks.get((int) (4 * (end / SUPERBLOCK_INTERVAL)) + base) +
+                this.checkpoints.get(4 * checkpoint + base);
+        if (base == 0 && row <= this.endMarkerRow && this.endMarkerRow < end) {
+            count--; // The '$' is stored as an 'A'
+        }
+        int word = (int) (row / BASES_PER_WORD);
+        for (; row + BASES_PER_WORD <= end; row += BASES_PER_WORD) {
+            count += Long.bitCount(matches(this.words.get(word++), base));
+        }
+        int remaining = (int) (end - row);
+        if (remaining > 0) {
+            long mask = (1L << (2 * remaining)) - 1;
+            count += Long.bitCount(matches(this.words.get(word), base) & mask);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the base of the BWT at a row
+     * @param row The row
+     * @return The base's index in "ACGT", or -1 if the row holds the '$'
+     */
+    public int getBase(long row) {
+        if (row == this.endMarkerRow) {
+            return -1;
+        }
+        return (int) (this.words.get((int) (row / BASES_PER_WORD)) >>>
+                (2 * (row % BASES_PER_WORD))) & BASE_MASK;
+    }
+
+    /**
+     * @return The number of rows of the BWT, including the '$'
+     */
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * @return The row whose BWT character is the '$'
+     */
+    public long getEndMarkerRow() {
+        return this.endMarkerRow;
+    }
+
+    LongBuffer getWords() {
+        return this.words;
+    }
+
+    LongBuffer getSuperblocks() {
+        return this.superblocks;
+    }
+
+    CharBuffer getCheckpoints() {
+        return this.checkpoints;
+    }
+
+    /**
+     * Marks every 2-bit slot of a word that holds a base with the low bit of
+     * that slot
+     */
+    private static long matches(long word, int base) {
+        long difference = word ^ PATTERNS[base];
+        return ~(difference | (difference >>> 1)) & LOW_BITS;
+    }
+}
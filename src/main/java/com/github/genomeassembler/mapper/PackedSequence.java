@@ -0,0 +1,131 @@
+package com.github.genomeassembler.mapper;
+
+/**
+ * A sequence packed 2 bits per base into longs, 32 bases per long, with the
+ * first base in the lowest bits, as in the BWT of OccurrenceTable.
+ * Characters other than A, C, G, and T are stored as an 'A' and marked in a
+ * second array with the low bit of their 2-bit slot, so that they never
+ * match. The second array is only kept if the sequence holds such a
+ * character.
+ * Mismatches against another packed sequence are counted 32 bases at a
+ * time: XOR-ing two words leaves a non-zero slot wherever the bases differ,
+ * and folding each slot onto its low bit lets one popcount count them.
+ * This costs ~0.25 bytes per base, or ~0.5 with ambiguous characters
+ */
+public class PackedSequence {
+    private final static int BASES_PER_WORD = 32;
+    private final static long LOW_BITS = 0x5555555555555555L;
+    private final static String BASES = "ACGT";
+
+    private final long[] words;
+    private final long[] ambiguous; // null if every base is A, C, G, or T
+    private final int length;
+
+    /**
+     * Packs bases given as indices in "ACGT"
+     * @param bases The bases, with -1 for any other character
+     * @param length The number of bases
+     */
+    public PackedSequence(byte[] bases, int length) {
+        this.length = length;
+        this.words = new long[(length + BASES_PER_WORD - 1) / BASES_PER_WORD + 1];
+        long[] ambiguous = null;
+        for (int i = 0; i < length; i++) {
+            int shift = 2 * (i % BASES_PER_WORD);
+            if (bases[i] == -1) {
+                if (ambiguous == null) {
+                    ambiguous = new long[this.words.length];
+                }
+                ambiguous[i / BASES_PER_WORD] |= 1L << shift;
+            } else {
+                this.words[i / BASES_PER_WORD] |= ((long) bases[i]) << shift;
+            }
+        }
+        this.ambiguous = ambiguous;
+    }
+
+    /**
+     * Packs a sequence of characters
+     * @param sequence The sequence
+     * @return The packed sequence
+     */
+    public static PackedSequence of(String sequence) {
+        return new PackedSequence(BWReadMapper.encodeRead(sequence,
+                new byte[sequence.length()]), sequence.length());
+    }
+
+    /**
+     * Counts the mismatches of another sequence placed at a position of
+     * this one, stopping once there are more than maxMismatches
+     * @param position The position of the other sequence's first base, with
+     *                 the other sequence ending within this one
+     * @param other The other sequence
+     * @param maxMismatches The number of mismatches after which counting stops
+     * @return The number of mismatches, or some number above maxMismatches
+     */
+    public int countMismatches(int position, PackedSequence other, int maxMismatches) {
+        int count = 0;
+        for (int i = 0; i < other.length && count <= maxMismatches; i += BASES_PER_WORD) {
+            int word = i / BASES_PER_WORD;
+            long difference = getWord(this.words, position + i) ^ other.words[word];
+            long mismatched = (difference | (difference >>> 1)) & LOW_BITS;
+            if (this.ambiguous != null) {
+                mismatched |= getWord(this.ambiguous, position + i);
+            }
+            if (other.ambiguous != null) {
+                mismatched |= other.ambiguous[word];
+            }
+            int remaining = other.length - i;
+            if (remaining < BASES_PER_WORD) {
+                mismatched &= (1L << (2 * remaining)) - 1;
+            }
+            count += Long.bitCount(mismatched);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the 32 slots starting at any position, spanning two words when
+     * the position is not aligned. The array holds one word more than the
+     * bases need, so the second word always exists
+     */
+    private static long getWord(long[] words, int position) {
+        int word = position / BASES_PER_WORD;
+        int shift = 2 * (position % BASES_PER_WORD);
+        if (shift == 0) {
+            return words[word];
+        }
+        return (words[word] >>> shift) | (words[word + 1] << (64 - shift));
+    }
+
+    /**
+     * Returns a base of the sequence
+     * @param position The position of the base
+     * @return The base's index in "ACGT", or -1 for any other character
+     */
+    public int getBase(int position) {
+        int shift = 2 * (position % BASES_PER_WORD);
+        if (this.ambiguous != null &&
+                ((this.ambiguous[position / BASES_PER_WORD] >>> shift) & 1) != 0) {
+            return -1;
+        }
+        return (int) (this.words[position / BASES_PER_WORD] >>> shift) & 0x3;
+    }
+
+    /**
+     * @return The number of bases
+     */
+    public int length() {
+        return this.length;
+    }
+
+    @Override
+    public String toString() {
+        char[] sequence = new char[this.length];
+        for (int i = 0; i < this.length; i++) {
+            int base = getBase(i);
+            sequence[i] = (base == -1) ? 'N' : BASES.charAt(base);
+        }
+        return String.valueOf(sequence);
+    }
+}
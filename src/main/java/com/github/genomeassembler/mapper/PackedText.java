@@ -0,0 +1,77 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.Map;
+
+/**
+ * The text a BWReadMapper indexes, packed 2 bits per base into longs, 32
+ * bases per long, with the first base in the lowest bits as in
+ * OccurrenceTable. The sequences are concatenated, each character indexed
+ * as the base BWReadMapper.encodeReferenceBase gives it, optionally followed
+ * by the reverse complement of the whole, and the text ends with the end
+ * marker. As a RankedText each base is its index in "ACGT" plus 1, so the
+ * end marker is the only 0.
+ * Positions are longs, so the text may hold up to 2^31 longs of bases, and
+ * costs ~0.25 bytes per base
+ */
+class PackedText implements RankedText {
+    private final static int BASES_PER_WORD = 32;
+
+    private final long[] words;
+    private final long numBases; // Without the end marker
+
+    /**
+     * Packs a genome's sequences
+     * @param sequences The sequences, concatenated in iteration order
+     * @param genomeLength The total length of the sequences
+     * @param bothStrands True to append the reverse complement of the genome
+     */
+    PackedText(Map<String, String> sequences, long genomeLength, boolean bothStrands) {
+        this.numBases = (bothStrands ? 2 : 1) * genomeLength;
+        long numWords = (this.numBases + BASES_PER_WORD - 1) / BASES_PER_WORD;
+        if (numWords >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Genome too long to index: " +
+                    this.numBases + " bp");
+        }
+        this.words = new long[(int) numWords];
+        long position = 0;
+        for (String sequence : sequences.values()) {
+            for (int i = 0; i < sequence.length(); i++, position++) {
+                setBase(position, BWReadMapper.encodeReferenceBase(sequence.charAt(i), position));
+            }
+        }
+        if (bothStrands) {
+            for (long i = 0; i < genomeLength; i++) {
+                setBase(genomeLength + i, 3 - getBase(genomeLength - 1 - i));
+            }
+        }
+    }
+
+    private void setBase(long position, int base) {
+        this.words[(int) (position / BASES_PER_WORD)] |=
+                ((long) base) << (2 * (position % BASES_PER_WORD));
+    }
+
+    /**
+     * @param position The position, less than the number of bases
+     * @return The index in "ACGT" of the base at the position
+     */
+    int getBase(long position) {
+        return (int) (this.words[(int) (position / BASES_PER_WORD)] >>>
+                (2 * (position % BASES_PER_WORD))) & 0x3;
+    }
+
+    @Override
+    public long length() {
+        return this.numBases + 1;
+    }
+
+    @Override
+    public int alphabetSize() {
+        return 5;
+    }
+
+    @Override
+    public int symbolAt(long position) {
+        return (position == this.numBases) ? 0 : getBase(position) + 1;
+    }
+}
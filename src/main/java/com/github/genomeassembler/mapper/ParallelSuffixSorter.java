@@ -0,0 +1,328 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Builds a suffix array on several threads, blockwise, addressing the text
+ * with longs. Suffixes are first bucketed by their first q symbols, which
+ * already places the buckets in their final order, so the buckets can be
+ * sorted independently and the suffix array read off without a merge.
+ * Consecutive buckets are grouped into blocks of about blockSize suffixes;
+ * each block's suffixes are collected by a parallel scan of the text, its
+ * buckets are sorted on a fork-join pool, and its part of the suffix array
+ * is passed on in order. Only one block is held at once, so the full suffix
+ * array never needs to fit in memory.
+ * Each bucket is sorted by multikey quicksort, which costs about the total
+ * length of the prefixes its suffixes share. That is small for most buckets
+ * but quadratic for long exact repeats, so the sort of a bucket gives up
+ * once it has compared WORK_PER_SUFFIX symbols per suffix, and that bucket
+ * alone is sorted again comparing only the first v symbols and breaking the
+ * remaining ties with a DifferenceCoverSample, which is built the first
+ * time a bucket needs it. Its sort costs at most v symbols per suffix, so
+ * from then on every bucket is sorted that way
+ */
+class ParallelSuffixSorter {
+    private final static int MAX_BUCKETS = 1 << 20;
+    private final static int TASKS_PER_THREAD = 8;
+    private final static long WORK_PER_SUFFIX = 256;
+    private final static int MIN_BLOCK_SIZE = 1 << 24;
+    private final static int BLOCKS = 32; // Blocks of a text longer than MIN_BLOCK_SIZE
+    private final static int MAX_BLOCK_SIZE = Integer.MAX_VALUE - 8;
+    private final static long MAX_SEGMENT_LENGTH = 1 << 30; // Keeps bucket counts in ints
+
+    private final RankedText text;
+    private final int threads;
+    private final int blockSize;
+    private final int period;
+    private final boolean[] sampled; // The residues of the sorted positions, or null
+    private final int maxDepth;
+    private final int prefixLength;
+    private final int numBuckets;
+    private final int highestPower; // The weight of a key's first symbol
+    private final long[] segmentStarts; // Parts of the text scanned in parallel, then n
+    private int[][] segmentCounts; // The number of suffixes of each segment per bucket
+    private ForkJoinPool pool;
+    private volatile DifferenceCoverSample cover;
+
+    /**
+     * @param text The text
+     * @param threads The number of worker threads
+     * @param blockSize The preferred number of suffixes sorted at once
+     * @param period The period of the sorted positions
+     * @param sampled Whether the positions with each residue modulo period
+     *                are sorted, or null to sort every position
+     * @param maxDepth The number of leading symbols compared, past which
+     *                 suffixes are left in any order, or Integer.MAX_VALUE
+     *                 to sort the suffixes fully
+     */
+    ParallelSuffixSorter(RankedText text, int threads, int blockSize, int period,
+                         boolean[] sampled, int maxDepth) {
+        this.text = text;
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.period = (sampled == null) ? 1 : period;
+        this.sampled = sampled;
+        this.maxDepth = maxDepth;
+        long n = text.length();
+        int alphabetSize = text.alphabetSize();
+        int prefixLength = 1;
+        long buckets = alphabetSize;
+        while (buckets * alphabetSize <= MAX_BUCKETS && prefixLength < n) {
+            buckets *= alphabetSize;
+            prefixLength++;
+        }
+        this.prefixLength = prefixLength;
+        this.numBuckets = (int) buckets;
+        this.highestPower = (int) (buckets / alphabetSize);
+        long numSegments = Math.min(Math.max(threads,
+                (n + MAX_SEGMENT_LENGTH - 1) / MAX_SEGMENT_LENGTH), Math.max(n, 1));
+        this.segmentStarts = new long[(int) numSegments + 1];
+        for (int s = 0; s <= numSegments; s++) {
+            this.segmentStarts[s] = n / numSegments * s + Math.min(s, n % numSegments);
+        }
+    }
+
+    /**
+     * Sorts the suffixes of a ranked text
+     * @param text The text, ending with a unique 0
+     * @param threads The number of worker threads
+     * @param suffixes Receives the suffix array, one position at a time in
+     *                 sorted order
+     */
+    static void sort(RankedText text, int threads, LongConsumer suffixes) {
+        sort(text, threads, (int) Math.min(Math.max(text.length() / BLOCKS, MIN_BLOCK_SIZE),
+                MAX_BLOCK_SIZE), suffixes);
+    }
+
+    /**
+     * Sorts the suffixes of a ranked text in blocks of some size
+     * @param blockSize The preferred number of suffixes sorted at once
+     */
+    static void sort(RankedText text, int threads, int blockSize, LongConsumer suffixes) {
+        new ParallelSuffixSorter(text, threads, blockSize, 1, null, Integer.MAX_VALUE)
+                .sort(suffixes);
+    }
+
+    /**
+     * Sorts the suffixes of a ranked string held in an int array
+     * @param text The ranked string, ending with a unique 0
+     * @param suffixArray The buffer receiving the suffix array
+     * @param n The length of text
+     * @param alphabetSize The number of distinct ranks
+     * @param threads The number of worker threads
+     */
+    static void sort(int[] text, int[] suffixArray, int n, int alphabetSize, int threads) {
+        int[] next = {0};
+        sort(RankedText.of(text, n, alphabetSize), threads,
+                suffix -> suffixArray[next[0]++] = (int) suffix);
+    }
+
+    /**
+     * Sorts the suffixes, block by block
+     * @param suffixes Receives the sorted positions in order
+     */
+    void sort(LongConsumer suffixes) {
+        if (this.text.length() == 0) {
+            return;
+        }
+        this.pool = new ForkJoinPool(this.threads);
+        try {
+            countBuckets();
+            List<Integer> blockEnds = new ArrayList<>(); // The bucket after each block
+            long size = 0, largest = 0;
+            for (int bucket = 0; bucket < this.numBuckets; bucket++) {
+                long bucketSize = 0;
+                for (int[] counts : this.segmentCounts) {
+                    bucketSize += counts[bucket];
+                }
+                if (size > 0 && size + bucketSize > this.blockSize) {
+                    blockEnds.add(bucket);
+                    size = 0;
+                }
+                size += bucketSize;
+                largest = Math.max(largest, size);
+            }
+            blockEnds.add(this.numBuckets);
+            if (largest > MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException("Too many suffixes share a prefix: " + largest);
+            }
+
+            long[] block = new long[(int) largest];
+            int firstBucket = 0;
+            for (int endBucket : blockEnds) {
+                int[] bucketStarts = collect(block, firstBucket, endBucket);
+                sortBuckets(block, bucketStarts);
+                for (int i = 0; i < bucketStarts[bucketStarts.length - 1]; i++) {
+                    suffixes.accept(block[i]);
+                }
+                firstBucket = endBucket;
+            }
+        } finally {
+            this.pool.shutdown();
+        }
+    }
+
+    /**
+     * Receives the sorted positions of a segment with their bucket keys
+     */
+    private interface KeyConsumer {
+        void accept(long position, int key);
+    }
+
+    /**
+     * Passes every sorted position of a segment with the key of its first q
+     * symbols, counting the symbols past the end as 0
+     */
+    private void scan(int segment, KeyConsumer consumer) {
+        long n = this.text.length();
+        int alphabetSize = this.text.alphabetSize();
+        long start = this.segmentStarts[segment];
+        long end = this.segmentStarts[segment + 1];
+        int key = 0;
+        for (int j = 0; j < this.prefixLength; j++) {
+            key = key * alphabetSize + ((start + j < n) ? this.text.symbolAt(start + j) : 0);
+        }
+        int residue = (int) (start % this.period);
+        for (long i = start; i < end; i++) {
+            if (this.sampled == null || this.sampled[residue]) {
+                consumer.accept(i, key);
+            }
+            long added = i + this.prefixLength;
+            key = (key - this.text.symbolAt(i) * this.highestPower) * alphabetSize +
+                    ((added < n) ? this.text.symbolAt(added) : 0);
+            if (++residue == this.period) {
+                residue = 0;
+            }
+        }
+    }
+
+    private void countBuckets() {
+        this.segmentCounts = new int[this.segmentStarts.length - 1][];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = 0; s < this.segmentCounts.length; s++) {
+            int segment = s;
+            tasks.add(() -> {
+                int[] counts = new int[this.numBuckets];
+                scan(segment, (position, key) -> counts[key]++);
+                this.segmentCounts[segment] = counts;
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Collects the positions of a run of buckets, in bucket order
+     * @param block The buffer receiving the positions
+     * @param firstBucket The first bucket of the run
+     * @param endBucket The end of the run (exclusive)
+     * @return The first index of each bucket in block, followed by the
+     *         number of positions
+     */
+    private int[] collect(long[] block, int firstBucket, int endBucket) {
+        int numSegments = this.segmentCounts.length;
+        int[][] next = new int[numSegments][endBucket - firstBucket];
+        int[] bucketStarts = new int[endBucket - firstBucket + 1];
+        int offset = 0;
+        for (int bucket = firstBucket; bucket < endBucket; bucket++) {
+            bucketStarts[bucket - firstBucket] = offset;
+            for (int s = 0; s < numSegments; s++) { // Segments in text order
+                next[s][bucket - firstBucket] = offset;
+                offset += this.segmentCounts[s][bucket];
+            }
+        }
+        bucketStarts[endBucket - firstBucket] = offset;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = 0; s < numSegments; s++) {
+            int[] segmentNext = next[s];
+            int segment = s;
+            tasks.add(() -> {
+                scan(segment, (position, key) -> {
+                    if (key >= firstBucket && key < endBucket) {
+                        block[segmentNext[key - firstBucket]++] = position;
+                    }
+                });
+                return null;
+            });
+        }
+        runAll(tasks);
+        return bucketStarts;
+    }
+
+    /**
+     * Sorts every bucket of a block, in tasks of about equal size
+     */
+    private void sortBuckets(long[] block, int[] bucketStarts) {
+        int numBlockBuckets = bucketStarts.length - 1;
+        long taskSize = Math.max(bucketStarts[numBlockBuckets] /
+                ((long) this.threads * TASKS_PER_THREAD), 1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int firstBucket = 0;
+        for (int bucket = 0; bucket < numBlockBuckets; bucket++) {
+            if (bucketStarts[bucket + 1] - bucketStarts[firstBucket] >= taskSize ||
+                    bucket == numBlockBuckets - 1) {
+                int from = firstBucket;
+                int to = bucket + 1;
+                tasks.add(() -> {
+                    for (int b = from; b < to; b++) {
+                        sortBucket(block, bucketStarts[b], bucketStarts[b + 1]);
+                    }
+                    return null;
+                });
+                firstBucket = bucket + 1;
+            }
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Sorts a bucket, whose suffixes share their first q symbols. If the
+     * multikey quicksort gives up, the bucket is sorted again with its ties
+     * past the difference cover's period broken by the sample ranks
+     */
+    private void sortBucket(long[] block, int low, int high) {
+        if (high - low < 2) {
+            return;
+        }
+        if (this.maxDepth != Integer.MAX_VALUE) {
+            new MultikeyQuicksort(this.text, block, this.maxDepth, null, Long.MAX_VALUE)
+                    .sort(low, high, this.prefixLength);
+            return;
+        }
+        DifferenceCoverSample cover = this.cover;
+        if (cover == null) {
+            long workLimit = WORK_PER_SUFFIX * (high - low);
+            if (new MultikeyQuicksort(this.text, block, Integer.MAX_VALUE, null, workLimit)
+                    .sort(low, high, this.prefixLength)) {
+                return;
+            }
+            cover = getCover();
+        }
+        new MultikeyQuicksort(this.text, block, cover.getPeriod(), cover, Long.MAX_VALUE)
+                .sort(low, high, this.prefixLength);
+    }
+
+    private synchronized DifferenceCoverSample getCover() {
+        if (this.cover == null) {
+            this.cover = new DifferenceCoverSample(this.text, DifferenceCoverSample.PERIOD,
+                    this.threads, this.blockSize);
+        }
+        return this.cover;
+    }
+
+    private void runAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> result : this.pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Parallel suffix sorting failed", e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.genomeassembler.mapper;
+
+/**
+ * A text whose symbols are ranks, addressed with longs, as sorted by the
+ * ParallelSuffixSorter. Its last symbol is a unique 0, the end marker, and
+ * its other symbols are in [1, alphabetSize)
+ */
+interface RankedText {
+    /**
+     * @return The number of symbols, including the end marker
+     */
+    long length();
+
+    /**
+     * @return The number of distinct ranks, including the end marker
+     */
+    int alphabetSize();
+
+    /**
+     * @param position The position, less than length
+     * @return The rank of the symbol at the position
+     */
+    int symbolAt(long position);
+
+    /**
+     * Wraps a ranked string held in an int array
+     * @param text The ranks, ending with a unique 0
+     * @param n The length of text
+     * @param alphabetSize The number of distinct ranks
+     * @return The text
+     */
+    static RankedText of(int[] text, int n, int alphabetSize) {
+        return new RankedText() {
+            @Override
+            public long length() {
+                return n;
+            }
+
+            @Override
+            public int alphabetSize() {
+                return alphabetSize;
+            }
+
+            @Override
+            public int symbolAt(long position) {
+                return text[(int) position];
+            }
+        };
+    }
+}
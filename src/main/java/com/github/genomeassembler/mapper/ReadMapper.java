@@ -1,5 +1,6 @@
 package com.github.genomeassembler.mapper;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -14,7 +15,126 @@ public interface ReadMapper {
      * @param mismatches The number of tolerant mismatches
      * @return All starting positions in the genome that read occurs
      */
-    List<Integer> mapRead(String read, int mismatches);
+    List<Long> mapRead(String read, int mismatches);
+
+    /**
+     * Maps a read to the genome with the fewest possible mismatches
+     * @param read The read being mapped
+     * @param maxMismatches The largest number of tolerant mismatches
+     * @return The number of mismatches of the best mapping and all starting
+     *         positions in the genome with that many mismatches, or
+     *         MappingStratum.UNMAPPED if no mapping is within maxMismatches
+     */
+    default MappingStratum mapReadBestStratum(String read, int maxMismatches) {
+        for (int mismatches = 0; mismatches <= maxMismatches; mismatches++) {
+            List<Long> positions = mapRead(read, mismatches);
+            if (!positions.isEmpty()) {
+                return new MappingStratum(mismatches, positions);
+            }
+        }
+        return MappingStratum.UNMAPPED;
+    }
+
+    /**
+     * Maps a read given as indices in "ACGT" to the genome with the fewest
+     * possible mismatches. Mappers that cannot stop their search early find
+     * every hit of the best stratum and then apply the policy
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param maxMismatches The largest number of tolerant mismatches
+     * @param policy The policy deciding whether the best stratum is a repeat
+     * @return The best stratum of the read's mappings, as given by
+     *         mapReadBestStratum(String, int), or a repeat stratum if the
+     *         policy says so
+     */
+    default MappingStratum mapReadBestStratum(byte[] bases, int length, int maxMismatches,
+                                              HitPolicy policy) {
+        HitBuffer found = new HitBuffer(1, 16);
+        for (int mismatches = 0; mismatches <= maxMismatches; mismatches++) {
+            found.clear();
+            mapRead(bases, length, mismatches, found);
+            if (policy.isRepeat(found.getNumHits())) {
+                return MappingStratum.repeat(mismatches);
+            } else if (found.getNumHits() > 0) {
+                List<Long> positions = new ArrayList<>();
+                List<Long> reversePositions = new ArrayList<>();
+                for (int i = 0; i < found.getNumHits(); i++) {
+                    (found.isReverse(i) ? reversePositions : positions).add(found.getPosition(i));
+                }
+                return new MappingStratum(mismatches, positions, reversePositions);
+            }
+        }
+        return MappingStratum.UNMAPPED;
+    }
+
+    /**
+     * Maps a read given as indices in "ACGT", appending its starting
+     * positions to a caller-owned buffer as one read
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param mismatches The number of tolerant mismatches
+     * @param hits The buffer receiving the starting positions
+     */
+    default void mapRead(byte[] bases, int length, int mismatches, HitBuffer hits) {
+        char[] read = new char[length];
+        for (int i = 0; i < length; i++) {
+            read[i] = (bases[i] == -1) ? 'N' : "ACGT".charAt(bases[i]);
+        }
+        for (long position : mapRead(String.valueOf(read), mismatches)) {
+            hits.add(position);
+        }
+        hits.endRead();
+    }
+
+    /**
+     * Maps a read given as indices in "ACGT", appending only the starting
+     * positions a hit policy keeps. Mappers that cannot stop their search
+     * early find every hit and then apply the policy
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param mismatches The number of tolerant mismatches
+     * @param policy The hits reported
+     * @param hits The buffer receiving the starting positions, as one read
+     *             that is flagged as a repeat if the policy says so
+     */
+    default void mapRead(byte[] bases, int length, int mismatches, HitPolicy policy,
+                         HitBuffer hits) {
+        HitBuffer found = new HitBuffer(1, 16);
+        int tolerance = (policy.getMode() == HitPolicy.Mode.BEST_STRATUM) ? 0 : mismatches;
+        do {
+            found.clear();
+            mapRead(bases, length, tolerance, found);
+        } while (found.getNumHits() == 0 && tolerance++ < mismatches);
+        if (policy.isRepeat(found.getNumHits())) {
+            hits.markRepeat();
+        } else {
+            int numHits = Math.min(found.getNumHits(), policy.getMaxHits());
+            for (int i = 0; i < numHits; i++) {
+                hits.add(found.getPosition(i), found.isReverse(i));
+            }
+        }
+        hits.endRead();
+    }
+
+    /**
+     * Maps a batch of reads, replacing the contents of a hit buffer with
+     * the starting positions of each read, in batch order
+     * @param reads The reads being mapped
+     * @param mismatches The number of tolerant mismatches
+     * @param hits The buffer receiving the hits
+     */
+    default void mapReads(List<String> reads, int mismatches, HitBuffer hits) {
+        hits.clear();
+        for (String read : reads) {
+            for (long position : mapRead(read, mismatches)) {
+                hits.add(position);
+            }
+            hits.endRead();
+        }
+    }
 
     /**
      * Gets the genome sequence
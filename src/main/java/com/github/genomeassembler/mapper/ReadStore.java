@@ -0,0 +1,328 @@
+package com.github.genomeassembler.mapper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of reads packed 2 bits per base, 32 bases per long, with the first
+ * base in the lowest bits, as in PackedSequence. The reads are stored back
+ * to back in slabs of up to SLAB_WORDS longs, so adding reads never copies
+ * the bases already stored, and read r spans bases
+ * [offsets[r], offsets[r + 1]).
+ * Characters other than A, C, G, and T are stored as an 'A' and read back
+ * as an 'N'. Their positions are kept in increasing order in a sidecar
+ * array, which is only searched for the reads flagged in a bitmask as
+ * holding one.
+ * This costs ~0.25 bytes per base plus 8 bytes per read, where a read held
+ * as a String costs 2 bytes per base plus ~40 bytes
+ */
+public class ReadStore {
+    private final static int SLAB_BITS = 20;
+    private final static int SLAB_WORDS = 1 << SLAB_BITS; // 32M bases
+    private final static int INITIAL_WORDS = 64;
+    private final static int BASES_PER_WORD = 32;
+    private final static String BASES = "ACGT";
+
+    private long[][] slabs;
+    private int numSlabs;
+    private long[] offsets; // The first base of each read, followed by the end
+    private int numReads;
+    private long[] ambiguousReads; // Bitmask of the reads holding another character
+    private long[] ambiguousPositions;
+    private int numAmbiguous;
+
+    public ReadStore() {
+        this.slabs = new long[1][];
+        this.numSlabs = 0;
+        this.offsets = new long[16];
+        this.numReads = 0;
+        this.ambiguousReads = new long[1];
+        this.ambiguousPositions = new long[16];
+        this.numAmbiguous = 0;
+    }
+
+    /**
+     * Packs a list of reads
+     * @param reads The reads
+     * @return The store holding the reads, in list order
+     */
+    public static ReadStore of(List<String> reads) {
+        ReadStore store = new ReadStore();
+        for (String read : reads) {
+            store.add(read);
+        }
+        return store;
+    }
+
+    /**
+     * Appends a read
+     * @param read The read
+     * @return The index of the read
+     */
+    public int add(CharSequence read) {
+        long start = this.offsets[this.numReads];
+        long end = start + read.length();
+        ensureCapacity(end);
+        boolean ambiguous = false;
+        for (int i = 0; i < read.length(); i++) {
+            ambiguous |= setBase(start + i, BWReadMapper.encodeBase(read.charAt(i)));
+        }
+        return endRead(end, ambiguous);
+    }
+
+    /**
+     * Appends a read given as ASCII bytes, packing it straight from the
+     * buffer
+     * @param buffer The buffer holding the read
+     * @param from The index of the read's first byte
+     * @param to The end of the read (exclusive)
+     * @param codes The index in "ACGT" of each ASCII character, or -1 for a
+     *              character stored as an 'N'
+     * @return The index of the read
+     */
+    public int add(ByteBuffer buffer, int from, int to, byte[] codes) {
+        long start = this.offsets[this.numReads];
+        long end = start + (to - from);
+        ensureCapacity(end);
+        boolean ambiguous = false;
+        for (int i = from; i < to; i++) {
+            byte c = buffer.get(i);
+            ambiguous |= setBase(start + i - from, (c < 0) ? -1 : codes[c]);
+        }
+        return endRead(end, ambiguous);
+    }
+
+    /**
+     * Appends a read given as indices in "ACGT", the form returned by
+     * getBases
+     * @param bases The read, where -1 marks a character stored as an 'N'
+     * @param length The length of the read
+     * @return The index of the read
+     */
+    public int add(byte[] bases, int length) {
+        long start = this.offsets[this.numReads];
+        long end = start + length;
+        ensureCapacity(end);
+        boolean ambiguous = false;
+        for (int i = 0; i < length; i++) {
+            ambiguous |= setBase(start + i, bases[i]);
+        }
+        return endRead(end, ambiguous);
+    }
+
+    /**
+     * Appends every read of another store, in order
+     * @param reads The store whose reads are appended
+     */
+    public void addAll(ReadStore reads) {
+        ensureCapacity(getTotalLength() + reads.getTotalLength());
+        ReadStore.Cursor cursor = reads.cursor();
+        while (cursor.next()) {
+            add(cursor.getBases(), cursor.getLength());
+        }
+    }
+
+    /**
+     * Stores a base at a position whose word is still 0
+     * @param base The base's index in "ACGT", or -1 for any other character
+     * @return True if the base is another character
+     */
+    private boolean setBase(long position, int base) {
+        if (base == -1) {
+            addAmbiguousPosition(position);
+            return true;
+        }
+        long word = position / BASES_PER_WORD;
+        this.slabs[(int) (word >>> SLAB_BITS)][(int) (word & (SLAB_WORDS - 1))] |=
+                ((long) base) << (2 * (position % BASES_PER_WORD));
+        return false;
+    }
+
+    /**
+     * Records the end of a read whose bases were stored
+     * @return The index of the read
+     */
+    private int endRead(long end, boolean ambiguous) {
+        if (this.numReads + 1 == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, 2 * this.offsets.length);
+        }
+        if (this.numReads / 64 == this.ambiguousReads.length) {
+            this.ambiguousReads = Arrays.copyOf(this.ambiguousReads,
+                    2 * this.ambiguousReads.length);
+        }
+        if (ambiguous) {
+            this.ambiguousReads[this.numReads / 64] |= 1L << (this.numReads % 64);
+        }
+        this.offsets[++this.numReads] = end;
+        return this.numReads - 1;
+    }
+
+    /**
+     * Makes room for bases up to a position. Only the last slab is ever
+     * grown; every earlier slab is full
+     */
+    private void ensureCapacity(long end) {
+        long words = (end + BASES_PER_WORD - 1) / BASES_PER_WORD;
+        while (true) {
+            long capacity = (this.numSlabs == 0) ? 0 :
+                    (long) (this.numSlabs - 1) * SLAB_WORDS + this.slabs[this.numSlabs - 1].length;
+            if (words <= capacity) {
+                return;
+            }
+            if (this.numSlabs > 0 && this.slabs[this.numSlabs - 1].length < SLAB_WORDS) {
+                long[] last = this.slabs[this.numSlabs - 1];
+                this.slabs[this.numSlabs - 1] = Arrays.copyOf(last,
+                        Math.min(2 * last.length, SLAB_WORDS));
+            } else {
+                if (this.numSlabs == this.slabs.length) {
+                    this.slabs = Arrays.copyOf(this.slabs, 2 * this.slabs.length);
+                }
+                this.slabs[this.numSlabs] =
+                        new long[(this.numSlabs == 0) ? INITIAL_WORDS : SLAB_WORDS];
+                this.numSlabs++;
+            }
+        }
+    }
+
+    private void addAmbiguousPosition(long position) {
+        if (this.numAmbiguous == this.ambiguousPositions.length) {
+            this.ambiguousPositions = Arrays.copyOf(this.ambiguousPositions,
+                    2 * this.ambiguousPositions.length);
+        }
+        this.ambiguousPositions[this.numAmbiguous++] = position;
+    }
+
+    /**
+     * @return The number of reads
+     */
+    public int size() {
+        return this.numReads;
+    }
+
+    /**
+     * @param read The read's index
+     * @return The length of the read
+     */
+    public int getLength(int read) {
+        return (int) (this.offsets[read + 1] - this.offsets[read]);
+    }
+
+    /**
+     * @return The number of bases of every read
+     */
+    public long getTotalLength() {
+        return this.offsets[this.numReads];
+    }
+
+    /**
+     * Unpacks a read into indices in "ACGT", the form taken by the
+     * primitive ReadMapper.mapRead
+     * @param read The read's index
+     * @param bases The array receiving the indices, at least as long as the
+     *              read, where -1 marks a character other than A, C, G, or T
+     * @return bases
+     */
+    public byte[] getBases(int read, byte[] bases) {
+        long start = this.offsets[read];
+        int length = getLength(read);
+        for (int i = 0; i < length; ) {
+            long position = start + i;
+            long word = position / BASES_PER_WORD;
+            long bits = this.slabs[(int) (word >>> SLAB_BITS)][(int) (word & (SLAB_WORDS - 1))];
+            int shift = (int) (position % BASES_PER_WORD);
+            bits >>>= 2 * shift;
+            for (int j = shift; j < BASES_PER_WORD && i < length; j++, i++) {
+                bases[i] = (byte) (bits & 0x3);
+                bits >>>= 2;
+            }
+        }
+        if ((this.ambiguousReads[read / 64] & (1L << (read % 64))) != 0) {
+            int k = Arrays.binarySearch(this.ambiguousPositions, 0, this.numAmbiguous, start);
+            for (k = (k < 0) ? -k - 1 : k; k < this.numAmbiguous &&
+                    this.ambiguousPositions[k] < start + length; k++) {
+                bases[(int) (this.ambiguousPositions[k] - start)] = -1;
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * Unpacks a read into characters
+     * @param read The read's index
+     * @param sequence The array receiving the read, at least as long as the
+     *                 read, where 'N' marks a character other than A, C, G, or T
+     * @return sequence
+     */
+    public char[] getSequence(int read, char[] sequence) {
+        int length = getLength(read);
+        byte[] bases = getBases(read, new byte[length]);
+        for (int i = 0; i < length; i++) {
+            sequence[i] = (bases[i] == -1) ? 'N' : BASES.charAt(bases[i]);
+        }
+        return sequence;
+    }
+
+    /**
+     * @param read The read's index
+     * @return The read as a String
+     */
+    public String get(int read) {
+        return String.valueOf(getSequence(read, new char[getLength(read)]));
+    }
+
+    /**
+     * @return A cursor before the first read
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Visits the reads in order, unpacking each into an array that is
+     * reused across reads
+     */
+    public class Cursor {
+        private int read = -1;
+        private byte[] bases = new byte[0];
+
+        /**
+         * Moves to the next read
+         * @return False if there is no next read
+         */
+        public boolean next() {
+            if (this.read + 1 >= ReadStore.this.numReads) {
+                return false;
+            }
+            this.read++;
+            int length = ReadStore.this.getLength(this.read);
+            if (this.bases.length < length) {
+                this.bases = new byte[Math.max(length, 2 * this.bases.length)];
+            }
+            ReadStore.this.getBases(this.read, this.bases);
+            return true;
+        }
+
+        /**
+         * @return The index of the current read
+         */
+        public int getRead() {
+            return this.read;
+        }
+
+        /**
+         * @return The length of the current read
+         */
+        public int getLength() {
+            return ReadStore.this.getLength(this.read);
+        }
+
+        /**
+         * @return The current read as indices in "ACGT", valid up to
+         *         getLength() and until the cursor moves
+         */
+        public byte[] getBases() {
+            return this.bases;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.genomeassembler.mapper;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Stores the suffix array entries whose genome position is a multiple of the
+ * sampling rate. Sampled rows are marked in a bit vector, and the number of
+ * marked rows before every RANK_INTERVAL rows is stored so that a sampled
+ * row's entry is found with a few popcounts.
+ * Any other row is located by LF-mapping towards the start of the genome
+ * until a sampled row is reached, which takes fewer than samplingRate steps
+ * because position 0 is always sampled.
+ * Samples are stored divided by the sampling rate, so rows and positions
+ * are addressed with longs while each sample still takes an int.
+ * The inverse, the row of every sampled position, is derived from the
+ * samples on first use, costing another 4 / samplingRate bytes per row.
+ * This costs ~(4 / samplingRate + 0.14) bytes per row, or exactly 4 bytes
+ * per row when every row is sampled
+ */
+public class SampledSuffixArray {
+    private final static int BITS_PER_WORD = 64;
+    private final static int WORDS_PER_RANK = 4;
+    private final static int RANK_INTERVAL = BITS_PER_WORD * WORDS_PER_RANK;
+
+    private final int samplingRate;
+    private final LongBuffer sampledRows; // null when every row is sampled
+    private final IntBuffer rankCheckpoints;
+    private final IntBuffer samples; // Sampled positions / rate, in row order
+    private volatile int[] inverseSamples; // Sample rank of each sampled position
+
+    /**
+     * Collects the suffix array one row at a time, in row order
+     */
+    public static class Builder {
+        private final int samplingRate;
+        private final long[] sampledRows;
+        private final int[] rankCheckpoints;
+        private final int[] samples;
+        private long numRows;
+        private int numSamples;
+
+        /**
+         * @param length The number of rows of the suffix array
+         * @param samplingRate Keeps positions that are a multiple of this
+         */
+        public Builder(long length, int samplingRate) {
+            if (samplingRate < 1) {
+                throw new IllegalArgumentException("Invalid sampling rate: " + samplingRate);
+            }
+            long maxSamples = (length - 1) / samplingRate + 1;
+            if (maxSamples >= Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Sampling rate too low for " +
+                        length + " rows: " + samplingRate);
+            }
+            this.samplingRate = samplingRate;
+            if (samplingRate == 1) {
+                this.sampledRows = null;
+                this.rankCheckpoints = null;
+            } else {
+                this.sampledRows = new long[Math.toIntExact(
+                        (length + BITS_PER_WORD - 1) / BITS_PER_WORD)];
+                this.rankCheckpoints = new int[Math.toIntExact(length / RANK_INTERVAL + 1)];
+            }
+            this.samples = new int[(int) maxSamples];
+            this.numRows = 0;
+            this.numSamples = 0;
+        }
+
+        /**
+         * Appends the next row's genome position
+         * @param position The position of the row's suffix
+         * @return This builder
+         */
+        public Builder append(long position) {
+            if (this.sampledRows != null && this.numRows % RANK_INTERVAL == 0) {
+                this.rankCheckpoints[(int) (this.numRows / RANK_INTERVAL)] = this.numSamples;
+            }
+            if (position % this.samplingRate == 0) {
+                if (this.sampledRows != null) {
+                    this.sampledRows[(int) (this.numRows / BITS_PER_WORD)] |=
+                            1L << (this.numRows % BITS_PER_WORD);
+                }
+                this.samples[this.numSamples++] = (int) (position / this.samplingRate);
+            }
+            this.numRows++;
+            return this;
+        }
+
+        public SampledSuffixArray build() {
+            return new SampledSuffixArray(this);
+        }
+    }
+
+    private SampledSuffixArray(Builder builder) {
+        this(builder.samplingRate,
+                builder.sampledRows == null ? null : LongBuffer.wrap(builder.sampledRows),
+                builder.rankCheckpoints == null ? null : IntBuffer.wrap(builder.rankCheckpoints),
+                IntBuffer.wrap(builder.samples));
+    }
+
+    /**
+     * Creates a sampled suffix array over already built data
+     * @param samplingRate The sampling rate
+     * @param sampledRows The bit vector of sampled rows, or null if every
+     *                    row is sampled
+     * @param rankCheckpoints The number of sampled rows before every
+     *                        RANK_INTERVAL rows, or null if every row is sampled
+     * @param samples The sampled positions divided by the sampling rate,
+     *                in row order
+     */
+    SampledSuffixArray(int samplingRate, LongBuffer sampledRows,
+                       IntBuffer rankCheckpoints, IntBuffer samples) {
+        this.samplingRate = samplingRate;
+        this.sampledRows = sampledRows;
+        this.rankCheckpoints = rankCheckpoints;
+        this.samples = samples;
+    }
+
+    /**
+     * Samples a full suffix array
+     * @param suffixArray The suffix array
+     * @param samplingRate Keeps positions that are a multiple of this
+     * @return The sampled suffix array
+     */
+    public static SampledSuffixArray sample(int[] suffixArray, int samplingRate) {
+        Builder builder = new Builder(suffixArray.length, samplingRate);
+        for (int position : suffixArray) {
+            builder.append(position);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Checks whether a row's position is stored
+     * @param row The row
+     * @return True if getPosition can be called on the row
+     */
+    public boolean isSampled(long row) {
+        return this.sampledRows == null ||
+                (this.sampledRows.get((int) (row / BITS_PER_WORD)) &
+                        (1L << (row % BITS_PER_WORD))) != 0;
+    }
+
+    /**
+     * Returns the position of a sampled row's suffix
+     * @param row The row, which must be sampled
+     * @return The position in the genome
+     */
+    public long getPosition(long row) {
+        if (this.sampledRows == null) {
+            return this.samples.get((int) row);
+        }
+        int checkpoint = (int) (row / RANK_INTERVAL);
+        int rank = this.rankCheckpoints.get(checkpoint);
+        int word = checkpoint * WORDS_PER_RANK;
+        for (; word < row / BITS_PER_WORD; word++) {
+            rank += Long.bitCount(this.sampledRows.get(word));
+        }
+        long mask = (1L << (row % BITS_PER_WORD)) - 1;
+        rank += Long.bitCount(this.sampledRows.get(word) & mask);
+        return (long) this.samples.get(rank) * this.samplingRate;
+    }
+
+    /**
+     * Returns the row of a sampled position's suffix
+     * @param position The position, which must be a multiple of the
+     *                 sampling rate
+     * @return The row
+     */
+    public long getRow(long position) {
+        int rank = getInverseSamples()[(int) (position / this.samplingRate)];
+        if (this.sampledRows == null) {
+            return rank;
+        }
+        // The last checkpoint before the rank-th sampled row
+        int low = 0;
+        int high = (int) ((this.sampledRows.limit() * (long) BITS_PER_WORD - 1) / RANK_INTERVAL);
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.rankCheckpoints.get(middle) <= rank) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int remaining = rank - this.rankCheckpoints.get(low);
+        int word = low * WORDS_PER_RANK;
+        while (Long.bitCount(this.sampledRows.get(word)) <= remaining) {
+            remaining -= Long.bitCount(this.sampledRows.get(word++));
+        }
+        long bits = this.sampledRows.get(word);
+        for (int i = 0; i < remaining; i++) {
+            bits &= bits - 1; // Clears the lowest sampled row
+        }
+        return (long) word * BITS_PER_WORD + Long.numberOfTrailingZeros(bits);
+    }
+
+    private int[] getInverseSamples() {
+        int[] inverse = this.inverseSamples;
+        if (inverse == null) {
+            inverse = new int[this.samples.limit()];
+            for (int rank = 0; rank < inverse.length; rank++) {
+                inverse[this.samples.get(rank)] = rank;
+            }
+            this.inverseSamples = inverse;
+        }
+        return inverse;
+    }
+
+    /**
+     * @return The sampling rate
+     */
+    public int getSamplingRate() {
+        return this.samplingRate;
+    }
+
+    LongBuffer getSampledRows() {
+        return this.sampledRows;
+    }
+
+    IntBuffer getRankCheckpoints() {
+        return this.rankCheckpoints;
+    }
+
+    IntBuffer getSamples() {
+        return this.samples;
+    }
+}
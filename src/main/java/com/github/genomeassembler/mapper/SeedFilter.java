@@ -0,0 +1,65 @@
+package com.github.genomeassembler.mapper;
+
+/**
+ * Rejects reads that cannot map with a given number of mismatches before
+ * they are searched. A read is split into mismatches + 1 seeds, and by the
+ * pigeonhole principle any mapping with at most that many mismatches
+ * matches one of the seeds exactly. If no seed of the read or of its
+ * reverse complement occurs in the genome, neither can map.
+ * Checking a seed is a backward search that never locates a row, so a
+ * rejected read costs a few short exact searches instead of a full
+ * mismatch search. The filter never rejects a read that maps, but may pass
+ * one that does not, and a read that passes still pays for the full search.
+ * Since the search's own pruning already cuts most unmappable reads short,
+ * the filter only pays off when few reads map, and is off by default
+ */
+public class SeedFilter {
+    private final BWReadMapper mapper;
+    private final ThreadLocal<byte[]> bases = ThreadLocal.withInitial(() -> new byte[0]);
+
+    /**
+     * @param mapper The read mapper whose index the seeds are searched in
+     */
+    public SeedFilter(BWReadMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Checks whether a read or its reverse complement may map
+     * @param read The read
+     * @param mismatches The number of tolerant mismatches
+     * @return False if neither can map with that many mismatches
+     */
+    public boolean mayMap(String read, int mismatches) {
+        byte[] bases = this.bases.get();
+        if (bases.length < read.length()) {
+            bases = new byte[read.length()];
+            this.bases.set(bases);
+        }
+        return mayMap(BWReadMapper.encodeRead(read, bases), read.length(), mismatches);
+    }
+
+    /**
+     * Checks whether a read or its reverse complement may map
+     * @param bases The read, as indices in "ACGT" with -1 for any other
+     *              character
+     * @param length The length of the read
+     * @param mismatches The number of tolerant mismatches
+     * @return False if neither can map with that many mismatches
+     */
+    public boolean mayMap(byte[] bases, int length, int mismatches) {
+        int seeds = mismatches + 1;
+        for (int i = 0; i < seeds; i++) {
+            int start = (int) ((long) i * length / seeds);
+            int end = (int) ((long) (i + 1) * length / seeds);
+            if (this.mapper.occurs(bases, start, end, false)) {
+                return true;
+            }
+            // A both-strand index already holds the complement of every seed
+            if (!this.mapper.isBothStrands() && this.mapper.occurs(bases, start, end, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
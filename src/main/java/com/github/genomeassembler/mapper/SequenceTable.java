@@ -0,0 +1,219 @@
+package com.github.genomeassembler.mapper;
+
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ * Records where each sequence of a multi-sequence reference starts once the
+ * sequences are concatenated, turning global positions into a sequence and
+ * an offset within it.
+ * It also records the gaps of the reference: the runs of characters other
+ * than A, C, G, or T in either case, such as N's, which the index holds as
+ * stand-in bases
+ */
+public class SequenceTable {
+    private final String[] names;
+    private final long[] starts; // One extra entry holding the total length
+    private final long[] gapStarts; // Sorted global positions
+    private final long[] gapEnds; // Exclusive
+
+    /**
+     * @param names The name of each sequence, in concatenation order
+     * @param lengths The length of each sequence
+     */
+    public SequenceTable(String[] names, long[] lengths) {
+        this(names, lengths, new long[0], new long[0]);
+    }
+
+    /**
+     * @param names The name of each sequence, in concatenation order
+     * @param lengths The length of each sequence
+     * @param gapStarts The global start of each gap, in increasing order
+     * @param gapEnds The global end of each gap (exclusive)
+     */
+    public SequenceTable(String[] names, long[] lengths, long[] gapStarts, long[] gapEnds) {
+        if (names.length != lengths.length) {
+            throw new IllegalArgumentException("Expected a length for each sequence");
+        }
+        if (gapStarts.length != gapEnds.length) {
+            throw new IllegalArgumentException("Expected an end for each gap");
+        }
+        this.names = names.clone();
+        this.starts = new long[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            this.starts[i + 1] = this.starts[i] + lengths[i];
+        }
+        for (int i = 0; i < gapStarts.length; i++) {
+            if (gapStarts[i] >= gapEnds[i] || (i > 0 && gapStarts[i] < gapEnds[i - 1]) ||
+                    gapStarts[i] < 0 || gapEnds[i] > getTotalLength()) {
+                throw new IllegalArgumentException("Invalid gap: [" + gapStarts[i] +
+                        ", " + gapEnds[i] + ")");
+            }
+        }
+        this.gapStarts = gapStarts.clone();
+        this.gapEnds = gapEnds.clone();
+    }
+
+    /**
+     * Creates the table of sequences concatenated in iteration order
+     * @param sequences The sequences, mapped from their names
+     * @return The table
+     */
+    public static SequenceTable of(Map<String, String> sequences) {
+        String[] names = new String[sequences.size()];
+        long[] lengths = new long[sequences.size()];
+        long[] gapStarts = new long[0];
+        long[] gapEnds = new long[0];
+        int numGaps = 0;
+        long position = 0;
+        int i = 0;
+        for (Map.Entry<String, String> sequence : sequences.entrySet()) {
+            names[i] = sequence.getKey();
+            String bases = sequence.getValue();
+            lengths[i] = bases.length();
+            for (int j = 0; j < bases.length(); j++, position++) {
+                if (!isAmbiguous(bases.charAt(j))) {
+                    continue;
+                }
+                if (numGaps > 0 && gapEnds[numGaps - 1] == position) { // Extends the last gap
+                    gapEnds[numGaps - 1]++;
+                    continue;
+                }
+                if (numGaps == gapStarts.length) {
+                    gapStarts = Arrays.copyOf(gapStarts, Math.max(2 * numGaps, 16));
+                    gapEnds = Arrays.copyOf(gapEnds, gapStarts.length);
+                }
+                gapStarts[numGaps] = position;
+                gapEnds[numGaps++] = position + 1;
+            }
+            i++;
+        }
+        return new SequenceTable(names, lengths, Arrays.copyOf(gapStarts, numGaps),
+                Arrays.copyOf(gapEnds, numGaps));
+    }
+
+    /**
+     * Checks whether a reference character is something other than a base
+     * @param c The character
+     * @return True unless c is an A, C, G, or T in either case
+     */
+    public static boolean isAmbiguous(char c) {
+        return BWReadMapper.encodeBase(Character.toUpperCase(c)) == -1;
+    }
+
+    /**
+     * Finds the sequence containing a global position
+     * @param position The global position
+     * @return The index of the sequence
+     */
+    public int getSequenceIndex(long position) {
+        if (position < 0 || position >= getTotalLength()) {
+            throw new IndexOutOfBoundsException("Position out of range: " + position);
+        }
+        int index = Arrays.binarySearch(this.starts, position);
+        if (index < 0) {
+            index = -index - 2; // The last start before position
+        }
+        while (this.starts[index + 1] <= position) { // Skips empty sequences
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the offset of a global position within its sequence
+     * @param position The global position
+     * @return The offset
+     */
+    public long getOffset(long position) {
+        return position - this.starts[getSequenceIndex(position)];
+    }
+
+    /**
+     * Checks whether a stretch of the reference lies within one sequence
+     * and holds only bases
+     * @param position The global position of the stretch's start
+     * @param length The length of the stretch
+     * @return True if the stretch neither crosses a boundary between
+     *         sequences nor overlaps a gap
+     */
+    public boolean contains(long position, int length) {
+        int index = getSequenceIndex(position);
+        return position + length <= this.starts[index + 1] &&
+                !overlapsGap(position, position + length);
+    }
+
+    /**
+     * Checks whether a stretch of the reference overlaps a gap
+     * @param start The global position of the stretch's start
+     * @param end The end of the stretch (exclusive)
+     * @return True if a gap starts before end and ends after start
+     */
+    public boolean overlapsGap(long start, long end) {
+        int gap = getFirstGapEndingAfter(start);
+        return gap < this.gapStarts.length && this.gapStarts[gap] < end;
+    }
+
+    /**
+     * @return The index of the first gap ending after a position, or the
+     *         number of gaps
+     */
+    public int getFirstGapEndingAfter(long position) {
+        int gap = Arrays.binarySearch(this.gapEnds, position);
+        return (gap < 0) ? -gap - 1 : gap + 1;
+    }
+
+    public int getNumSequences() {
+        return this.names.length;
+    }
+
+    public String getName(int index) {
+        return this.names[index];
+    }
+
+    public long getStart(int index) {
+        return this.starts[index];
+    }
+
+    public long getLength(int index) {
+        return this.starts[index + 1] - this.starts[index];
+    }
+
+    public long getTotalLength() {
+        return this.starts[this.starts.length - 1];
+    }
+
+    public int getNumGaps() {
+        return this.gapStarts.length;
+    }
+
+    public long getGapStart(int gap) {
+        return this.gapStarts[gap];
+    }
+
+    public long getGapEnd(int gap) {
+        return this.gapEnds[gap];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SequenceTable)) {
+            return false;
+        }
+        SequenceTable other = (SequenceTable) o;
+        return Arrays.equals(this.names, other.names) &&
+                Arrays.equals(this.starts, other.starts) &&
+                Arrays.equals(this.gapStarts, other.gapStarts) &&
+                Arrays.equals(this.gapEnds, other.gapEnds);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(this.names) + Arrays.hashCode(this.starts)) +
+                Arrays.hashCode(this.gapStarts);
+    }
+}
@@ -0,0 +1,354 @@
+package com.github.genomeassembler.parser;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Scans the lines of a gzip-compressed file as bytes, without writing the
+ * decompressed file to disk.
+ * A BGZF file, as written by bgzip and samtools, is a series of gzip
+ * members of at most 64 KB, each giving its own size in a "BC" extra
+ * field. Its blocks are found from their headers alone, inflated in
+ * batches on a thread pool, and scanned in file order, with a bounded
+ * number of batches in flight.
+ * Any other gzip file can only be inflated from its start, so it is
+ * inflated on a single thread that reads ahead of the thread scanning
+ * the lines
+ */
+class CompressedLines {
+    private final static int HEADER_LENGTH = 12; // Up to and including XLEN
+    private final static int TRAILER_LENGTH = 8; // CRC32 and ISIZE
+    private final static int FEXTRA = 0x04;
+    private final static int BLOCKS_PER_TASK = 64; // ~4 MB of decompressed text
+    private final static int TASKS_PER_THREAD = 2;
+    private final static int CHUNK_SIZE = 1 << 20;
+    private final static int READ_AHEAD_CHUNKS = 4;
+
+    /**
+     * Checks whether a file is gzip-compressed
+     * @param path The path of the file
+     * @return True if the file starts with the gzip magic number
+     */
+    static boolean isGzip(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            byte[] magic = new byte[2];
+            return read(channel, 0, magic, 2) == 2 &&
+                    (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+        }
+    }
+
+    /**
+     * Passes every line of a gzip-compressed file to a consumer, in file order
+     * @param path The path of the file
+     * @param threads The number of threads inflating a BGZF file
+     * @param consumer Receives the lines
+     */
+    static void forEachLine(Path path, int threads, MappedLines.LineConsumer consumer)
+            throws IOException {
+        LineSplitter lines = new LineSplitter(consumer);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (getBlockSize(channel, 0) > 0) {
+                forEachBgzfChunk(channel, Math.max(threads, 1), lines);
+            } else {
+                forEachGzipChunk(path, lines);
+            }
+        }
+        lines.finish();
+    }
+
+    /**
+     * Inflates the blocks of a BGZF file on a thread pool, passing the
+     * decompressed batches to the splitter in file order
+     */
+    private static void forEachBgzfChunk(FileChannel channel, int threads, LineSplitter lines)
+            throws IOException {
+        long size = channel.size();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<byte[]>> batches = new ArrayDeque<>();
+        try {
+            long position = 0;
+            while (position < size || !batches.isEmpty()) {
+                while (position < size && batches.size() < threads * TASKS_PER_THREAD) {
+                    long from = position;
+                    for (int b = 0; b < BLOCKS_PER_TASK && position < size; b++) {
+                        int blockSize = getBlockSize(channel, position);
+                        if (blockSize <= 0) {
+                            throw new IOException("Invalid BGZF block at byte " + position);
+                        }
+                        position += blockSize;
+                    }
+                    long to = Math.min(position, size);
+                    batches.add(executor.submit(() -> inflateBlocks(channel, from, to)));
+                }
+                byte[] batch = batches.remove().get();
+                lines.accept(batch, batch.length);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Parallel BGZF decompression failed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Parallel BGZF decompression failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Inflates a run of whole BGZF blocks
+     * @param from The first byte of the first block
+     * @param to The end of the last block
+     * @return The decompressed bytes of the blocks
+     */
+    private static byte[] inflateBlocks(FileChannel channel, long from, long to)
+            throws IOException {
+        byte[] compressed = new byte[(int) (to - from)];
+        if (read(channel, from, compressed, compressed.length) != compressed.length) {
+            throw new IOException("Truncated BGZF block at byte " + from);
+        }
+        int decompressedLength = 0;
+        for (int offset = 0; offset < compressed.length; ) {
+            int blockSize = getBlockSize(compressed, offset);
+            decompressedLength += getInt(compressed, offset + blockSize - 4); // ISIZE
+            offset += blockSize;
+        }
+        byte[] decompressed = new byte[decompressedLength];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int outOffset = 0;
+            for (int offset = 0; offset < compressed.length; ) {
+                int blockSize = getBlockSize(compressed, offset);
+                int dataStart = offset + HEADER_LENGTH + getShort(compressed, offset + 10);
+                int trailer = offset + blockSize - TRAILER_LENGTH;
+                int blockLength = getInt(compressed, trailer + 4);
+                inflater.reset();
+                inflater.setInput(compressed, dataStart, trailer - dataStart);
+                for (int inflated = 0; inflated < blockLength; ) {
+                    int n = inflater.inflate(decompressed, outOffset + inflated,
+                            blockLength - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated BGZF block at byte " + (from + offset));
+                    }
+                    inflated += n;
+                }
+                crc.reset();
+                crc.update(decompressed, outOffset, blockLength);
+                if ((int) crc.getValue() != getInt(compressed, trailer)) {
+                    throw new IOException("CRC mismatch in BGZF block at byte " + (from + offset));
+                }
+                outOffset += blockLength;
+                offset += blockSize;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block after byte " + from, e);
+        } finally {
+            inflater.end();
+        }
+        return decompressed;
+    }
+
+    /**
+     * Inflates a gzip file on a reader thread, which fills up to
+     * READ_AHEAD_CHUNKS chunks ahead of the splitter. The reader is a daemon
+     * thread, and only hands over the end marker when it stops by itself,
+     * so a splitter that stops taking chunks never leaves it blocked on the
+     * full queue
+     */
+    private static void forEachGzipChunk(Path path, LineSplitter lines) throws IOException {
+        byte[] end = new byte[0];
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(READ_AHEAD_CHUNKS);
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "gzip-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Future<Void> reader = executor.submit(() -> {
+            try (InputStream in = new GZIPInputStream(new BufferedInputStream(
+                    Files.newInputStream(path), CHUNK_SIZE), CHUNK_SIZE)) {
+                while (true) {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int length = 0;
+                    int read;
+                    while (length < CHUNK_SIZE &&
+                            (read = in.read(chunk, length, CHUNK_SIZE - length)) > 0) {
+                        length += read;
+                    }
+                    if (length == 0) {
+                        break;
+                    }
+                    chunks.put((length == CHUNK_SIZE) ? chunk : Arrays.copyOf(chunk, length));
+                }
+            } catch (IOException | RuntimeException e) {
+                chunks.put(end); // The splitter then finds the failure in the future
+                throw e;
+            }
+            chunks.put(end);
+            return null;
+        });
+        try {
+            for (byte[] chunk = chunks.take(); chunk != end; chunk = chunks.take()) {
+                lines.accept(chunk, chunk.length);
+            }
+            reader.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Gzip decompression failed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Gzip decompression failed", e);
+        } finally {
+            executor.shutdownNow();
+            chunks.clear(); // Frees a reader still blocked on the full queue
+        }
+    }
+
+    /**
+     * Reads the size of a BGZF block from its header
+     * @param channel The file
+     * @param position The first byte of the block
+     * @return The size of the whole block, or -1 if it is not a BGZF block
+     */
+    private static int getBlockSize(FileChannel channel, long position) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (read(channel, position, header, HEADER_LENGTH) != HEADER_LENGTH ||
+                (header[3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int extraLength = getShort(header, 10);
+        header = Arrays.copyOf(header, HEADER_LENGTH + extraLength);
+        if (read(channel, position + HEADER_LENGTH, ByteBuffer.wrap(header,
+                HEADER_LENGTH, extraLength)) != extraLength) {
+            return -1;
+        }
+        return getBlockSize(header, 0);
+    }
+
+    /**
+     * Reads the size of a BGZF block from the "BC" field of its header
+     * @param bytes The bytes holding the header
+     * @param offset The first byte of the block
+     * @return The size of the whole block, or -1 if it is not a BGZF block
+     */
+    private static int getBlockSize(byte[] bytes, int offset) {
+        if ((bytes[offset] & 0xff) != 0x1f || (bytes[offset + 1] & 0xff) != 0x8b ||
+                (bytes[offset + 3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int extraEnd = offset + HEADER_LENGTH + getShort(bytes, offset + 10);
+        for (int field = offset + HEADER_LENGTH; field + 4 <= extraEnd; ) {
+            int fieldLength = getShort(bytes, field + 2);
+            if (bytes[field] == 'B' && bytes[field + 1] == 'C' && fieldLength == 2) {
+                return getShort(bytes, field + 4) + 1;
+            }
+            field += 4 + fieldLength;
+        }
+        return -1;
+    }
+
+    private static int getShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+    }
+
+    private static int read(FileChannel channel, long position, byte[] bytes, int length)
+            throws IOException {
+        return read(channel, position, ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    /**
+     * Fills a buffer from a position of a file
+     * @return The number of bytes read, less than the buffer's remaining
+     *         bytes only at the end of the file
+     */
+    private static int read(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Cuts decompressed chunks into lines, copying aside only the line cut
+     * by the end of a chunk
+     */
+    private static class LineSplitter {
+        private final MappedLines.LineConsumer consumer;
+        private byte[] carry = new byte[1024];
+        private int carryLength = 0;
+
+        private LineSplitter(MappedLines.LineConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        private void accept(byte[] chunk, int length) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] == '\n') {
+                    if (this.carryLength > 0) {
+                        append(chunk, start, i);
+                        flush();
+                    } else {
+                        this.consumer.accept(buffer, start,
+                                MappedLines.trimCarriageReturn(buffer, start, i));
+                    }
+                    start = i + 1;
+                }
+            }
+            append(chunk, start, length);
+        }
+
+        private void finish() {
+            if (this.carryLength > 0) {
+                flush();
+            }
+        }
+
+        private void append(byte[] chunk, int from, int to) {
+            if (this.carry.length - this.carryLength < to - from) {
+                this.carry = Arrays.copyOf(this.carry,
+                        Math.max(2 * this.carry.length, this.carryLength + to - from));
+            }
+            System.arraycopy(chunk, from, this.carry, this.carryLength, to - from);
+            this.carryLength += to - from;
+        }
+
+        private void flush() {
+            ByteBuffer buffer = ByteBuffer.wrap(this.carry);
+            this.consumer.accept(buffer, 0,
+                    MappedLines.trimCarriageReturn(buffer, 0, this.carryLength));
+            this.carryLength = 0;
+        }
+    }
+}
@@ -1,37 +1,164 @@
 package com.github.genomeassembler.parser;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Class containing methods used to parse genome files
  */
 public class FastaParser {
+    // Name of a sequence that is not preceded by a '>' header
+    private final static String DEFAULT_RECORD_NAME = "genome";
+    // Line of a GFF file after which the FASTA records start
+    private final static String FASTA_MARKER = "##FASTA";
+    // The character each byte of a sequence line is stored as
+    private final static byte[] BASE_CHARS = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CHARS, (byte) 'N');
+        for (char base : "ACGT".toCharArray()) {
+            BASE_CHARS[base] = (byte) base;
+            BASE_CHARS[Character.toLowerCase(base)] = (byte) base;
+        }
+    }
+
+    /**
+     * Parses a GFF file's sequences into one genome sequence
+     * @param path The path of the file
+     * @return Every sequence, concatenated in file order
+     */
     public static String parseGffFile(String path) {
-        int iteration = 0;
-        boolean atSequence = false;
         StringBuilder genome = new StringBuilder();
-        try (BufferedReader br = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
-            for (String line = br.readLine(); line != null; line = br.readLine()) {
-                if (iteration % 1000000 == 0) {
-                    System.out.println(iteration);
-                }
-                iteration++;
-                if (atSequence) {
-                    genome.append(line.replaceAll("\\s", ""));
-                } else if (line.substring(0, 7).equals("##FASTA")){
-                    // Waits until it reaches fasta sequence
-                    br.readLine(); // Skip next line
-                    atSequence = true;
-                }
-            }
+        for (String sequence : parseGffRecords(path).values()) {
+            genome.append(sequence);
+        }
+        return genome.toString();
+    }
+
+    /**
+     * Parses the FASTA records of a file. Records follow the "##FASTA" line
+     * of a GFF file, or make up the whole file for a plain FASTA file.
+     * Soft-masked (lowercase) bases are uppercased, and any character other
+     * than a base, such as an IUPAC ambiguity code, becomes an N
+     * @param path The path of the file
+     * @return The sequences mapped from their names, in file order
+     */
+    public static Map<String, String> parseGffRecords(String path) {
+        try {
+            return parseGffRecords(Paths.get(path), MappedLines.WINDOW_SIZE);
         } catch (IOException e) {
             System.out.println("Error with reading file");
             e.printStackTrace();
+            return new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Parses the FASTA records of a file at the byte level, through
+     * memory-mapped windows, or decompressed in memory if the file is
+     * gzipped. Sequence lines are copied into a byte array without their
+     * whitespace, and each sequence becomes a String only once it is complete
+     * @param path The path of the file
+     * @param windowSize The largest number of bytes mapped at once
+     * @return The sequences mapped from their names, in file order
+     */
+    static Map<String, String> parseGffRecords(Path path, int windowSize) throws IOException {
+        Map<String, String> records = new LinkedHashMap<>();
+        RecordState state = new RecordState();
+        MappedLines.LineConsumer parser = (buffer, start, end) -> {
+            if (end > start && buffer.get(start) == '>') { // Header of the next record
+                addRecord(records, state.name, state);
+                state.name = getRecordName(decode(buffer, start, end));
+                state.length = 0;
+                state.atSequence = true;
+            } else if (state.atSequence) {
+                state.append(buffer, start, end);
+            } else if (startsWith(buffer, start, end, FASTA_MARKER)) {
+                // Waits until it reaches fasta sequence
+                state.atSequence = true;
+            }
+        };
+        if (CompressedLines.isGzip(path)) {
+            CompressedLines.forEachLine(path, 1, parser);
+        } else {
+            MappedLines.forEachLine(path, windowSize, parser);
+        }
+        addRecord(records, state.name, state);
+        return records;
+    }
+
+    private static void addRecord(Map<String, String> records, String name,
+                                  RecordState sequence) {
+        if (sequence.length == 0) {
+            return;
+        }
+        if (records.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate sequence name: " + name);
+        }
+        records.put(name, new String(sequence.bases, 0, sequence.length,
+                StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] line = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            line[i - start] = buffer.get(i);
+        }
+        return new String(line, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the name of a record, the first word of its header
+     * @param header The header line, starting with '>'
+     * @return The name
+     */
+    private static String getRecordName(String header) {
+        String[] words = header.substring(1).trim().split("\\s+", 2);
+        return words[0].isEmpty() ? DEFAULT_RECORD_NAME : words[0];
+    }
+
+    /**
+     * The record being parsed, whose sequence grows in a byte array
+     */
+    private static class RecordState {
+        private String name = DEFAULT_RECORD_NAME;
+        private boolean atSequence = false;
+        private byte[] bases = new byte[1024];
+        private int length = 0;
+
+        /**
+         * Appends a sequence line, skipping its whitespace, uppercasing its
+         * bases and turning its other characters into N's
+         */
+        private void append(ByteBuffer buffer, int start, int end) {
+            if (this.bases.length - this.length < end - start) {
+                this.bases = Arrays.copyOf(this.bases,
+                        Math.max(2 * this.bases.length, this.length + end - start));
+            }
+            for (int i = start; i < end; i++) {
+                byte c = buffer.get(i);
+                if (c > ' ') {
+                    this.bases[this.length++] = BASE_CHARS[c & 0xFF];
+                }
+            }
         }
-        return genome.toString();
     }
 }
@@ -1,16 +1,51 @@
 package com.github.genomeassembler.parser;
 
+import com.github.genomeassembler.mapper.BWReadMapper;
+import com.github.genomeassembler.mapper.ReadStore;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+/**
+ * Parses FASTQ files at the byte level. Each record is a '@' header line,
+ * a sequence line, a '+' line, and a quality line. The file is scanned
+ * through memory-mapped windows, or decompressed in memory if it is
+ * gzipped, and every sequence is packed straight into a read store, with
+ * an 'N' read as a 'G'
+ */
 public class FastqParser {
+    private final static int HEADER_LINE = 0;
+    private final static int SEQUENCE_LINE = 1;
+    private final static int LINES_PER_RECORD = 4;
+    private final static int RESYNC_BUFFER_SIZE = 1 << 12;
+    private final static long BATCH_RANGE_SIZE = 1 << 26; // Bytes parsed into batches at once
+    private final static int RANGES_PER_THREAD = 2; // Ranges parsed ahead of the batches passed on
 
+    // The index in "ACGT" of every ASCII character, where an 'N' is a 'G'
+    private final static byte[] BASE_CODES = new byte[128];
+
+    static {
+        for (char c = 0; c < BASE_CODES.length; c++) {
+            BASE_CODES[c] = BWReadMapper.encodeBase(c);
+        }
+        BASE_CODES['N'] = BWReadMapper.encodeBase('G');
+    }
 
     /**
      * Parses a fastq file for all reads
@@ -18,18 +53,298 @@ public class FastqParser {
      * @return A list of all reads
      */
     public static List<String> getReads(String path) throws IOException {
-        List<String> reads = new ArrayList<>();
-        BufferedReader br = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
-        boolean nextHasRead = false;
-        String line;
-        for (line = br.readLine(); line != null; line = br.readLine()) {
-            if (line.charAt(0) != '@' && nextHasRead) {
-                reads.add(line.replaceAll("N", "G"));
-                nextHasRead = false;
-            } else if (line.charAt(0) == '@') {
-                nextHasRead = true;
+        ReadStore store = getReads(path, new ReadStore());
+        List<String> reads = new ArrayList<>(store.size());
+        for (int r = 0; r < store.size(); r++) {
+            reads.add(store.get(r));
+        }
+        return reads;
+    }
+
+    /**
+     * Parses a fastq file's reads into a read store, packing each read
+     * without building a String
+     * @param path The file path
+     * @param reads The store the reads are appended to
+     * @return reads
+     */
+    public static ReadStore getReads(String path, ReadStore reads) throws IOException {
+        return getReads(path, reads, 1);
+    }
+
+    /**
+     * Parses a fastq file's reads into a read store on several threads. The
+     * reads are appended in file order, whatever the number of threads
+     * @param path The file path
+     * @param reads The store the reads are appended to
+     * @param threads The number of threads parsing the file
+     * @return reads
+     */
+    public static ReadStore getReads(String path, ReadStore reads, int threads)
+            throws IOException {
+        return getReads(Paths.get(path), reads, MappedLines.WINDOW_SIZE, threads);
+    }
+
+    /**
+     * Parses a fastq file's reads in batches, passing each batch on as soon
+     * as it is full, so the reads can be used while the rest of the file is
+     * parsed. On several threads, a plain file is split into byte ranges
+     * that are parsed into batches in parallel, a few ranges ahead of the
+     * batches passed on, and a gzipped file is scanned in order while the
+     * threads inflate its blocks if it is BGZF-compressed
+     * @param path The file path
+     * @param batchSize The most reads in a batch. On one thread, every
+     *                  batch but the last is full; on several, every batch
+     *                  but the last of each range
+     * @param threads The number of threads parsing the file
+     * @param batches Receives the batches, in file order
+     */
+    public static void getReadBatches(String path, int batchSize, int threads,
+                                      Consumer<ReadStore> batches) throws IOException {
+        getReadBatches(Paths.get(path), MappedLines.WINDOW_SIZE, BATCH_RANGE_SIZE,
+                batchSize, threads, batches);
+    }
+
+    /**
+     * Parses a fastq file's reads in batches
+     * @param windowSize The largest number of bytes mapped at once
+     * @param rangeSize The number of bytes of a plain file parsed by one
+     *                  thread at once
+     */
+    static void getReadBatches(Path path, int windowSize, long rangeSize, int batchSize,
+                               int threads, Consumer<ReadStore> batches) throws IOException {
+        if (CompressedLines.isGzip(path)) {
+            ReadStore[] batch = {new ReadStore()};
+            CompressedLines.forEachLine(path, threads, batchParser(batch, batchSize, batches));
+            if (batch[0].size() > 0) {
+                batches.accept(batch[0]);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (threads <= 1) {
+                for (ReadStore batch : parseBatches(channel, 0, size, windowSize, batchSize)) {
+                    batches.accept(batch);
+                }
+                return;
+            }
+            long numRanges = Math.max(threads, (size + rangeSize - 1) / rangeSize);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            Deque<Future<List<ReadStore>>> parsing = new ArrayDeque<>();
+            try {
+                long from = 0;
+                for (long range = 0; range < numRanges || !parsing.isEmpty(); ) {
+                    // Ranges are moved forward to record starts as in getReads
+                    while (range < numRanges && parsing.size() < RANGES_PER_THREAD * threads) {
+                        range++;
+                        long to = (range == numRanges) ? size : Math.max(from,
+                                findRecordStart(channel, range * size / numRanges));
+                        long start = from;
+                        parsing.add(pool.submit(() ->
+                                parseBatches(channel, start, to, windowSize, batchSize)));
+                        from = to;
+                    }
+                    for (ReadStore batch : parsing.poll().get()) {
+                        batches.accept(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Parallel fastq parsing failed", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Parallel fastq parsing failed", e);
+            } finally {
+                pool.shutdownNow();
             }
         }
+    }
+
+    /**
+     * Parses the records of a byte range of a fastq file in batches
+     * @param from The first byte of the range, which starts a line
+     * @param to The end of the range, which starts a record or ends the file
+     * @return The batches, each full but the last
+     */
+    private static List<ReadStore> parseBatches(FileChannel channel, long from, long to,
+                                                int windowSize, int batchSize)
+            throws IOException {
+        List<ReadStore> batches = new ArrayList<>();
+        ReadStore[] batch = {new ReadStore()};
+        MappedLines.forEachLine(channel, from, to, windowSize,
+                batchParser(batch, batchSize, batches::add));
+        if (batch[0].size() > 0) {
+            batches.add(batch[0]);
+        }
+        return batches;
+    }
+
+    /**
+     * Makes a consumer of the lines of consecutive records, which packs the
+     * reads into batches, passing each batch on once it is full
+     * @param batch Holds the batch being filled, which the caller passes on
+     *              after the last line if it is not empty
+     * @param batchSize The number of reads in a full batch
+     * @param batches Receives the full batches
+     * @return The consumer
+     */
+    private static MappedLines.LineConsumer batchParser(ReadStore[] batch, int batchSize,
+                                                        Consumer<ReadStore> batches) {
+        MappedLines.LineConsumer records = recordParser(() -> batch[0]);
+        return (buffer, start, end) -> {
+            records.accept(buffer, start, end);
+            if (batch[0].size() == batchSize) {
+                batches.accept(batch[0]);
+                batch[0] = new ReadStore();
+            }
+        };
+    }
+
+    /**
+     * Parses a fastq file's reads into a read store
+     * @param windowSize The largest number of bytes mapped at once
+     */
+    static ReadStore getReads(Path path, ReadStore reads, int windowSize) throws IOException {
+        return getReads(path, reads, windowSize, 1);
+    }
+
+    /**
+     * Parses a fastq file's reads into a read store, splitting the file into
+     * one byte range per thread. Each range is moved forward to the first
+     * record header at or after its start, so every record is parsed by
+     * exactly one thread, into a store of its own. The stores are then
+     * appended in range order.
+     * A gzipped file is instead scanned in order, and the threads inflate
+     * its blocks if it is BGZF-compressed
+     * @param windowSize The largest number of bytes mapped at once
+     * @param threads The number of threads parsing the file
+     */
+    static ReadStore getReads(Path path, ReadStore reads, int windowSize, int threads)
+            throws IOException {
+        if (CompressedLines.isGzip(path)) {
+            CompressedLines.forEachLine(path, threads, recordParser(() -> reads));
+            return reads;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (threads <= 1) {
+                parseRecords(channel, 0, size, windowSize, reads);
+                return reads;
+            }
+            long[] boundaries = new long[threads + 1];
+            for (int i = 1; i < threads; i++) {
+                boundaries[i] = Math.max(boundaries[i - 1],
+                        findRecordStart(channel, i * (size / threads)));
+            }
+            boundaries[threads] = size;
+
+            List<Callable<ReadStore>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long from = boundaries[i];
+                long to = boundaries[i + 1];
+                tasks.add(() -> parseRecords(channel, from, to, windowSize, new ReadStore()));
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (Future<ReadStore> chunk : pool.invokeAll(tasks)) {
+                    reads.addAll(chunk.get());
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Parallel fastq parsing failed", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Parallel fastq parsing failed", e);
+            } finally {
+                pool.shutdown();
+            }
+            return reads;
+        }
+    }
+
+    /**
+     * Parses the records of a byte range of a fastq file
+     * @param from The first byte of the range, which starts a line
+     * @param to The end of the range, which starts a record or ends the file
+     * @return reads
+     */
+    private static ReadStore parseRecords(FileChannel channel, long from, long to,
+                                          int windowSize, ReadStore reads) throws IOException {
+        MappedLines.forEachLine(channel, from, to, windowSize, recordParser(() -> reads));
         return reads;
     }
+
+    /**
+     * Makes a consumer of the lines of consecutive records, which packs
+     * each sequence into a read store
+     * @param reads Gives the store each read is appended to
+     * @return The consumer, which must see the records from their first line
+     */
+    private static MappedLines.LineConsumer recordParser(Supplier<ReadStore> reads) {
+        int[] line = {0}; // The line of the current record, once a header is found
+        return (buffer, start, end) -> {
+            if (line[0] == HEADER_LINE && (end == start || buffer.get(start) != '@')) {
+                return; // Blank line between records
+            }
+            if (line[0] == SEQUENCE_LINE) {
+                reads.get().add(buffer, start, end, BASE_CODES);
+            }
+            line[0] = (line[0] + 1) % LINES_PER_RECORD;
+        };
+    }
+
+    /**
+     * Finds the first record header starting at or after a position. A
+     * quality line may also start with '@', but only a header is followed
+     * two lines later by a '+' line, since a sequence line never starts
+     * with '+'
+     * @param channel The file
+     * @param position The position
+     * @return The first byte of the header, or the size of the file if
+     *         there is none
+     */
+    private static long findRecordStart(FileChannel channel, long position)
+            throws IOException {
+        long size = channel.size();
+        long line = (position == 0) ? 0 : nextLineStart(channel, position - 1);
+        while (line < size) {
+            long secondLine = nextLineStart(channel, line);
+            long thirdLine = nextLineStart(channel, secondLine);
+            if (getByte(channel, line) == '@' && thirdLine < size &&
+                    getByte(channel, thirdLine) == '+') {
+                return line;
+            }
+            line = secondLine;
+        }
+        return size;
+    }
+
+    /**
+     * @return The position after the first '\n' at or after a position, or
+     *         the size of the file if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RESYNC_BUFFER_SIZE);
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    private static byte getByte(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        return (channel.read(buffer, position) == 1) ? buffer.get(0) : 0;
+    }
 }
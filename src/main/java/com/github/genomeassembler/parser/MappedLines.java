@@ -0,0 +1,90 @@
+package com.github.genomeassembler.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Scans the lines of a file as bytes, without decoding them into Strings.
+ * The file is memory-mapped in windows of at most WINDOW_SIZE bytes, since
+ * a single mapping cannot exceed 2 GB. The line cut by the end of a window
+ * is scanned again at the start of the next one, so every line is seen
+ * whole, and no line may be longer than a window
+ */
+class MappedLines {
+    final static int WINDOW_SIZE = 1 << 30;
+
+    /**
+     * Receives the lines of a file
+     */
+    interface LineConsumer {
+        /**
+         * @param buffer The window holding the line
+         * @param start The index of the line's first byte
+         * @param end The end of the line (exclusive), before any "\r\n" or "\n"
+         */
+        void accept(ByteBuffer buffer, int start, int end);
+    }
+
+    /**
+     * Passes every line of a file to a consumer, in file order
+     * @param path The path of the file
+     * @param windowSize The largest number of bytes mapped at once
+     * @param consumer Receives the lines
+     */
+    static void forEachLine(Path path, int windowSize, LineConsumer consumer)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            forEachLine(channel, 0, channel.size(), windowSize, consumer);
+        }
+    }
+
+    /**
+     * Passes every line of a range of a file to a consumer, in file order.
+     * Different ranges of one channel may be scanned by different threads
+     * @param channel The file
+     * @param from The first byte of the range, which starts a line
+     * @param to The end of the range (exclusive), which starts a line or is
+     *           the end of the file
+     * @param windowSize The largest number of bytes mapped at once
+     * @param consumer Receives the lines
+     */
+    static void forEachLine(FileChannel channel, long from, long to, int windowSize,
+                            LineConsumer consumer) throws IOException {
+        long position = from;
+        while (position < to) {
+            int length = (int) Math.min(windowSize, to - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position, length);
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(i) == '\n') {
+                    consumer.accept(buffer, start, trimCarriageReturn(buffer, start, i));
+                    start = i + 1;
+                }
+            }
+            if (position + length == to) { // The last line may lack a '\n'
+                if (start < length) {
+                    consumer.accept(buffer, start,
+                            trimCarriageReturn(buffer, start, length));
+                }
+                return;
+            }
+            if (start == 0) {
+                throw new IOException("Line longer than " + windowSize +
+                        " bytes at byte " + position);
+            }
+            position += start;
+        }
+    }
+
+    /**
+     * @return The end of a line, moved before a trailing '\r'
+     */
+    static int trimCarriageReturn(ByteBuffer buffer, int start, int end) {
+        return (end > start && buffer.get(end - 1) == '\r') ? end - 1 : end;
+    }
+}
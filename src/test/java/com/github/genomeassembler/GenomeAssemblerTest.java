@@ -1,7 +1,14 @@
 package com.github.genomeassembler;
 
+import com.github.genomeassembler.mapper.BWReadMapper;
+import com.github.genomeassembler.mapper.HitPolicy;
+import com.github.genomeassembler.mapper.ReadStore;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -9,10 +16,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 public class GenomeAssemblerTest {
 
     @Test
@@ -35,10 +44,48 @@ public class GenomeAssemblerTest {
         int count = assembler.mapReads(0);
         assertEquals(expectedUnmappedReads, assembler.getUnmappedReads());
         assertEquals(expectedMappedReads, assembler.getMappedReads().keySet());
-        assertEquals(Collections.singletonList(0), assembler.getMappedReads().get("ACTTG"));
+        assertEquals(Collections.singletonList(0L), assembler.getMappedReads().get("ACTTG"));
         assertEquals(7, count);
     }
 
+    @Test
+    public void testAmbiguousReadMapping() {
+        String genome = "ACTTGCGTAGCTTGCTGATGT";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "GCNTA", "ACTTG", "CTNGC", "NCTTG", "TGATGT", "GATGN", "GCGTAGCTTGC"
+        ));
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads);
+        assertEquals(3, assembler.mapReads(0)); // Reads with an N match nowhere
+        assertEquals(Arrays.asList("GCNTA", "CTNGC", "NCTTG", "GATGN"),
+                assembler.getUnmappedReads());
+        assertEquals(new HashSet<>(Arrays.asList("ACTTG", "TGATGT", "GCGTAGCTTGC")),
+                assembler.getMappedReads().keySet());
+    }
+
+    @Test
+    public void testMinimizerReadMapping() {
+        String genome = "ACTTGCGTAGCTTGCTGATGT";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACTTG", "GCGTAGCTTGC", "GCG", "TGATGT",
+                "CAGGATC", "CCATTGA", "GATG", "ATGT",
+                "ACTTG"
+        ));
+        Set<String> expectedMappedReads = new HashSet<>(Arrays.asList(
+                "ACTTG", "GCGTAGCTTGC", "GCG", "TGATGT", "GATG",
+                "ATGT", "ACTTG"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                mappingEngine(AssemblerParameters.MappingEngine.MINIMIZER).
+                minimizerKmerLength(3).
+                minimizerWindowLength(2).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(7, assembler.mapReads(0));
+        assertEquals(Arrays.asList("CAGGATC", "CCATTGA"), assembler.getUnmappedReads());
+        assertEquals(expectedMappedReads, assembler.getMappedReads().keySet());
+        assertEquals(Collections.singletonList(4L), assembler.getMappedReads().get("GCGTAGCTTGC"));
+    }
+
     @Test
     public void testReverseComplementaryReadMapping() {
         String genome = "ACGTACGTAATTCCGG";
@@ -62,6 +109,168 @@ public class GenomeAssemblerTest {
 
     }
 
+    @Test
+    public void testSeedFilteredReadMapping() {
+        String genome = "ACGTACGTAATTCCGG";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACGTTCGT", "AATTCTGG", "GGGGGGGGGGGG", "CCAGAATT"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                seedFiltering(true).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(3, assembler.mapReads(1));
+        assertEquals(Collections.singletonList("GGGGGGGGGGGG"), assembler.getUnmappedReads());
+        assertEquals(Collections.singletonMap(1, 1), assembler.getSeedFilterRejections());
+        assertEquals(Collections.singletonList(8L), assembler.getMappedReads().get("AATTCTGG"));
+    }
+
+    @Test
+    public void testHitPolicyReadMapping() {
+        String genome = "ACGTTTACGTCCACGTGGAATT";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACGT", "CGTT", "AATT", "GGGG"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                hitPolicy(HitPolicy.maxHits(2)).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(3, assembler.mapReads(0));
+        assertEquals(Collections.singletonList("GGGG"), assembler.getUnmappedReads());
+        assertEquals(Collections.singletonMap(0, 1), assembler.getRepeatReads());
+        assertEquals(Collections.singletonList("ACGT"), assembler.getRepeatedReads());
+        assertEquals(new HashSet<>(Arrays.asList("CGTT", "AATT")),
+                assembler.getMappedReads().keySet());
+
+        reads = new ArrayList<>(Collections.singletonList("ACGT"));
+        param = new AssemblerParameters.Builder().
+                hitPolicy(HitPolicy.FIRST).
+                build();
+        assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(1, assembler.mapReads(0));
+        assertEquals(1, assembler.getMappedReads().get("ACGT").size());
+        assertTrue(assembler.getRepeatReads().isEmpty());
+    }
+
+    @Test
+    public void testDuplicateCollapsing() {
+        String genome = "ACTTGCGTAGCTTGCTGATGT";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACTTG", "CAAGT", "ACTTG", "TGATGT", "GGGGG", "CCCCC", "GGGGG"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                duplicateCollapsing(true).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        CollapsedReads collapsedReads = assembler.getCollapsedReads();
+        assertEquals(Arrays.asList("ACTTG", "ACATCA", "CCCCC"), collapsedReads.getReads());
+        assertEquals(7, collapsedReads.getNumReads());
+        assertEquals(3, collapsedReads.getNumDistinctReads());
+        assertEquals(3, collapsedReads.getCount("CAAGT"));
+        assertEquals(2, collapsedReads.getCanonicalCount("ACTTG"));
+        assertEquals(1, collapsedReads.getComplementCount("ACTTG"));
+        assertEquals(1, collapsedReads.getCanonicalCount("CCCCC"));
+        assertEquals(2, collapsedReads.getComplementCount("CCCCC"));
+        assertEquals(0, collapsedReads.getCount("AAAAA"));
+
+        assertEquals(4, assembler.mapReads(0));
+        assertEquals(Collections.singletonList("CCCCC"), assembler.getUnmappedReads());
+        assertEquals(new HashSet<>(Arrays.asList("ACTTG", "TGATGT")),
+                assembler.getMappedReads().keySet());
+        assertEquals(Collections.singletonList(15L), assembler.getMappedReads().get("TGATGT"));
+        assertEquals("ANNA", CollapsedReads.getCanonical("ANNA"));
+    }
+
+    @Test
+    public void testCollapsingManyReads() {
+        Random random = new Random(19);
+        ReadStore reads = new ReadStore();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int r = 0; r < 5000; r++) {
+            StringBuilder read = new StringBuilder();
+            for (int i = 1 + random.nextInt(40); i > 0; i--) {
+                read.append("ACGTN".charAt(random.nextInt((r % 10 == 0) ? 5 : 4)));
+            }
+            String sequence = (r % 3 == 0) ? read.substring(0, Math.min(read.length(), 6)) :
+                    read.toString();
+            reads.add(sequence);
+            expected.merge(CollapsedReads.getCanonical(sequence), 1, Integer::sum);
+        }
+        CollapsedReads collapsedReads = new CollapsedReads(reads);
+        assertEquals(5000, collapsedReads.getNumReads());
+        assertEquals(expected.size(), collapsedReads.getNumDistinctReads());
+        ReadStore distinct = collapsedReads.getDistinctReads();
+        for (int r = 0; r < distinct.size(); r++) {
+            String read = distinct.get(r);
+            assertEquals(read, CollapsedReads.getCanonical(read));
+            assertEquals((int) expected.get(read), collapsedReads.getCount(r));
+            assertEquals(collapsedReads.getCount(r), collapsedReads.getCount(read));
+        }
+    }
+
+    @Test
+    public void testBothStrandIndexReadMapping() {
+        String genome = "ACGTACGTAATTCCGG";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACGT", "GTACGTA", "AATT", "TTCC", "CCGG",
+                "GGAA", "TTACGTA", "CCGGAATTACGTACGT",
+                "CGTAAGT"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                bothStrandIndex(true).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        Set<String> expectedMappedReads = new HashSet<>(Arrays.asList(
+                "ACGT", "GTACGTA", "AATT", "TTCC", "CCGG",
+                "ACGTACGTAATTCCGG", "TACGTAA"
+        ));
+        assertEquals(8, assembler.mapReads(0));
+        assertEquals(Collections.singletonList("CGTAAGT"), assembler.getUnmappedReads());
+        assertEquals(expectedMappedReads, assembler.getMappedReads().keySet());
+        assertEquals(Collections.singletonList(3L), assembler.getMappedReads().get("TACGTAA"));
+    }
+
+    @Test
+    public void testReferenceIndexRebuild() throws IOException {
+        Path path = Files.createTempFile("reference", ".idx");
+        Files.delete(path);
+        try {
+            AssemblerParameters param = new AssemblerParameters.Builder().
+                    referenceIndexPath(path.toString()).
+                    build();
+            GenomeAssembler assembler = new GenomeAssembler("ACGTACGTAATTCCGG",
+                    new ArrayList<>(Arrays.asList("AATTCC", "GGCCTT")), param);
+            assertEquals(1, assembler.mapReads(0));
+            long digest = BWReadMapper.open(path).getDigest();
+
+            // The same length, edited in place
+            assembler = new GenomeAssembler("ACGTACGTAAGGCCTT",
+                    new ArrayList<>(Arrays.asList("AATTCC", "GGCCTT")), param);
+            assertEquals(1, assembler.mapReads(0));
+            assertEquals(Collections.singletonList("AATTCC"), assembler.getUnmappedReads());
+            BWReadMapper saved = BWReadMapper.open(path);
+            assertTrue(saved.getDigest() != digest);
+            assertEquals(BWReadMapper.computeDigest(
+                    Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME,
+                            "ACGTACGTAAGGCCTT")), saved.getDigest());
+            assertEquals(BWReadMapper.DEFAULT_SAMPLING_RATE, saved.getSamplingRate());
+
+            // The same genome, with other parameters
+            param = new AssemblerParameters.Builder().
+                    referenceIndexPath(path.toString()).
+                    suffixArraySamplingRate(4).
+                    kmerTableLength(3).
+                    build();
+            new GenomeAssembler("ACGTACGTAAGGCCTT",
+                    new ArrayList<>(Collections.singletonList("GGCCTT")), param);
+            saved = BWReadMapper.open(path);
+            assertEquals(4, saved.getSamplingRate());
+            assertEquals(3, saved.getPreferredKmerTableLength());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
     @Test
     public void testExactContigGenerationNoOverlap() {
         String genome = "ACTAGATCGATCAGTCACTATTACCCTTAA";
@@ -72,7 +281,7 @@ public class GenomeAssemblerTest {
         assembler.mapReads(0);
         assertEquals(2, assembler.formContigs());
         assertTrue(assembler.getMappedReads().isEmpty());
-        Map<String, Integer> mappedContigs = assembler.getMappedContigSets().get(0);
+        Map<String, Long> mappedContigs = assembler.getMappedContigSets().get(0);
         assertTrue(mappedContigs.containsKey("CTAGATCGATCAGTCACTATTA"));
     }
 
@@ -87,7 +296,7 @@ public class GenomeAssemblerTest {
         assembler.setAssemblerParameters(param);
         assembler.mapReads(0);
         assertEquals(3, assembler.formContigs());
-        Map<String, Integer> mappedContigs = assembler.getMappedContigSets().get(0);
+        Map<String, Long> mappedContigs = assembler.getMappedContigSets().get(0);
         assertTrue(mappedContigs.containsKey("CTAGATCGATCAGTCAC"));
         assertTrue(mappedContigs.containsKey("TATTA"));
         assertTrue(mappedContigs.containsKey("CTTAA"));
@@ -104,7 +313,7 @@ public class GenomeAssemblerTest {
         assembler.setAssemblerParameters(param);
         assembler.mapReads(0);
         assertEquals(4, assembler.formContigs());
-        Map<String, Integer> mappedContigs = assembler.getMappedContigSets().get(0);
+        Map<String, Long> mappedContigs = assembler.getMappedContigSets().get(0);
         assertTrue(mappedContigs.containsKey("CTAGATCGAT"));
         assertTrue(mappedContigs.containsKey("GATCAGTCAC"));
         assertTrue(mappedContigs.containsKey("TATTA"));
@@ -123,7 +332,7 @@ public class GenomeAssemblerTest {
         assembler.setAssemblerParameters(param);
         assembler.mapReads(0);
         assertEquals(1, assembler.formContigs());
-        Map<String, Integer> mappedContigs = assembler.getMappedContigSets().get(0);
+        Map<String, Long> mappedContigs = assembler.getMappedContigSets().get(0);
         assertTrue(mappedContigs.containsKey(genome));
     }
 
@@ -138,11 +347,149 @@ public class GenomeAssemblerTest {
         assembler.setAssemblerParameters(param);
         assembler.mapReads(2);
         assertEquals(1, assembler.formContigs());
-        Map<String, Integer> mappedContigs = assembler.getMappedContigSets().get(0);
-        int index = mappedContigs.get("ACCTAGCTA");
+        Map<String, Long> mappedContigs = assembler.getMappedContigSets().get(0);
+        long index = mappedContigs.get("ACCTAGCTA");
         assertEquals(3, index);
     }
 
+    @Test
+    public void testStratifiedContigGeneration() {
+        String genome = "TTGACTGAGCTGCAATCGGATCCTTAG";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "TTGACTG", "GAGCTGC", "AATCGCATC", "GTTCCTAAG", "CGTATAGGC",
+                "CTAAGGATC"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                mismatchToleranceLowerBound(0).
+                mismatchToleranceHigherBound(3).
+                mismatchToleranceStep(1).
+                stratifiedMapping(true).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(5, assembler.formContigsByStratum());
+        assertEquals(Collections.singletonList("CGTATAGGC"), assembler.getUnmappedReads());
+        List<Map<String, Long>> contigSets = assembler.getMappedContigSets();
+        assertEquals(3, contigSets.size());
+        assertEquals(Long.valueOf(0), contigSets.get(0).get("TTGACTGAGCTGC"));
+        assertEquals(Long.valueOf(18), contigSets.get(0).get("GATCCTTAG"));
+        assertEquals(Long.valueOf(13), contigSets.get(1).get("AATCGCATC"));
+        assertEquals(Long.valueOf(18), contigSets.get(2).get("GTTCCTAAG"));
+        assertEquals(1, contigSets.get(2).size());
+    }
+
+    @Test
+    public void testStratifiedRepeatReads() {
+        String genome = "ACGTACGTACGTACGTGATTCCAGTT";
+        List<String> reads = new ArrayList<>(Arrays.asList(
+                "ACGTACGT", "GATTCCAG", "CCGTACGT", "GATTCGAG"
+        ));
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                mismatchToleranceLowerBound(0).
+                mismatchToleranceHigherBound(2).
+                mismatchToleranceStep(1).
+                stratifiedMapping(true).
+                hitPolicy(HitPolicy.maxHits(2)).
+                build();
+        GenomeAssembler assembler = new GenomeAssembler(genome, reads, param);
+        assertEquals(4, assembler.formContigsByStratum());
+        assertTrue(assembler.getUnmappedReads().isEmpty());
+        // Both strata with more than 2 hits are repeats, whatever their level
+        assertEquals(Arrays.asList("ACGTACGT", "CCGTACGT"), assembler.getRepeatedReads());
+        assertEquals(Collections.singletonMap(1, 2), assembler.getRepeatReads());
+        List<Map<String, Long>> contigSets = assembler.getMappedContigSets();
+        assertEquals(Long.valueOf(16), contigSets.get(0).get("GATTCCAG"));
+        assertEquals(Collections.singletonMap("GATTCGAG", 16L), contigSets.get(1));
+    }
+
+    /**
+     * Makes a read source passing a list of reads on in batches
+     */
+    private static ReadSource getReadSource(List<String> reads, int batchSize) {
+        return batches -> {
+            for (int from = 0; from < reads.size(); from += batchSize) {
+                batches.accept(ReadStore.of(reads.subList(from,
+                        Math.min(from + batchSize, reads.size()))));
+            }
+        };
+    }
+
+    @Test
+    public void testStreamedReadMapping() {
+        String genome = "TTGACTGAGCTGCAATCGGATCCTTAG";
+        List<String> readsOne = Arrays.asList("TTGACTG", "GAGCTGC", "AATCGCATC", "AAAAAAA");
+        List<String> readsTwo = Arrays.asList("GTTCCTAAG", "CGTATAGGC", "CTAAGGATC",
+                "CGTATAGGC", "GGGGGGG");
+        List<String> reads = new ArrayList<>(readsOne);
+        reads.addAll(readsTwo);
+        for (boolean stratified : new boolean[]{false, true}) {
+            AssemblerParameters param = new AssemblerParameters.Builder().
+                    mismatchToleranceLowerBound(0).
+                    mismatchToleranceHigherBound(3).
+                    mismatchToleranceStep(1).
+                    stratifiedMapping(stratified).
+                    duplicateCollapsing(true).
+                    readQueueDepth(1).
+                    build();
+            GenomeAssembler expected = new GenomeAssembler(genome, reads, param);
+            int expectedMapped = stratified ? expected.formContigsByStratum() :
+                    expected.mapReads(0);
+            if (!stratified) {
+                expected.formContigs();
+            }
+
+            GenomeAssembler streamed = GenomeAssembler.fromReadSources(
+                    Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME, genome),
+                    Arrays.asList(getReadSource(readsOne, 1), getReadSource(readsTwo, 2)),
+                    param);
+            assertEquals(expectedMapped, streamed.streamReads());
+            assertEquals(0, streamed.streamReads());
+            assertEquals(expected.getUnmappedReads(), streamed.getUnmappedReads());
+            assertEquals(expected.getMappedContigSets(), streamed.getMappedContigSets());
+            // Only the unmapped reads are collapsed
+            assertEquals(streamed.getUnmappedReads(), streamed.getCollapsedReads().getReads());
+            assertEquals(2, streamed.getCollapsedReads().getCount("CGTATAGGC"));
+        }
+    }
+
+    @Test
+    public void testStreamedRepeatReads() {
+        String genome = "ACGTTTACGTCCACGTGGAATT";
+        AssemblerParameters param = new AssemblerParameters.Builder().
+                hitPolicy(HitPolicy.maxHits(2)).
+                duplicateCollapsing(true).
+                readQueueDepth(1).
+                build();
+        GenomeAssembler streamed = GenomeAssembler.fromReadSources(
+                Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME, genome),
+                Arrays.asList(getReadSource(Arrays.asList("ACGT", "CGTT", "GGGG"), 2),
+                        getReadSource(Arrays.asList("ACGT", "AATT"), 1)),
+                param);
+        assertEquals(4, streamed.streamReads());
+        assertEquals(Collections.singletonList("CCCC"), streamed.getUnmappedReads());
+        // Repeats are not placed, but are kept for the de Bruijn graph
+        assertEquals(Collections.singletonList("ACGT"), streamed.getRepeatedReads());
+        assertEquals(2, streamed.getCollapsedReads().getCount("ACGT"));
+        assertEquals(Collections.singletonMap(0, 2), streamed.getRepeatReads());
+    }
+
+    @Test
+    public void testStreamedReadSourceFailure() {
+        ReadSource failing = batches -> {
+            batches.accept(ReadStore.of(Collections.singletonList("ACGT")));
+            throw new IOException("Unreadable file");
+        };
+        GenomeAssembler assembler = GenomeAssembler.fromReadSources(
+                Collections.singletonMap(BWReadMapper.DEFAULT_SEQUENCE_NAME, "ACGTACGT"),
+                Arrays.asList(getReadSource(Arrays.asList("ACGT", "CGTA"), 1), failing),
+                new AssemblerParameters.Builder().readQueueDepth(1).build());
+        try {
+            assembler.streamReads();
+            fail();
+        } catch (UncheckedIOException e) {
+            assertEquals("Unreadable file", e.getCause().getMessage());
+        }
+    }
+
     @Test
     public void temp() {
         List<Map<Integer, String>> mapList = new ArrayList<>();
@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -66,6 +67,138 @@ public class BurrowsWheelerTransformTest {
         assertArrayEquals(getSuffixArray(test5), suffixArray1);
     }
 
+    @Test
+    public void testInducedSortingMatchesIncremental() {
+        Random random = new Random(830);
+        String[] tests = new String[] {
+                "", "A", "AAAAAAAAAAAA", "ACGTACGTACGT", "mississippi",
+                "panamabananas", randomGenome(random, 500), randomGenome(random, 2000)
+        };
+        for (String test : tests) {
+            int[] incrementalArray = new int[test.length() + 1];
+            int[] inducedArray = new int[test.length() + 1];
+            String incremental = BurrowsWheelerTransform.transform(test, incrementalArray,
+                    BurrowsWheelerTransform.SuffixArrayAlgorithm.INCREMENTAL);
+            String induced = BurrowsWheelerTransform.transform(test, inducedArray,
+                    BurrowsWheelerTransform.SuffixArrayAlgorithm.INDUCED_SORTING);
+            assertEquals(incremental, induced);
+            assertArrayEquals(incrementalArray, inducedArray);
+        }
+    }
+
+    @Test
+    public void testParallelSortingMatchesInducedSorting() {
+        Random random = new Random(850);
+        StringBuilder repeats = new StringBuilder(randomGenome(random, 5000));
+        for (int i = 0; i < 20; i++) { // Long exact repeats between random stretches
+            repeats.append(repeats, 1000, 3000).append(randomGenome(random, 100));
+        }
+        String[] tests = new String[] {
+                "", "A", "AAAAAAAAAAAA", "ACGTACGTACGT", "mississippi",
+                "panamabananas", randomGenome(random, 50000), repeats.toString(),
+                new String(new char[20000]).replace('\0', 'A')
+        };
+        for (String test : tests) {
+            int[] inducedArray = new int[test.length() + 1];
+            String induced = BurrowsWheelerTransform.transform(test, inducedArray,
+                    BurrowsWheelerTransform.SuffixArrayAlgorithm.INDUCED_SORTING);
+            for (int threads : new int[] {1, 3, 8}) {
+                int[] parallelArray = new int[test.length() + 1];
+                String parallel = BurrowsWheelerTransform.transform(test, parallelArray,
+                        BurrowsWheelerTransform.SuffixArrayAlgorithm.PARALLEL_BUCKET_SORTING,
+                        threads);
+                assertEquals(induced, parallel);
+                assertArrayEquals(inducedArray, parallelArray);
+            }
+        }
+    }
+
+    @Test
+    public void testInvertLongStrings() {
+        Random random = new Random(840);
+        for (String test : new String[] {"", "A", randomGenome(random, 100000),
+                "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"}) {
+            int[] suffixArray = new int[test.length() + 1];
+            assertEquals(test, BurrowsWheelerTransform.invert(
+                    BurrowsWheelerTransform.transform(test, suffixArray)));
+        }
+    }
+
+    @Test
+    public void testBlockwiseSorting() {
+        Random random = new Random(860);
+        String repeats = randomGenome(random, 300);
+        repeats = repeats + repeats + randomGenome(random, 7) + repeats + "AC";
+        for (String test : new String[] {"", "A", "ACGTACGTACGT", randomGenome(random, 3000),
+                repeats, new String(new char[3000]).replace('\0', 'C')}) {
+            int[] text = rankBases(test);
+            int[] expected = new int[text.length];
+            BurrowsWheelerTransform.sortSuffixes(test, expected,
+                    BurrowsWheelerTransform.SuffixArrayAlgorithm.INDUCED_SORTING, 1);
+            for (int blockSize : new int[] {1, 7, 1000, Integer.MAX_VALUE - 8}) {
+                for (int threads : new int[] {1, 4}) {
+                    List<Long> suffixes = new ArrayList<>();
+                    ParallelSuffixSorter.sort(RankedText.of(text, text.length, 5), threads,
+                            blockSize, suffixes::add);
+                    assertEquals(text.length, suffixes.size());
+                    for (int i = 0; i < expected.length; i++) {
+                        assertEquals((long) expected[i], (long) suffixes.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDifferenceCoverSample() {
+        Random random = new Random(870);
+        String unit = randomGenome(random, 5);
+        StringBuilder periodic = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            periodic.append(unit).append((i % 20 == 0) ? "A" : "");
+        }
+        for (String test : new String[] {"A", "ACGT", periodic.toString(),
+                new String(new char[400]).replace('\0', 'G'), randomGenome(random, 500)}) {
+            int[] text = rankBases(test);
+            int[] expected = new int[text.length];
+            BurrowsWheelerTransform.sortSuffixes(test, expected,
+                    BurrowsWheelerTransform.SuffixArrayAlgorithm.INDUCED_SORTING, 1);
+            RankedText ranked = RankedText.of(text, text.length, 5);
+            for (int period : new int[] {1, 2, 3, 8, 13, 64, 1024}) {
+                // Comparing only the first v symbols, the sample ranks order the rest
+                DifferenceCoverSample cover = new DifferenceCoverSample(ranked, period, 2, 16);
+                long[] suffixes = new long[text.length];
+                for (int i = 0; i < suffixes.length; i++) {
+                    suffixes[i] = suffixes.length - 1 - i;
+                }
+                new MultikeyQuicksort(ranked, suffixes, period, cover, Long.MAX_VALUE)
+                        .sort(0, suffixes.length, 0);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals("Period " + period, expected[i], suffixes[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ranks a DNA string as 1 to 4, ending with a 0
+     */
+    private static int[] rankBases(String bases) {
+        int[] text = new int[bases.length() + 1];
+        for (int i = 0; i < bases.length(); i++) {
+            text[i] = "ACGT".indexOf(bases.charAt(i)) + 1;
+        }
+        return text;
+    }
+
+    private static String randomGenome(Random random, int length) {
+        char[] bases = new char[length];
+        for (int i = 0; i < length; i++) {
+            bases[i] = "ACGT".charAt(random.nextInt(4));
+        }
+        return String.valueOf(bases);
+    }
+
     /**
      * Naive (inefficient) correct implementation of suffix array construction
      * @param s The string
@@ -0,0 +1,63 @@
+package com.github.genomeassembler.mapper;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class OccurrenceTableTest {
+
+    @Test
+    public void testOccurrences() {
+        String bwt = "GT$AACC";
+        OccurrenceTable table = buildTable(bwt);
+        assertEquals(7, table.length());
+        assertEquals(2, table.getEndMarkerRow());
+        assertEquals(0, table.occurrences(0, 3));
+        assertEquals(1, table.occurrences(0, 4));
+        assertEquals(2, table.occurrences(0, 7));
+        assertEquals(1, table.occurrences(2, 1));
+        assertEquals(2, table.occurrences(1, 7));
+        assertEquals(-1, table.getBase(2));
+        assertEquals(3, table.getBase(1));
+    }
+
+    @Test
+    public void testOccurrencesAcrossCheckpoints() {
+        Random random = new Random(64);
+        int superblock = OccurrenceTable.SUPERBLOCK_INTERVAL;
+        for (int length : new int[] {1, 31, 32, 33, 127, 128, 129, 256, 1000,
+                superblock, superblock + 1, 2 * superblock + 77}) {
+            char[] bwt = new char[length];
+            for (int i = 0; i < length; i++) {
+                bwt[i] = "ACGT".charAt(random.nextInt(4));
+            }
+            bwt[random.nextInt(length)] = '$';
+            OccurrenceTable table = buildTable(String.valueOf(bwt));
+            int[] counts = new int[4];
+            for (int row = 0; row <= length; row++) {
+                for (int base = 0; base < 4; base++) {
+                    assertEquals(counts[base], table.occurrences(base, row));
+                }
+                if (row < length && bwt[row] != '$') {
+                    int base = "ACGT".indexOf(bwt[row]);
+                    assertEquals(base, table.getBase(row));
+                    counts[base]++;
+                }
+            }
+        }
+    }
+
+    private static OccurrenceTable buildTable(String bwt) {
+        OccurrenceTable.Builder builder = new OccurrenceTable.Builder(bwt.length());
+        for (char c : bwt.toCharArray()) {
+            if (c == '$') {
+                builder.appendEndMarker();
+            } else {
+                builder.append("ACGT".indexOf(c));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -2,14 +2,23 @@ package com.github.genomeassembler.mapper;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ReadMapperTest {
 
@@ -32,9 +41,36 @@ public class ReadMapperTest {
     @Test
     public void testCounts() {
         BWReadMapper mapper1 = new BWReadMapper("ACATAGCTAGCTAGCA");
-        BWReadMapper mapper2 = new BWReadMapper("AAACCC$$$");
-        assertArrayEquals(new int[] {6, 4, 3, 3}, mapper1.getBaseCounts());
-        assertArrayEquals(new int[] {3, 3, 0, 0}, mapper2.getBaseCounts());
+        BWReadMapper mapper2 = new BWReadMapper("AAACCC");
+        BWReadMapper mapper3 = new BWReadMapper("AAACCCNNN"); // N's are indexed as bases
+        assertArrayEquals(new long[] {6, 4, 3, 3}, mapper1.getBaseCounts());
+        assertArrayEquals(new long[] {3, 3, 0, 0}, mapper2.getBaseCounts());
+        assertEquals(9, Arrays.stream(mapper3.getBaseCounts()).sum());
+    }
+
+    @Test
+    public void testPackedText() {
+        Random random = new Random(140);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("chr1", randomSequence(random, 40).toLowerCase());
+        sequences.put("chr2", "NNNN" + randomSequence(random, 30));
+        String genome = sequences.get("chr1") + sequences.get("chr2");
+        PackedText text = new PackedText(sequences, genome.length(), true);
+        assertEquals(2 * genome.length() + 1, text.length());
+        assertEquals(0, text.symbolAt(text.length() - 1));
+        for (int i = 0; i < genome.length(); i++) {
+            int base = BWReadMapper.encodeReferenceBase(genome.charAt(i), i);
+            assertEquals(base, text.getBase(i));
+            assertEquals(base + 1, text.symbolAt(i));
+            assertEquals(3 - base, text.getBase(2L * genome.length() - 1 - i));
+        }
+
+        try { // Samples are ints, so too many rows need a higher sampling rate
+            new SampledSuffixArray.Builder(3L << 31, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
     }
 
     @Test
@@ -59,26 +95,26 @@ public class ReadMapperTest {
     public void testPerfectMapReads() {
         BWReadMapper mapper1 = new BWReadMapper("ACACTAGTCGATG");
         BWReadMapper mapper2 = new BWReadMapper("TTTTTCCCACATCATCATCA");
-        List<Integer> mappings1 = mapper1.mapRead("AC", 0);
-        List<Integer> mappings2 = mapper1.mapRead("A", 0);
-        List<Integer> mappings3 = mapper1.mapRead("ACACT", 0);
-        List<Integer> mappings4 = mapper1.mapRead("GA", 0);
-        List<Integer> mappings5 = mapper1.mapRead("TAGT", 0);
-        List<Integer> mappings6 = mapper1.mapRead("TT", 0);
-        List<Integer> mappings7 = mapper2.mapRead("T", 0);
-        List<Integer> mappings8 = mapper2.mapRead("TT", 0);
-        List<Integer> mappings9 = mapper2.mapRead("TTCC", 0);
-        List<Integer> mappings10 = mapper2.mapRead("CAT", 0);
-
-        List<Integer> expected1 = new ArrayList<>(Arrays.asList(0, 2));
-        List<Integer> expected2 = new ArrayList<>(Arrays.asList(0, 2, 5, 10));
-        List<Integer> expected3 = new ArrayList<>(Collections.singletonList(0));
-        List<Integer> expected4 = new ArrayList<>(Collections.singletonList(9));
-        List<Integer> expected5 = new ArrayList<>(Collections.singletonList(4));
-        List<Integer> expected7 = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 11, 14, 17));
-        List<Integer> expected8 = new ArrayList<>(Arrays.asList(0, 1, 2, 3));
-        List<Integer> expected9 = new ArrayList<>(Collections.singletonList(3));
-        List<Integer> expected10 = new ArrayList<>(Arrays.asList(9, 12, 15));
+        List<Long> mappings1 = mapper1.mapRead("AC", 0);
+        List<Long> mappings2 = mapper1.mapRead("A", 0);
+        List<Long> mappings3 = mapper1.mapRead("ACACT", 0);
+        List<Long> mappings4 = mapper1.mapRead("GA", 0);
+        List<Long> mappings5 = mapper1.mapRead("TAGT", 0);
+        List<Long> mappings6 = mapper1.mapRead("TT", 0);
+        List<Long> mappings7 = mapper2.mapRead("T", 0);
+        List<Long> mappings8 = mapper2.mapRead("TT", 0);
+        List<Long> mappings9 = mapper2.mapRead("TTCC", 0);
+        List<Long> mappings10 = mapper2.mapRead("CAT", 0);
+
+        List<Long> expected1 = new ArrayList<>(Arrays.asList(0L, 2L));
+        List<Long> expected2 = new ArrayList<>(Arrays.asList(0L, 2L, 5L, 10L));
+        List<Long> expected3 = new ArrayList<>(Collections.singletonList(0L));
+        List<Long> expected4 = new ArrayList<>(Collections.singletonList(9L));
+        List<Long> expected5 = new ArrayList<>(Collections.singletonList(4L));
+        List<Long> expected7 = new ArrayList<>(Arrays.asList(0L, 1L, 2L, 3L, 4L, 11L, 14L, 17L));
+        List<Long> expected8 = new ArrayList<>(Arrays.asList(0L, 1L, 2L, 3L));
+        List<Long> expected9 = new ArrayList<>(Collections.singletonList(3L));
+        List<Long> expected10 = new ArrayList<>(Arrays.asList(9L, 12L, 15L));
 
         assertEquals(expected1, mappings1);
         assertEquals(expected2, mappings2);
@@ -107,29 +143,30 @@ public class ReadMapperTest {
                 "CATGCTGATCGTGATCGTAGCTAGTCGATCATGCTACTGGTCA"
         );
 
-        List<Integer> mappings1 = mapper1.mapRead("AGT", 1);
-        List<Integer> mappings2 = mapper1.mapRead("A", 2);
-        List<Integer> mappings3 = mapper1.mapRead("ACTGCTAGT", 1);
-        List<Integer> mappings4 = mapper1.mapRead("ACTACATAT", 3);
-        List<Integer> mappings5 = mapper2.mapRead("AGT", 3);
-        List<Integer> mappings6 = mapper2.mapRead("TTCCAA", 3);
-        List<Integer> mappings7 = mapper3.mapRead("ACTGGCTAG", 2);
-        List<Integer> mappings8 = mapper3.mapRead("TCA", 2);
-        List<Integer> mappings9 = mapper3.mapRead("CTGAC", 4);
-        List<Integer> mappings10 = mapper4.mapRead("CATGCTGATCG", 4);
-        List<Integer> mappings11 = mapper4.mapRead("GATCGTAGCTAGTCGAT", 2);
-
-        List<Integer> expected1 = new ArrayList<>(Arrays.asList(0, 6));
-        List<Integer> expected2 = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8));
-        List<Integer> expected3 = new ArrayList<>(Collections.singletonList(0));
-        List<Integer> expected4 = new ArrayList<>(Collections.singletonList(0));
-        List<Integer> expected5 = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12));
-        List<Integer> expected6 = new ArrayList<>(Arrays.asList(5, 6, 9));
-        List<Integer> expected7 = new ArrayList<>(Arrays.asList(0, 4));
-        List<Integer> expected8 = new ArrayList<>(Arrays.asList(0, 2, 4, 6, 9));
-        List<Integer> expected9 = new ArrayList<>(Arrays.asList(1, 5, 6, 8));
-        List<Integer> expected10 = new ArrayList<>(Arrays.asList(0, 6, 29));
-        List<Integer> expected11 = new ArrayList<>(Collections.singletonList(12));
+        List<Long> mappings1 = mapper1.mapRead("AGT", 1);
+        List<Long> mappings2 = mapper1.mapRead("A", 2);
+        List<Long> mappings3 = mapper1.mapRead("ACTGCTAGT", 1);
+        List<Long> mappings4 = mapper1.mapRead("ACTACATAT", 3);
+        List<Long> mappings5 = mapper2.mapRead("AGT", 3);
+        List<Long> mappings6 = mapper2.mapRead("TTCCAA", 3);
+        List<Long> mappings7 = mapper3.mapRead("ACTGGCTAG", 2);
+        List<Long> mappings8 = mapper3.mapRead("TCA", 2);
+        List<Long> mappings9 = mapper3.mapRead("CTGAC", 4);
+        List<Long> mappings10 = mapper4.mapRead("CATGCTGATCG", 4);
+        List<Long> mappings11 = mapper4.mapRead("GATCGTAGCTAGTCGAT", 2);
+
+        List<Long> expected1 = new ArrayList<>(Arrays.asList(0L, 6L));
+        List<Long> expected2 = new ArrayList<>(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L));
+        List<Long> expected3 = new ArrayList<>(Collections.singletonList(0L));
+        List<Long> expected4 = new ArrayList<>(Collections.singletonList(0L));
+        List<Long> expected5 = new ArrayList<>(
+                Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L));
+        List<Long> expected6 = new ArrayList<>(Arrays.asList(5L, 6L, 9L));
+        List<Long> expected7 = new ArrayList<>(Arrays.asList(0L, 4L));
+        List<Long> expected8 = new ArrayList<>(Arrays.asList(0L, 2L, 4L, 6L, 9L));
+        List<Long> expected9 = new ArrayList<>(Arrays.asList(1L, 5L, 6L, 8L));
+        List<Long> expected10 = new ArrayList<>(Arrays.asList(0L, 6L, 29L));
+        List<Long> expected11 = new ArrayList<>(Collections.singletonList(12L));
 
         Collections.sort(mappings1);
         Collections.sort(mappings2);
@@ -161,15 +198,15 @@ public class ReadMapperTest {
     public void testMapReads() {
         BWReadMapper mapper1 = new BWReadMapper("ACACTAGTCGATG");
         BWReadMapper mapper2 = new BWReadMapper("TTTTTTTTTTTT");
-        List<Integer> mappings1 = mapper1.mapRead("CAC", 0);
-        List<Integer> mappings2 = mapper1.mapRead("GATGA", 0);
-        List<Integer> mappings3 = mapper1.mapRead("ACACTAGTCGATG", 0);
-        List<Integer> mappings4 = mapper1.mapRead("ACACTAGTCGATGT", 0);
-        List<Integer> mappings5 = mapper2.mapRead("TTTA", 1);
+        List<Long> mappings1 = mapper1.mapRead("CAC", 0);
+        List<Long> mappings2 = mapper1.mapRead("GATGA", 0);
+        List<Long> mappings3 = mapper1.mapRead("ACACTAGTCGATG", 0);
+        List<Long> mappings4 = mapper1.mapRead("ACACTAGTCGATGT", 0);
+        List<Long> mappings5 = mapper2.mapRead("TTTA", 1);
 
-        List<Integer> expected1 = new ArrayList<>(Collections.singletonList(1));
-        List<Integer> expected3 = new ArrayList<>(Collections.singletonList(0));
-        List<Integer> expected5 = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8));
+        List<Long> expected1 = new ArrayList<>(Collections.singletonList(1L));
+        List<Long> expected3 = new ArrayList<>(Collections.singletonList(0L));
+        List<Long> expected5 = new ArrayList<>(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L));
 
         Collections.sort(mappings5);
 
@@ -180,19 +217,753 @@ public class ReadMapperTest {
         assertEquals(expected5, mappings5);
     }
 
-    @Test(expected=IllegalArgumentException.class)
-    public void testIllegalCharacter() {
-        BWReadMapper mapper = new BWReadMapper("ACATAGCTAGCRTAGCA");
+    @Test
+    public void testAmbiguousReadBases() {
+        BWReadMapper mapper = new BWReadMapper("ACGTGACTTGCA", 4);
+        for (String read : new String[] {"ACNTG", "NCGTG", "ACGTN", "N"}) {
+            assertTrue(mapper.mapRead(read, 0).isEmpty());
+        }
+        List<Long> mismatched = mapper.mapRead("ACNTG", 1); // The N counts as a mismatch
+        Collections.sort(mismatched);
+        assertEquals(Arrays.asList(0L, 5L), mismatched);
+
+        // Reads sharing a suffix past the N share its empty interval
+        List<String> reads = Arrays.asList("ACNTG", "GTGAC", "CNTGAC", "TTGCA", "ACGTN");
+        HitBuffer hits = new HitBuffer(1, 1);
+        mapper.mapReads(reads, 0, hits);
+        assertEquals(reads.size(), hits.getNumReads());
+        for (int r = 0; r < reads.size(); r++) {
+            assertEquals(mapper.mapRead(reads.get(r), 0), getSortedHits(hits, r));
+        }
+        assertEquals(Collections.singletonList(2L), getSortedHits(hits, 1));
+    }
+
+    @Test
+    public void testExactMappingMatchesBruteForce() {
+        Random random = new Random(2020);
+        String genome = randomSequence(random, 3000) + "ACGTTTGCA" + "ACGTTTGCA";
+        ReadMapper mapper = new BWReadMapper(genome);
+        ReadMapper bruteForce = new BruteForceReadMapper(genome);
+        for (int i = 0; i < 200; i++) {
+            int length = 1 + random.nextInt(30);
+            String read;
+            if (i % 2 == 0) { // Sampled from the genome
+                int start = random.nextInt(genome.length() - length + 1);
+                read = genome.substring(start, start + length);
+            } else {
+                read = randomSequence(random, length);
+            }
+            List<Long> mappings = mapper.mapRead(read, 0);
+            Collections.sort(mappings);
+            assertEquals(bruteForce.mapRead(read, 0), mappings);
+        }
+    }
+
+    @Test
+    public void testSampledSuffixArray() {
+        Random random = new Random(16);
+        String genome = randomSequence(random, 1000);
+        ReadMapper bruteForce = new BruteForceReadMapper(genome);
+        for (int samplingRate : new int[] {1, 4, 16, 32}) {
+            ReadMapper mapper = new BWReadMapper(genome, samplingRate);
+            for (int i = 0; i < 50; i++) {
+                int length = 1 + random.nextInt(8);
+                int start = random.nextInt(genome.length() - length + 1);
+                String read = genome.substring(start, start + length);
+                List<Long> mappings = mapper.mapRead(read, 0);
+                Collections.sort(mappings);
+                assertEquals(bruteForce.mapRead(read, 0), mappings);
+            }
+        }
+        List<Long> mappings = new BWReadMapper("ACTGCTTGT", 4).mapRead("AGT", 1);
+        Collections.sort(mappings);
+        assertEquals(Arrays.asList(0L, 6L), mappings);
+    }
+
+    @Test
+    public void testMismatchMappingMatchesNaiveSearch() {
+        Random random = new Random(7);
+        String genome = randomSequence(random, 2000);
+        ReadMapper mapper = new BWReadMapper(genome);
+        for (int i = 0; i < 100; i++) {
+            int length = 5 + random.nextInt(20);
+            int mismatches = 1 + random.nextInt(3);
+            int start = random.nextInt(genome.length() - length + 1);
+            char[] read = genome.substring(start, start + length).toCharArray();
+            for (int j = 0; j < mismatches; j++) { // Mutates the sampled read
+                read[random.nextInt(length)] = "ACGT".charAt(random.nextInt(4));
+            }
+            List<Long> mappings = mapper.mapRead(String.valueOf(read), mismatches);
+            Collections.sort(mappings);
+            assertEquals(naiveMapRead(genome, String.valueOf(read), mismatches), mappings);
+        }
+    }
+
+    @Test
+    public void testBestStratum() {
+        BWReadMapper mapper = new BWReadMapper("ACTGACTGGTCAGTTTTT");
+        ReadMapper bruteForce = new BruteForceReadMapper("ACTGACTGGTCAGTTTTT");
+        MappingStratum stratum1 = mapper.mapReadBestStratum("ACTG", 3);
+        MappingStratum stratum2 = mapper.mapReadBestStratum("ACTA", 3);
+        MappingStratum stratum3 = mapper.mapReadBestStratum("GGGGG", 2);
+        MappingStratum stratum4 = bruteForce.mapReadBestStratum("ACTG", 3);
+        List<Long> positions1 = new ArrayList<>(stratum1.getPositions());
+        List<Long> positions2 = new ArrayList<>(stratum2.getPositions());
+        Collections.sort(positions1);
+        Collections.sort(positions2);
+
+        assertEquals(0, stratum1.getMismatches());
+        assertEquals(Arrays.asList(0L, 4L), positions1);
+        assertEquals(1, stratum2.getMismatches());
+        assertEquals(Arrays.asList(0L, 4L), positions2);
+        assertTrue(!stratum3.isMapped());
+        assertEquals(-1, stratum3.getMismatches());
+        assertEquals(0, stratum4.getMismatches());
+        assertEquals(Arrays.asList(0L, 4L), stratum4.getPositions());
+
+        // Encoded reads only use their first length bases
+        byte[] bases = BWReadMapper.encodeRead("ACTAGGGG", new byte[8]);
+        for (ReadMapper readMapper : Arrays.asList(mapper, bruteForce)) {
+            MappingStratum stratum = readMapper.mapReadBestStratum(bases, 4, 3, HitPolicy.ALL);
+            List<Long> positions = new ArrayList<>(stratum.getPositions());
+            Collections.sort(positions);
+            assertEquals(1, stratum.getMismatches());
+            assertEquals(Arrays.asList(0L, 4L), positions);
+        }
+    }
+
+    @Test
+    public void testBestStratumRepeats() {
+        Random random = new Random(190);
+        String unit = randomSequence(random, 12);
+        StringBuilder genome = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            genome.append(unit).append(randomSequence(random, 20));
+        }
+        // Two mismatches from the unit, and one from a unique 12-mer whose
+        // mismatch is at its end, so the repeat stratum is reached first
+        char[] rescued = unit.toCharArray();
+        for (int i : new int[] {0, 1}) {
+            rescued[i] = "ACGT".charAt(("ACGT".indexOf(rescued[i]) + 1) % 4);
+        }
+        char[] unique = rescued.clone();
+        unique[11] = "ACGT".charAt(("ACGT".indexOf(unique[11]) + 1) % 4);
+        genome.append(unique).append(randomSequence(random, 20));
+        BWReadMapper mapper = new BWReadMapper(genome.toString());
+        ReadMapper bruteForce = new BruteForceReadMapper(genome.toString());
+        for (int maxHits : new int[] {1, 3, 5}) {
+            HitPolicy policy = HitPolicy.maxHits(maxHits);
+            for (int trial = 0; trial < 60; trial++) {
+                int start = random.nextInt(genome.length() - 12);
+                char[] read = genome.substring(start, start + 12).toCharArray();
+                for (int m = random.nextInt(3); m > 0; m--) {
+                    read[random.nextInt(read.length)] = "ACGT".charAt(random.nextInt(4));
+                }
+                byte[] bases = BWReadMapper.encodeRead(String.valueOf(read), new byte[12]);
+                MappingStratum expected = bruteForce.mapReadBestStratum(bases, 12, 2, policy);
+                MappingStratum stratum = mapper.mapReadBestStratum(bases, 12, 2, policy);
+                assertEquals(expected.isRepeat(), stratum.isRepeat());
+                assertEquals(expected.getMismatches(), stratum.getMismatches());
+                List<Long> positions = new ArrayList<>(stratum.getPositions());
+                Collections.sort(positions);
+                assertEquals(expected.getPositions(), positions);
+            }
+        }
+
+        byte[] rescuedBases = BWReadMapper.encodeRead(String.valueOf(rescued), new byte[12]);
+        MappingStratum better = mapper.mapReadBestStratum(rescuedBases, 12, 2,
+                HitPolicy.maxHits(3));
+        assertTrue(!better.isRepeat());
+        assertEquals(1, better.getMismatches());
+        assertEquals(Collections.singletonList(6L * 32), better.getPositions());
+
+        // The repeat unit itself is never located
+        byte[] bases = BWReadMapper.encodeRead(unit, new byte[unit.length()]);
+        MappingStratum repeat = mapper.mapReadBestStratum(bases, unit.length(), 2,
+                HitPolicy.maxHits(5));
+        assertTrue(repeat.isRepeat());
+        assertTrue(repeat.isMapped());
+        assertEquals(0, repeat.getMismatches());
+        assertTrue(repeat.getPositions().isEmpty());
+    }
+
+    @Test
+    public void testSaveAndOpen() throws IOException {
+        Random random = new Random(30);
+        String genome = randomSequence(random, 1500);
+        Path directory = Files.createTempDirectory("index");
+        for (int samplingRate : new int[] {1, 8}) {
+            Path path = directory.resolve("genome" + samplingRate + ".idx");
+            BWReadMapper mapper = new BWReadMapper(genome, samplingRate);
+            mapper.save(path);
+            BWReadMapper opened = BWReadMapper.open(path);
+            assertArrayEquals(mapper.getBaseCounts(), opened.getBaseCounts());
+            assertEquals(genome, opened.getGenomeSequence());
+            for (int i = 0; i < 30; i++) {
+                int start = random.nextInt(genome.length() - 12);
+                String read = genome.substring(start, start + 12);
+                assertEquals(mapper.mapRead(read, 1), opened.mapRead(read, 1));
+            }
+            Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testGetSubsequence() throws IOException {
+        Random random = new Random(120);
+        String genome = randomSequence(random, 1000);
+        String indexed = genome + BWReadMapper.reverseComplement(genome);
+        Path path = Files.createTempFile("index", ".idx");
+        for (int samplingRate : new int[] {1, 3, 16, 64}) {
+            BWReadMapper mapper = new BWReadMapper(
+                    Collections.singletonMap("genome", genome), samplingRate, 4, true);
+            mapper.save(path);
+            for (BWReadMapper extracting : new BWReadMapper[] {mapper, BWReadMapper.open(path)}) {
+                assertEquals(genome, extracting.getGenomeSequence());
+                assertEquals(indexed, extracting.getSubsequence(0, indexed.length()));
+                assertEquals("", extracting.getSubsequence(500, 500));
+                for (int i = 0; i < 50; i++) {
+                    int start = random.nextInt(indexed.length());
+                    int end = start + random.nextInt(Math.min(100, indexed.length() - start) + 1);
+                    assertEquals(indexed.substring(start, end),
+                            extracting.getSubsequence(start, end));
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test(expected=IOException.class)
+    public void testOpenInvalidIndex() throws IOException {
+        Path path = Files.createTempFile("index", ".idx");
+        Files.write(path, new byte[128]);
+        try {
+            BWReadMapper.open(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testMultipleSequences() throws IOException {
+        Random random = new Random(40);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("chr1", randomSequence(random, 300));
+        sequences.put("chr2", randomSequence(random, 5));
+        sequences.put("chr3", randomSequence(random, 400));
+        StringBuilder concatenated = new StringBuilder();
+        for (String sequence : sequences.values()) {
+            concatenated.append(sequence);
+        }
+        String genome = concatenated.toString();
+        BWReadMapper mapper = new BWReadMapper(sequences, 4);
+        SequenceTable table = mapper.getSequenceTable();
+        assertEquals(3, table.getNumSequences());
+        assertEquals(705, table.getTotalLength());
+        assertEquals("chr3", table.getName(table.getSequenceIndex(305)));
+        assertEquals(4, table.getOffset(304));
+        assertTrue(!table.contains(298, 3));
+
+        Path path = Files.createTempFile("index", ".idx");
+        mapper.save(path);
+        BWReadMapper opened = BWReadMapper.open(path);
+        assertEquals(table, opened.getSequenceTable());
+        for (int i = 0; i < 100; i++) {
+            // Reads around the boundaries cross into the next sequence
+            int start = (i % 2 == 0) ? 290 + random.nextInt(20) : random.nextInt(690);
+            String read = genome.substring(start, start + 15);
+            for (int mismatches = 0; mismatches <= 2; mismatches++) {
+                List<Long> expected = new ArrayList<>();
+                for (long position : naiveMapRead(genome, read, mismatches)) {
+                    if (table.contains(position, read.length())) {
+                        expected.add(position);
+                    }
+                }
+                List<Long> mapping = mapper.mapRead(read, mismatches);
+                Collections.sort(mapping);
+                assertEquals(expected, mapping);
+                List<Long> openedMapping = opened.mapRead(read, mismatches);
+                Collections.sort(openedMapping);
+                assertEquals(expected, openedMapping);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void testKmerIntervalTable() {
+        Random random = new Random(50);
+        String genome = randomSequence(random, 5000);
+        Map<String, String> sequences = Collections.singletonMap("genome", genome);
+        BWReadMapper withoutTable = new BWReadMapper(sequences, 8, 0);
+        BWReadMapper withTable = new BWReadMapper(sequences, 8, 12);
+        assertEquals(0, withoutTable.getKmerTableLength());
+        assertEquals(6, withTable.getKmerTableLength()); // 4^6 <= 5001 < 4^7
+        for (int i = 0; i < 100; i++) {
+            int length = 3 + random.nextInt(20); // Some reads are shorter than q
+            int start = random.nextInt(genome.length() - length);
+            char[] read = genome.substring(start, start + length).toCharArray();
+            for (int j = random.nextInt(3); j > 0; j--) {
+                read[random.nextInt(length)] = "ACGTN".charAt(random.nextInt(5));
+            }
+            String mutated = String.valueOf(read);
+            for (int mismatches = 1; mismatches <= 2; mismatches++) {
+                List<Long> expected = withoutTable.mapRead(mutated, mismatches);
+                List<Long> mapping = withTable.mapRead(mutated, mismatches);
+                Collections.sort(expected);
+                Collections.sort(mapping);
+                assertEquals(expected, mapping);
+            }
+            MappingStratum expected = withoutTable.mapReadBestStratum(mutated, 2);
+            MappingStratum stratum = withTable.mapReadBestStratum(mutated, 2);
+            assertEquals(expected.getMismatches(), stratum.getMismatches());
+            if (mutated.indexOf('N') == -1) {
+                List<Long> exact = withTable.mapRead(mutated, 0);
+                Collections.sort(exact);
+                assertEquals(naiveMapRead(genome, mutated, 0), exact);
+            }
+        }
+    }
+
+    @Test
+    public void testBothStrands() throws IOException {
+        Random random = new Random(70);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("chr1", randomSequence(random, 400));
+        sequences.put("chr2", randomSequence(random, 300));
+        BWReadMapper forward = new BWReadMapper(sequences, 4, 4);
+        BWReadMapper both = new BWReadMapper(sequences, 4, 4, true);
+        assertTrue(both.isBothStrands());
+        assertEquals(forward.getGenomeSequence(), both.getGenomeSequence());
+        assertEquals("ACCGT", BWReadMapper.reverseComplement("ACGGT"));
+
+        Path path = Files.createTempFile("index", ".idx");
+        both.save(path);
+        BWReadMapper opened = BWReadMapper.open(path);
+        assertTrue(opened.isBothStrands());
+        String genome = forward.getGenomeSequence();
+        HitBuffer hits = new HitBuffer(1, 1);
+        for (int i = 0; i < 100; i++) {
+            int start = random.nextInt(400 - 14); // Within chr1
+            String read = genome.substring(start, start + 14);
+            if (i % 2 == 0) {
+                read = BWReadMapper.reverseComplement(read);
+            }
+            for (int mismatches = 0; mismatches <= 2; mismatches++) {
+                List<Long> expectedForward = sorted(forward.mapRead(read, mismatches));
+                List<Long> expectedReverse = sorted(forward.mapRead(
+                        BWReadMapper.reverseComplement(read), mismatches));
+                for (BWReadMapper mapper : new BWReadMapper[] {both, opened}) {
+                    assertEquals(expectedForward,
+                            sorted(mapper.mapRead(read, mismatches)));
+                    hits.clear();
+                    byte[] bases = BWReadMapper.encodeRead(read, new byte[read.length()]);
+                    mapper.mapRead(bases, bases.length, mismatches, hits);
+                    List<Long> hitsForward = new ArrayList<>();
+                    List<Long> hitsReverse = new ArrayList<>();
+                    for (int j = 0; j < hits.getNumHits(); j++) {
+                        (hits.isReverse(j) ? hitsReverse : hitsForward).add(hits.getPosition(j));
+                    }
+                    assertEquals(expectedForward, sorted(hitsForward));
+                    assertEquals(expectedReverse, sorted(hitsReverse));
+                }
+            }
+            MappingStratum stratum = both.mapReadBestStratum(read, 2);
+            assertTrue(stratum.isMapped());
+            assertEquals(0, stratum.getMismatches());
+            assertEquals(i % 2 == 0, stratum.getPositions().isEmpty());
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void testSeedFilter() {
+        Random random = new Random(80);
+        String genome = randomSequence(random, 2000);
+        for (boolean bothStrands : new boolean[] {false, true}) {
+            BWReadMapper mapper = new BWReadMapper(
+                    Collections.singletonMap("genome", genome), 4, 6, bothStrands);
+            SeedFilter filter = new SeedFilter(mapper);
+            int rejected = 0;
+            for (int i = 0; i < 200; i++) {
+                String read;
+                if (i % 2 == 0) { // Unrelated to the genome
+                    read = randomSequence(random, 30);
+                } else {
+                    int start = random.nextInt(genome.length() - 30);
+                    char[] bases = genome.substring(start, start + 30).toCharArray();
+                    for (int j = 0; j < 3; j++) {
+                        bases[random.nextInt(bases.length)] = "ACGT".charAt(random.nextInt(4));
+                    }
+                    read = String.valueOf(bases);
+                    if (i % 4 == 1) {
+                        read = BWReadMapper.reverseComplement(read);
+                    }
+                }
+                for (int mismatches = 1; mismatches <= 3; mismatches++) {
+                    boolean maps = !naiveMapRead(genome, read, mismatches).isEmpty() ||
+                            !naiveMapRead(genome, BWReadMapper.reverseComplement(read),
+                                    mismatches).isEmpty();
+                    boolean mayMap = filter.mayMap(read, mismatches);
+                    assertTrue(mayMap || !maps);
+                    if (!mayMap) {
+                        rejected++;
+                    }
+                }
+            }
+            assertTrue(rejected > 0);
+        }
+    }
+
+    @Test
+    public void testMinimizerMapping() {
+        Random random = new Random(90);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("chr1", randomSequence(random, 3000));
+        sequences.put("chr2", randomSequence(random, 2000));
+        String genome = sequences.get("chr1") + sequences.get("chr2");
+        MinimizerReadMapper mapper = new MinimizerReadMapper(sequences, 12, 8);
+        assertEquals(genome, mapper.getGenomeSequence());
+        SequenceTable table = mapper.getSequenceTable();
+        for (int i = 0; i < 200; i++) {
+            int length = (i % 10 == 0) ? 10 : 60; // Some reads hold no full window
+            int start = random.nextInt(genome.length() - length);
+            char[] bases = genome.substring(start, start + length).toCharArray();
+            int mismatches = i % 3;
+            for (int j = 0; j < mismatches; j++) {
+                int k = random.nextInt(length);
+                bases[k] = "ACGT".charAt(("ACGT".indexOf(bases[k]) + 1 + random.nextInt(3)) % 4);
+            }
+            String read = String.valueOf(bases);
+            List<Long> expected = new ArrayList<>();
+            for (long position : naiveMapRead(genome, read, mismatches)) {
+                if (table.contains(position, length)) {
+                    expected.add(position);
+                }
+            }
+            List<Long> mapping = mapper.mapRead(read, mismatches);
+            assertTrue(expected.containsAll(mapping));
+            if (mismatches == 0 || length == 10) {
+                assertEquals(expected, mapping);
+            }
+            if (table.contains(start, length)) {
+                assertTrue(mapping.contains((long) start));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchMapping() {
+        Random random = new Random(60);
+        String genome = randomSequence(random, 2000) + "ACGTACGTACGTACGT";
+        ReadMapper[] mappers = {new BWReadMapper(genome), new BruteForceReadMapper(genome)};
+        List<String> reads = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            // Reads ending near the same positions share suffixes
+            int end = 20 + random.nextInt(50) * 40 + random.nextInt(3);
+            int length = 1 + random.nextInt(20);
+            String read = genome.substring(end - length, end);
+            if (i % 5 == 0) {
+                read = randomSequence(random, length);
+            }
+            reads.add(read);
+        }
+        reads.add(reads.get(0)); // Duplicate read
+        HitBuffer hits = new HitBuffer(4, 4); // Grows while mapping
+        for (ReadMapper mapper : mappers) {
+            for (int mismatches = 0; mismatches <= 1; mismatches++) {
+                mapper.mapReads(reads, mismatches, hits);
+                assertEquals(reads.size(), hits.getNumReads());
+                for (int r = 0; r < reads.size(); r++) {
+                    List<Long> positions = new ArrayList<>();
+                    for (int i = hits.getStart(r); i < hits.getEnd(r); i++) {
+                        positions.add(hits.getPosition(i));
+                    }
+                    assertEquals(mapper.mapRead(reads.get(r), mismatches), positions);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrimitiveMappingDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return; // Allocation counting is not available on this JVM
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Random random = new Random(70);
+        String genome = randomSequence(random, 5000);
+        BWReadMapper mapper = new BWReadMapper(genome);
+        byte[][] reads = new byte[100][];
+        for (int i = 0; i < reads.length; i++) {
+            int start = random.nextInt(genome.length() - 40);
+            String read = genome.substring(start, start + 30 + random.nextInt(10));
+            reads[i] = BWReadMapper.encodeRead(read, new byte[read.length()]);
+            reads[i][random.nextInt(read.length())] = (byte) random.nextInt(4);
+        }
+        HitBuffer hits = new HitBuffer(1, 1);
+        long allocated = 0;
+        for (int round = 0; round < 20; round++) { // Early rounds grow the buffers
+            long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (byte[] read : reads) {
+                for (int mismatches = 0; mismatches <= 2; mismatches++) {
+                    hits.clear();
+                    mapper.mapRead(read, read.length, mismatches, hits);
+                }
+            }
+            allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+        assertTrue("Allocated " + allocated + " bytes mapping reads", allocated < 1024);
+    }
+
+    @Test
+    public void testAmbiguousBases() throws IOException {
+        Random random = new Random(90);
+        String chr1 = randomSequence(random, 300);
+        String chr2 = randomSequence(random, 300);
+        chr1 = chr1.substring(0, 100) + chr1.substring(100, 200).toLowerCase() +
+                chr1.substring(200, 250) + "NNNNNNNNNNnnnnnnnnnn" + chr1.substring(270);
+        chr2 = "NNNNN" + chr2.substring(5, 150) + "R" + chr2.substring(151);
+        Map<String, String> sequences = new LinkedHashMap<>();
+        sequences.put("chr1", chr1);
+        sequences.put("chr2", chr2);
+        String genome = (chr1 + chr2).toUpperCase().replace('R', 'N');
+
+        BWReadMapper mapper = new BWReadMapper(sequences, 4, 4, true);
+        SequenceTable table = mapper.getSequenceTable();
+        assertEquals(3, table.getNumGaps()); // chr1's run, then chr2's start and R
+        assertEquals(250, table.getGapStart(0));
+        assertEquals(305, table.getGapEnd(1));
+        assertTrue(!table.contains(240, 15));
+        assertTrue(table.contains(100, 100));
+
+        Path path = Files.createTempFile("index", ".idx");
+        mapper.save(path);
+        try {
+            BWReadMapper opened = BWReadMapper.open(path);
+            assertEquals(table, opened.getSequenceTable());
+            for (BWReadMapper extracting : new BWReadMapper[] {mapper, opened}) {
+                assertEquals(genome, extracting.getGenomeSequence());
+                StringBuilder reverse = new StringBuilder();
+                for (int i = genome.length() - 1; i >= 0; i--) {
+                    reverse.append("TGCAN".charAt("ACGTN".indexOf(genome.charAt(i))));
+                }
+                assertEquals(reverse.toString(), extracting.getSubsequence(
+                        genome.length(), 2L * genome.length()));
+            }
+            for (int i = 0; i < 200; i++) {
+                // Some reads overlap the gaps, and map nowhere near them
+                int start = random.nextInt(genome.length() - 15);
+                String read = genome.substring(start, start + 15).replace('N', 'A');
+                for (int mismatches = 0; mismatches <= 2; mismatches++) {
+                    List<Long> expected = new ArrayList<>();
+                    for (long position : naiveMapRead(genome, read, mismatches)) {
+                        if (table.contains(position, read.length())) {
+                            expected.add(position);
+                        }
+                    }
+                    for (BWReadMapper mapping : new BWReadMapper[] {mapper, opened}) {
+                        List<Long> positions = mapping.mapRead(read, mismatches);
+                        Collections.sort(positions);
+                        assertEquals(expected, positions);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
     }
 
     @Test
     public void testBruteForce() {
         ReadMapper mapper = new BruteForceReadMapper("ACACTACCACACA");
-        List<Integer> mapping = mapper.mapRead("CAC", 0);
-        List<Integer> expected = new ArrayList<>(Arrays.asList(1, 7, 9));
+        List<Long> mapping = mapper.mapRead("CAC", 0);
+        List<Long> expected = new ArrayList<>(Arrays.asList(1L, 7L, 9L));
         assertEquals(expected, mapping);
     }
 
+    @Test
+    public void testBruteForceMismatches() {
+        Random random = new Random(100);
+        String genome = randomSequence(random, 500);
+        ReadMapper mapper = new BruteForceReadMapper(genome);
+        for (int i = 0; i < 50; i++) {
+            String read = randomSequence(random, 1 + random.nextInt(70));
+            for (int mismatches = 0; mismatches <= 30; mismatches += 6) {
+                assertEquals(naiveMapRead(genome, read, mismatches),
+                        mapper.mapRead(read, mismatches));
+            }
+        }
+    }
+
+    @Test
+    public void testPackedMismatchCounting() {
+        Random random = new Random(110);
+        char[] genome = randomSequence(random, 300).toCharArray();
+        genome[77] = 'N';
+        PackedSequence packedGenome = PackedSequence.of(String.valueOf(genome));
+        assertEquals(String.valueOf(genome), packedGenome.toString());
+        for (int i = 0; i < 300; i++) {
+            int length = 1 + random.nextInt(100);
+            int position = random.nextInt(genome.length - length + 1);
+            char[] read = randomSequence(random, length).toCharArray();
+            for (int j = 0; j < length; j++) { // Mostly matching
+                if (random.nextInt(4) != 0) {
+                    read[j] = genome[position + j];
+                }
+            }
+            if (i % 10 == 0) {
+                read[random.nextInt(length)] = 'N';
+            }
+            int expected = 0;
+            for (int j = 0; j < length; j++) {
+                if (read[j] == 'N' || read[j] != genome[position + j]) {
+                    expected++;
+                }
+            }
+            PackedSequence packedRead = PackedSequence.of(String.valueOf(read));
+            assertEquals(expected, packedGenome.countMismatches(position, packedRead, length));
+            int counted = packedGenome.countMismatches(position, packedRead, 2);
+            assertEquals(expected <= 2, counted <= 2);
+        }
+    }
+
+    @Test
+    public void testHitPolicies() {
+        Random random = new Random(120);
+        StringBuilder genome = new StringBuilder(randomSequence(random, 300));
+        for (int i = 0; i < 5; i++) {
+            genome.append("ACGTTGCATG").append(randomSequence(random, 40));
+        }
+        ReadMapper[] mappers = {new BWReadMapper(genome.toString(), 4),
+                new BruteForceReadMapper(genome.toString())};
+        List<String> reads = new ArrayList<>(Arrays.asList("ACGTTGCATG", "ACGTAGCATG"));
+        for (int i = 0; i < 100; i++) {
+            int length = 8 + random.nextInt(10);
+            int start = random.nextInt(genome.length() - length + 1);
+            reads.add(genome.substring(start, start + length));
+        }
+        HitBuffer hits = new HitBuffer(1, 1);
+        for (ReadMapper mapper : mappers) {
+            for (String read : reads) {
+                byte[] bases = BWReadMapper.encodeRead(read, new byte[read.length()]);
+                for (int mismatches = 0; mismatches <= 1; mismatches++) {
+                    List<Long> all = new ArrayList<>(mapper.mapRead(read, mismatches));
+                    Collections.sort(all);
+                    hits.clear();
+                    mapper.mapRead(bases, bases.length, mismatches, HitPolicy.ALL, hits);
+                    mapper.mapRead(bases, bases.length, mismatches, HitPolicy.FIRST, hits);
+                    mapper.mapRead(bases, bases.length, mismatches,
+                            HitPolicy.BEST_STRATUM, hits);
+                    mapper.mapRead(bases, bases.length, mismatches, HitPolicy.maxHits(4), hits);
+                    mapper.mapRead(bases, bases.length, mismatches, HitPolicy.maxHits(5), hits);
+                    assertEquals(all, getSortedHits(hits, 0));
+                    assertEquals(Math.min(all.size(), 1), getSortedHits(hits, 1).size());
+                    assertTrue(all.containsAll(getSortedHits(hits, 1)));
+                    List<Long> best = new ArrayList<>(
+                            mapper.mapReadBestStratum(read, mismatches).getPositions());
+                    Collections.sort(best);
+                    assertEquals(best, getSortedHits(hits, 2));
+                    assertEquals(all.size() > 4, hits.isRepeat(3));
+                    assertEquals(all.size() > 4 ? Collections.emptyList() : all,
+                            getSortedHits(hits, 3));
+                    assertEquals(all.size() > 5, hits.isRepeat(4));
+                    assertTrue(!hits.isRepeat(0) && !hits.isRepeat(1) && !hits.isRepeat(2));
+                }
+            }
+            assertEquals(5, mapper.mapRead("ACGTTGCATG", 0).size());
+            assertEquals(5, mapper.mapReadBestStratum("ACGTAGCATG", 1).getPositions().size());
+        }
+    }
+
+    @Test
+    public void testReadStore() {
+        Random random = new Random(130);
+        List<String> reads = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            char[] read = randomSequence(random, random.nextInt(200)).toCharArray();
+            if (i % 7 == 0 && read.length > 0) {
+                read[random.nextInt(read.length)] = 'N';
+            }
+            reads.add(String.valueOf(read));
+        }
+        ReadStore store = ReadStore.of(reads);
+        assertEquals(reads.size(), store.size());
+        long totalLength = 0;
+        ReadStore.Cursor cursor = store.cursor();
+        for (int r = 0; r < reads.size(); r++) {
+            String read = reads.get(r);
+            totalLength += read.length();
+            assertEquals(read, store.get(r));
+            assertEquals(read.length(), store.getLength(r));
+            assertTrue(cursor.next());
+            assertEquals(r, cursor.getRead());
+            assertArrayEquals(BWReadMapper.encodeRead(read, new byte[read.length()]),
+                    Arrays.copyOf(cursor.getBases(), cursor.getLength()));
+        }
+        assertTrue(!cursor.next());
+        assertEquals(totalLength, store.getTotalLength());
+        assertEquals(reads.size(), store.add("ACGT"));
+        assertEquals("ACGT", store.get(reads.size()));
+
+        String genome = randomSequence(random, 1000);
+        ReadMapper mapper = new BWReadMapper(genome);
+        store = new ReadStore();
+        for (int i = 0; i < 100; i++) {
+            int start = random.nextInt(genome.length() - 30);
+            store.add(genome.substring(start, start + 10 + random.nextInt(20)));
+        }
+        HitBuffer hits = new HitBuffer(1, 1);
+        for (cursor = store.cursor(); cursor.next(); ) {
+            hits.clear();
+            mapper.mapRead(cursor.getBases(), cursor.getLength(), 1, hits);
+            List<Long> positions = new ArrayList<>(mapper.mapRead(store.get(cursor.getRead()), 1));
+            Collections.sort(positions);
+            assertEquals(positions, getSortedHits(hits, 0));
+        }
+    }
+
+    private static List<Long> getSortedHits(HitBuffer hits, int read) {
+        List<Long> positions = new ArrayList<>();
+        for (int i = hits.getStart(read); i < hits.getEnd(read); i++) {
+            positions.add(hits.getPosition(i));
+        }
+        Collections.sort(positions);
+        return positions;
+    }
+
+
+    private static List<Long> naiveMapRead(String genome, String read, int mismatches) {
+        List<Long> startingPositions = new ArrayList<>();
+        for (int i = 0; i < genome.length() - read.length() + 1; i++) {
+            int count = 0;
+            for (int j = 0; j < read.length(); j++) {
+                if (genome.charAt(i + j) != read.charAt(j)) {
+                    count++;
+                }
+            }
+            if (count <= mismatches) {
+                startingPositions.add((long) i);
+            }
+        }
+        return startingPositions;
+    }
+
+    private static List<Long> sorted(List<Long> positions) {
+        List<Long> copy = new ArrayList<>(positions);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static String randomSequence(Random random, int length) {
+        char[] bases = new char[length];
+        for (int i = 0; i < length; i++) {
+            bases[i] = "ACGT".charAt(random.nextInt(4));
+        }
+        return String.valueOf(bases);
+    }
 
     private static void printArray(int[] array) {
         for (int n : array) {
@@ -0,0 +1,331 @@
+package com.github.genomeassembler.parser;
+
+import com.github.genomeassembler.mapper.ReadStore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParserTest {
+
+    private static Path writeFile(String contents) throws IOException {
+        Path path = Files.createTempFile("parser", ".txt");
+        Files.write(path, contents.getBytes(StandardCharsets.ISO_8859_1));
+        return path;
+    }
+
+    @Test
+    public void testFastqParsing() throws IOException {
+        String fastq = "@read1\r\nACGTN\r\n+\r\nIIIII\r\n" +
+                "\n" +
+                "@read2\nTTGCA\n+read2\n@IIII\n" +
+                "@read3\nGGGCCCAAATTT\n+\n@@@@@@@@@@@@";
+        List<String> expected = Arrays.asList("ACGTG", "TTGCA", "GGGCCCAAATTT");
+        Path path = writeFile(fastq);
+        try {
+            for (int windowSize : new int[]{16, 17, 24, 64, MappedLines.WINDOW_SIZE}) {
+                ReadStore store = FastqParser.getReads(path, new ReadStore(), windowSize);
+                List<String> reads = new ArrayList<>();
+                for (int r = 0; r < store.size(); r++) {
+                    reads.add(store.get(r));
+                }
+                assertEquals("Window of " + windowSize, expected, reads);
+            }
+            assertEquals(expected, FastqParser.getReads(path.toString()));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testFastqBatchParsing() throws IOException {
+        StringBuilder fastq = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int r = 0; r < 10; r++) {
+            String read = "ACGTACGT".substring(0, 1 + r % 8);
+            expected.add(read);
+            fastq.append("@read").append(r).append('\n').append(read).append("\n+\n")
+                    .append(read.replaceAll(".", "I")).append('\n');
+        }
+        Path path = writeFile(fastq.toString());
+        try {
+            List<ReadStore> batches = new ArrayList<>();
+            FastqParser.getReadBatches(path, 32, Long.MAX_VALUE, 4, 1, batches::add);
+            assertEquals(3, batches.size());
+            assertEquals(2, batches.get(2).size());
+            assertEquals(expected, getBatchReads(batches));
+
+            // Ranges are parsed in parallel, and their batches passed on in order
+            for (int threads : new int[]{2, 3, 16}) {
+                for (long rangeSize : new long[]{1, 40, 100, Long.MAX_VALUE}) {
+                    batches.clear();
+                    FastqParser.getReadBatches(path, 32, rangeSize, 4, threads, batches::add);
+                    for (ReadStore batch : batches) {
+                        assertTrue(batch.size() > 0 && batch.size() <= 4);
+                    }
+                    assertEquals(expected, getBatchReads(batches));
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static List<String> getBatchReads(List<ReadStore> batches) {
+        List<String> reads = new ArrayList<>();
+        for (ReadStore batch : batches) {
+            for (int r = 0; r < batch.size(); r++) {
+                reads.add(batch.get(r));
+            }
+        }
+        return reads;
+    }
+
+    @Test
+    public void testParallelFastqParsing() throws IOException {
+        Random random = new Random(23);
+        StringBuilder fastq = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int r = 0; r < 500; r++) {
+            StringBuilder read = new StringBuilder();
+            StringBuilder quality = new StringBuilder();
+            for (int i = random.nextInt(40); i >= 0; i--) {
+                read.append("ACGT".charAt(random.nextInt(4)));
+                quality.append((random.nextInt(4) == 0) ? '@' : (char) ('!' + random.nextInt(40)));
+            }
+            expected.add(read.toString());
+            fastq.append("@read").append(r).append('\n').append(read).append('\n')
+                    .append((r % 2 == 0) ? "+" : "+read" + r).append('\n')
+                    .append(quality).append((r % 7 == 0) ? "\r\n\n" : "\n");
+        }
+        Path path = writeFile(fastq.toString());
+        try {
+            for (int threads : new int[]{1, 2, 3, 8, 64}) {
+                for (int windowSize : new int[]{128, MappedLines.WINDOW_SIZE}) {
+                    ReadStore store = new ReadStore();
+                    store.add("GATTACA");
+                    FastqParser.getReads(path, store, windowSize, threads);
+                    assertEquals(expected.size() + 1, store.size());
+                    assertEquals("GATTACA", store.get(0));
+                    for (int r = 0; r < expected.size(); r++) {
+                        assertEquals("Threads " + threads + ", read " + r,
+                                expected.get(r), store.get(r + 1));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Compresses bytes into BGZF blocks of blockLength bytes, ending with
+     * the empty end-of-file block
+     */
+    private static byte[] bgzf(byte[] bytes, int blockLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int from = 0; from <= bytes.length; from += blockLength) {
+            int length = Math.min(blockLength, bytes.length - from);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(bytes, from, length);
+            deflater.finish();
+            byte[] data = new byte[length + 64];
+            int dataLength = deflater.deflate(data);
+            deflater.end();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, from, length);
+            int blockSize = 18 + dataLength + 8;
+            out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff,
+                    6, 0, 'B', 'C', 2, 0,
+                    (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)}, 0, 18);
+            out.write(data, 0, dataLength);
+            for (long value : new long[]{crc.getValue(), length}) {
+                for (int i = 0; i < 4; i++) {
+                    out.write((int) (value >> (8 * i)));
+                }
+            }
+            if (length == 0) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCompressedParsing() throws IOException {
+        StringBuilder fastq = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        Random random = new Random(24);
+        for (int r = 0; r < 500; r++) {
+            StringBuilder read = new StringBuilder();
+            for (int i = random.nextInt(60); i >= 0; i--) {
+                read.append("ACGT".charAt(random.nextInt(4)));
+            }
+            expected.add(read.toString());
+            fastq.append("@read").append(r).append("\r\n").append(read).append("\r\n+\r\n")
+                    .append(read.toString().replaceAll(".", "@")).append("\r\n");
+        }
+        byte[] bytes = fastq.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(bytes);
+        }
+        List<byte[]> files = Arrays.asList(gzip.toByteArray(), bgzf(bytes, 100),
+                bgzf(bytes, 65280));
+        for (byte[] file : files) {
+            Path path = Files.createTempFile("parser", ".fastq.gz");
+            Files.write(path, file);
+            try {
+                for (int threads : new int[]{1, 4}) {
+                    ReadStore store = FastqParser.getReads(path, new ReadStore(),
+                            MappedLines.WINDOW_SIZE, threads);
+                    List<String> reads = new ArrayList<>();
+                    for (int r = 0; r < store.size(); r++) {
+                        reads.add(store.get(r));
+                    }
+                    assertEquals(expected, reads);
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+
+        Path path = Files.createTempFile("parser", ".fa.gz");
+        Files.write(path, bgzf(">chr1\nACGT\nTTGG\n>chr2\nCCCC\n"
+                .getBytes(StandardCharsets.ISO_8859_1), 7));
+        try {
+            Map<String, String> records = FastaParser.parseGffRecords(path.toString());
+            assertEquals("ACGTTTGG", records.get("chr1"));
+            assertEquals("CCCC", records.get("chr2"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testCorruptBgzfBlock() throws IOException {
+        byte[] file = bgzf("@read\nACGT\n+\nIIII\n".getBytes(StandardCharsets.ISO_8859_1), 8);
+        file[20] ^= 0x55; // Inside the deflated data of the first block
+        Path path = Files.createTempFile("parser", ".fastq.gz");
+        Files.write(path, file);
+        try {
+            FastqParser.getReads(path, new ReadStore(), MappedLines.WINDOW_SIZE, 2);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testGzipConsumerFailure() throws IOException, InterruptedException {
+        // Inflates to many chunks, so the reader fills its queue ahead
+        byte[] line = "@read\nACGTACGTACGTACGTACGTACGTACGTACGT\n+\nIIIIIIIIIIIIIIIIIIIIIIIIIIIIIIII\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        Path path = Files.createTempFile("parser", ".fastq.gz");
+        try (GZIPOutputStream out = new GZIPOutputStream(Files.newOutputStream(path))) {
+            for (int i = 0; i < 200000; i++) {
+                out.write(line);
+            }
+        }
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        try {
+            CompressedLines.forEachLine(path, 1, (buffer, start, end) -> {
+                try {
+                    Thread.sleep(500); // Lets the reader fill its queue
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalArgumentException("Rejected line");
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            Files.delete(path);
+        }
+        for (int i = 0; i < 100 && isNewThreadAlive(before); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(!isNewThreadAlive(before)); // The reader is not left blocked
+    }
+
+    private static boolean isNewThreadAlive(Set<Thread> before) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!before.contains(thread) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testGffParsing() throws IOException {
+        String gff = "##gff-version 3\n" +
+                "chr1\tsource\tgene\t1\t8\t.\t+\t.\tID=gene1\n" +
+                "##FASTA\r\n" +
+                ">chr1 first record\r\n" +
+                "ACGT\r\n" +
+                "AC GT\r\n" +
+                "\r\n" +
+                ">chr2\n" +
+                "TTTT\n" +
+                "GGGG\n";
+        Path path = writeFile(gff);
+        try {
+            for (int windowSize : new int[]{48, 53, 64, MappedLines.WINDOW_SIZE}) {
+                Map<String, String> records = FastaParser.parseGffRecords(path, windowSize);
+                assertEquals(Arrays.asList("chr1", "chr2"), new ArrayList<>(records.keySet()));
+                assertEquals("ACGTACGT", records.get("chr1"));
+                assertEquals("TTTTGGGG", records.get("chr2"));
+            }
+            assertEquals("ACGTACGTTTTTGGGG", FastaParser.parseGffFile(path.toString()));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testSoftMaskedFasta() throws IOException {
+        Path path = writeFile(">chr1\nACGTacgt\nNNnnRYKM\n>chr2\ngattaca-*\n");
+        try {
+            Map<String, String> records =
+                    FastaParser.parseGffRecords(path, MappedLines.WINDOW_SIZE);
+            assertEquals("ACGTACGTNNNNNNNN", records.get("chr1"));
+            assertEquals("GATTACANN", records.get("chr2"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testLineLongerThanWindow() throws IOException {
+        Path path = writeFile("@read\nACGTACGTACGTACGTACGT\n+\nIIIIIIIIIIIIIIIIIIII\n");
+        try {
+            FastqParser.getReads(path, new ReadStore(), 8);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            Files.delete(path);
+        }
+    }
+}